@@ -0,0 +1,353 @@
+/*****************************************************************************
+ * Java Plug-in Framework (JPF) Copyright (C) 2004-2007 Dmitry Olshansky This
+ * library is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version. This library is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser
+ * General Public License for more details. You should have received a copy of
+ * the GNU Lesser General Public License along with this library; if not, write
+ * to the Free Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA
+ * 02111-1307 USA
+ *****************************************************************************/
+package org.java.plugin.registry.xml;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.java.plugin.ObjectFactory;
+import org.java.plugin.registry.Extension;
+import org.java.plugin.registry.ExtensionPoint;
+import org.java.plugin.registry.PluginDescriptor;
+import org.java.plugin.registry.PluginFragment;
+import org.java.plugin.registry.PluginRegistry;
+import org.java.plugin.registry.PluginRegistry.RegistryChangeData;
+import org.java.plugin.registry.PluginRegistry.RegistryChangeListener;
+import org.java.plugin.registry.UniqueIdentity;
+import org.java.plugin.registry.Version;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Regression tests for incremental update of extension points and extensions
+ * on plug-ins registration and un-registration. After every step state of all
+ * extension points and extensions, as it is computed incrementally, is
+ * compared with state computed after resetting every extension point and
+ * extension of the same registry, and with state of a new registry, where the
+ * same manifests are registered at once. Extensions, reported as added or
+ * removed by registry change events, are compared with the difference of
+ * connected extensions before and after each step.
+ *
+ * @version $Id$
+ */
+public final class IncrementalRegistryChangesTest
+{
+	private static final String DOCTYPE = "<?xml version=\"1.0\" ?>\n" //$NON-NLS-1$
+		+ "<!DOCTYPE %s PUBLIC \"-//JPF//Java Plug-in Manifest 1.0\"" //$NON-NLS-1$
+		+ " \"http://jpf.sourceforge.net/plugin_1_0.dtd\">\n"; //$NON-NLS-1$
+
+	/**
+	 * Work folder for manifest files.
+	 */
+	@Rule
+	public TemporaryFolder tempFolder = new TemporaryFolder();
+
+	private PluginRegistry registry;
+	private final Set<String> addedExtensions = new TreeSet<String>();
+	private final Set<String> removedExtensions = new TreeSet<String>();
+	private Set<String> connectedExtensions = Collections.emptySet();
+
+	/**
+	 * Writes test manifests and creates registry under test.
+	 *
+	 * @throws IOException if manifests can't be written
+	 */
+	@Before
+	public void setUp() throws IOException
+	{
+		writePlugin("core", "t.core", "1.0", "" //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$
+			+ "<extension-point id=\"ep\">" //$NON-NLS-1$
+			+ "<parameter-def id=\"ref\" type=\"plugin-id\" multiplicity=\"none-or-one\"/>" //$NON-NLS-1$
+			+ "</extension-point>" //$NON-NLS-1$
+			+ "<extension-point id=\"single\" extension-multiplicity=\"one\"/>" //$NON-NLS-1$
+			+ "<extension plugin-id=\"t.core\" point-id=\"ep\" id=\"self\"/>"); //$NON-NLS-1$
+		writePlugin("core2", "t.core", "2.0", "" //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$
+			+ "<extension-point id=\"ep\">" //$NON-NLS-1$
+			+ "<parameter-def id=\"ref\" type=\"plugin-id\" multiplicity=\"none-or-one\"/>" //$NON-NLS-1$
+			+ "</extension-point>" //$NON-NLS-1$
+			+ "<extension-point id=\"single\" extension-multiplicity=\"any\"/>" //$NON-NLS-1$
+			+ "<extension-point id=\"ep2\"/>" //$NON-NLS-1$
+			+ "<extension plugin-id=\"t.core\" point-id=\"ep2\" id=\"self2\"/>"); //$NON-NLS-1$
+		writePlugin("child", "t.child", "1.0", "" //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$
+			+ "<requires><import plugin-id=\"t.core\"/></requires>" //$NON-NLS-1$
+			+ "<extension-point id=\"cp\" parent-plugin-id=\"t.core\" parent-point-id=\"ep\">" //$NON-NLS-1$
+			+ "<parameter-def id=\"own\" multiplicity=\"none-or-one\"/>" //$NON-NLS-1$
+			+ "</extension-point>" //$NON-NLS-1$
+			+ "<extension-point id=\"gcp\" parent-plugin-id=\"t.child\" parent-point-id=\"cp\"/>" //$NON-NLS-1$
+			+ "<extension plugin-id=\"t.core\" point-id=\"ep\" id=\"refx\">" //$NON-NLS-1$
+			+ "<parameter id=\"ref\" value=\"t.x\"/></extension>"); //$NON-NLS-1$
+		writePlugin("x", "t.x", "1.0", "" //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$
+			+ "<requires><import plugin-id=\"t.core\"/><import plugin-id=\"t.child\"/></requires>" //$NON-NLS-1$
+			+ "<extension plugin-id=\"t.child\" point-id=\"cp\" id=\"c1\">" //$NON-NLS-1$
+			+ "<parameter id=\"ref\" value=\"t.y\"/><parameter id=\"own\" value=\"o\"/></extension>" //$NON-NLS-1$
+			+ "<extension plugin-id=\"t.child\" point-id=\"gcp\" id=\"g1\"/>" //$NON-NLS-1$
+			+ "<extension plugin-id=\"t.core\" point-id=\"single\" id=\"s1\"/>"); //$NON-NLS-1$
+		writePlugin("y", "t.y", "1.0", "" //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$
+			+ "<requires><import plugin-id=\"t.core\"/><import plugin-id=\"t.child\"/></requires>" //$NON-NLS-1$
+			+ "<extension-point id=\"yp\"/>" //$NON-NLS-1$
+			+ "<extension plugin-id=\"t.core\" point-id=\"fp\" id=\"f1\"/>"); //$NON-NLS-1$
+		writePlugin("z", "t.z", "1.0", "" //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$
+			+ "<requires><import plugin-id=\"t.core\"/></requires>" //$NON-NLS-1$
+			+ "<extension plugin-id=\"t.core\" point-id=\"ep2\" id=\"z1\"/>" //$NON-NLS-1$
+			+ "<extension plugin-id=\"t.y\" point-id=\"yp\" id=\"z2\"/>"); //$NON-NLS-1$
+		writeFragment("frag", "t.frag", "t.core", "" //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$
+			+ "<extension-point id=\"fp\"/>" //$NON-NLS-1$
+			+ "<extension plugin-id=\"t.core\" point-id=\"single\" id=\"s2\"/>"); //$NON-NLS-1$
+		writeFragment("frag2", "t.frag2", "t.child", "" //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$
+			+ "<extension-point id=\"fcp\" parent-plugin-id=\"t.child\" parent-point-id=\"gcp\"/>" //$NON-NLS-1$
+			+ "<extension plugin-id=\"t.child\" point-id=\"fcp\" id=\"fc1\"/>" //$NON-NLS-1$
+			+ "<extension plugin-id=\"t.core\" point-id=\"ep\" id=\"refz\">" //$NON-NLS-1$
+			+ "<parameter id=\"ref\" value=\"t.z\"/></extension>"); //$NON-NLS-1$
+		registry = ObjectFactory.newInstance().createRegistry();
+		registry.registerListener(new RegistryChangeListener()
+		{
+			public void registryChanged(final RegistryChangeData data)
+			{
+				addedExtensions.addAll(data.addedExtensions());
+				removedExtensions.addAll(data.removedExtensions());
+			}
+		});
+	}
+
+	/**
+	 * Plug-ins with extension points, that inherit each other, are registered
+	 * and un-registered one by one and in groups.
+	 *
+	 * @throws Exception if test fails
+	 */
+	@Test
+	public void testPlugins() throws Exception
+	{
+		register("core"); //$NON-NLS-1$
+		register("child"); //$NON-NLS-1$
+		register("x", "y"); //$NON-NLS-1$ //$NON-NLS-2$
+		unregister("t.x"); //$NON-NLS-1$
+		register("x"); //$NON-NLS-1$
+		unregister("t.y"); //$NON-NLS-1$
+		register("z"); //$NON-NLS-1$
+		register("y"); //$NON-NLS-1$
+		unregister("t.child"); //$NON-NLS-1$
+		register("child", "x", "y"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+		unregister("t.core"); //$NON-NLS-1$
+	}
+
+	/**
+	 * Fragments contribute extension points, that plug-ins extend, and
+	 * extensions to points of other plug-ins.
+	 *
+	 * @throws Exception if test fails
+	 */
+	@Test
+	public void testFragments() throws Exception
+	{
+		register("core", "child", "y"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+		register("frag"); //$NON-NLS-1$
+		register("x"); //$NON-NLS-1$
+		unregister("t.frag"); //$NON-NLS-1$
+		register("frag2", "frag"); //$NON-NLS-1$ //$NON-NLS-2$
+		register("z"); //$NON-NLS-1$
+		unregister("t.frag2"); //$NON-NLS-1$
+		unregister("t.z"); //$NON-NLS-1$
+		register("frag2"); //$NON-NLS-1$
+		unregister("t.child"); //$NON-NLS-1$
+		register("child", "frag2", "x"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+		unregister("t.frag", "t.x"); //$NON-NLS-1$ //$NON-NLS-2$
+	}
+
+	/**
+	 * Plug-in is replaced with another version, that changes multiplicity of
+	 * extension point and adds new one, other plug-ins are registered again
+	 * together with new version.
+	 *
+	 * @throws Exception if test fails
+	 */
+	@Test
+	public void testVersionReplacement() throws Exception
+	{
+		register("core", "child", "x", "y", "frag", "z"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$ //$NON-NLS-5$ //$NON-NLS-6$
+		unregister("t.core"); //$NON-NLS-1$
+		register("core2", "child", "x", "y", "frag", "z"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$ //$NON-NLS-5$ //$NON-NLS-6$
+		unregister("t.core"); //$NON-NLS-1$
+		// newest version wins, when both are registered at once
+		register("core", "core2", "child", "x"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$
+		assertEquals(Version.parse("2.0"), registry.getPluginDescriptor("t.core").getVersion()); //$NON-NLS-1$ //$NON-NLS-2$
+		register("z", "frag2"); //$NON-NLS-1$ //$NON-NLS-2$
+		unregister("t.core"); //$NON-NLS-1$
+		register("core", "child", "z"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+	}
+
+	private void register(final String... names) throws Exception
+	{
+		URL[] manifests = new URL[names.length];
+		for( int i = 0; i < names.length; i++ )
+		{
+			manifests[i] = getManifestUrl(names[i]);
+		}
+		registry.register(manifests);
+		check("register " + Arrays.toString(names)); //$NON-NLS-1$
+	}
+
+	private void unregister(final String... ids) throws Exception
+	{
+		registry.unregister(ids);
+		check("unregister " + Arrays.toString(ids)); //$NON-NLS-1$
+	}
+
+	private void check(final String step) throws Exception
+	{
+		String incremental = dump(registry);
+		resetAll(registry);
+		String full = dump(registry);
+		assertEquals(step + ": incremental vs. full reset", full, incremental); //$NON-NLS-1$
+		PluginRegistry fresh = ObjectFactory.newInstance().createRegistry();
+		List<URL> manifests = new ArrayList<URL>();
+		for( PluginDescriptor descr : registry.getPluginDescriptors() )
+		{
+			manifests.add(descr.getLocation());
+		}
+		for( PluginFragment fragment : registry.getPluginFragments() )
+		{
+			manifests.add(fragment.getLocation());
+		}
+		fresh.register(manifests.toArray(new URL[manifests.size()]));
+		assertEquals(step + ": incremental vs. new registry", dump(fresh), incremental); //$NON-NLS-1$
+		Set<String> connected = getConnectedExtensions(registry);
+		Set<String> expectedAdded = new TreeSet<String>(connected);
+		expectedAdded.removeAll(connectedExtensions);
+		Set<String> expectedRemoved = new TreeSet<String>(connectedExtensions);
+		expectedRemoved.removeAll(connected);
+		assertEquals(step + ": added extensions", expectedAdded, addedExtensions); //$NON-NLS-1$
+		assertEquals(step + ": removed extensions", expectedRemoved, removedExtensions); //$NON-NLS-1$
+		addedExtensions.clear();
+		removedExtensions.clear();
+		connectedExtensions = connected;
+	}
+
+	private static void resetAll(final PluginRegistry reg)
+	{
+		for( PluginDescriptor descr : reg.getPluginDescriptors() )
+		{
+			for( ExtensionPoint point : descr.getExtensionPoints() )
+			{
+				((ExtensionPointImpl) point).registryChanged();
+			}
+			for( Extension ext : descr.getExtensions() )
+			{
+				((ExtensionImpl) ext).registryChanged();
+			}
+		}
+	}
+
+	private static String dump(final PluginRegistry reg)
+	{
+		Set<String> lines = new TreeSet<String>();
+		for( PluginDescriptor descr : reg.getPluginDescriptors() )
+		{
+			lines.add("plugin " + descr.getUniqueId() //$NON-NLS-1$
+				+ " depending=" + ids(reg.getDependingPlugins(descr))); //$NON-NLS-1$
+			for( ExtensionPoint point : descr.getExtensionPoints() )
+			{
+				lines.add("point " + point.getUniqueId() //$NON-NLS-1$
+					+ " valid=" + point.isValid() //$NON-NLS-1$
+					+ " available=" + ids(point.getAvailableExtensions()) //$NON-NLS-1$
+					+ " connected=" + ids(point.getConnectedExtensions()) //$NON-NLS-1$
+					+ " descendants=" + ids(point.getDescendants()) //$NON-NLS-1$
+					+ " parameters=" + point.getParameterDefinitions().size()); //$NON-NLS-1$
+			}
+			for( Extension ext : descr.getExtensions() )
+			{
+				lines.add("extension " + ext.getUniqueId() //$NON-NLS-1$
+					+ " valid=" + ext.isValid()); //$NON-NLS-1$
+			}
+		}
+		StringBuilder result = new StringBuilder();
+		for( String line : lines )
+		{
+			result.append(line).append('\n');
+		}
+		return result.toString();
+	}
+
+	private static Set<String> getConnectedExtensions(final PluginRegistry reg)
+	{
+		Set<String> result = new TreeSet<String>();
+		for( PluginDescriptor descr : reg.getPluginDescriptors() )
+		{
+			for( ExtensionPoint point : descr.getExtensionPoints() )
+			{
+				for( Extension ext : point.getConnectedExtensions() )
+				{
+					result.add(ext.getUniqueId());
+				}
+			}
+		}
+		return result;
+	}
+
+	private static String ids(final Collection<? extends UniqueIdentity> objects)
+	{
+		Set<String> result = new TreeSet<String>();
+		for( UniqueIdentity obj : objects )
+		{
+			result.add(obj.getUniqueId());
+		}
+		return result.toString();
+	}
+
+	private URL getManifestUrl(final String name) throws IOException
+	{
+		File file = new File(tempFolder.getRoot(), name + "/plugin.xml"); //$NON-NLS-1$
+		if( !file.isFile() )
+		{
+			file = new File(tempFolder.getRoot(), name + "/plugin-fragment.xml"); //$NON-NLS-1$
+		}
+		return file.toURI().toURL();
+	}
+
+	private void writePlugin(final String name, final String id, final String version, final String body)
+		throws IOException
+	{
+		write(name + "/plugin.xml", String.format(DOCTYPE, "plugin") //$NON-NLS-1$ //$NON-NLS-2$
+			+ "<plugin id=\"" + id + "\" version=\"" + version + "\">" //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+			+ body + "</plugin>"); //$NON-NLS-1$
+	}
+
+	private void writeFragment(final String name, final String id, final String pluginId, final String body)
+		throws IOException
+	{
+		write(name + "/plugin-fragment.xml", String.format(DOCTYPE, "plugin-fragment") //$NON-NLS-1$ //$NON-NLS-2$
+			+ "<plugin-fragment id=\"" + id + "\" version=\"1.0\" plugin-id=\"" //$NON-NLS-1$ //$NON-NLS-2$
+			+ pluginId + "\">" + body + "</plugin-fragment>"); //$NON-NLS-1$ //$NON-NLS-2$
+	}
+
+	private void write(final String path, final String content) throws IOException
+	{
+		File file = new File(tempFolder.getRoot(), path);
+		file.getParentFile().mkdirs();
+		Files.write(file.toPath(), content.getBytes("UTF-8")); //$NON-NLS-1$
+	}
+}
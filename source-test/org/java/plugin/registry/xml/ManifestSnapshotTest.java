@@ -0,0 +1,431 @@
+/*****************************************************************************
+ * Java Plug-in Framework (JPF) Copyright (C) 2004-2007 Dmitry Olshansky This
+ * library is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version. This library is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser
+ * General Public License for more details. You should have received a copy of
+ * the GNU Lesser General Public License along with this library; if not, write
+ * to the Free Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA
+ * 02111-1307 USA
+ *****************************************************************************/
+package org.java.plugin.registry.xml;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.net.URL;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.java.plugin.registry.ExtensionMultiplicity;
+import org.java.plugin.registry.MatchingRule;
+import org.java.plugin.registry.ParameterMultiplicity;
+import org.java.plugin.registry.ParameterType;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests for {@link ManifestSnapshot}. Models are compared field by field with
+ * reflection, and test models are checked to have every field set to a
+ * non-default value, so fields added to the model later can't be silently
+ * lost by snapshot serialization.
+ *
+ * @version $Id$
+ */
+public final class ManifestSnapshotTest
+{
+	/**
+	 * Work folder for snapshot and manifest files.
+	 */
+	@Rule
+	public TemporaryFolder tempFolder = new TemporaryFolder();
+
+	private File snapshotFile;
+	private URL manifestUrl;
+
+	/**
+	 * Creates manifest file, that snapshot entries are stamped with.
+	 *
+	 * @throws IOException if file can't be created
+	 */
+	@Before
+	public void setUp() throws IOException
+	{
+		snapshotFile = new File(tempFolder.getRoot(), "snapshot/manifests.bin"); //$NON-NLS-1$
+		File manifestFile = tempFolder.newFile("plugin.xml"); //$NON-NLS-1$
+		Files.write(manifestFile.toPath(), "<plugin/>".getBytes("UTF-8")); //$NON-NLS-1$ //$NON-NLS-2$
+		manifestUrl = manifestFile.toURI().toURL();
+	}
+
+	/**
+	 * Plug-in descriptor model survives save and load unchanged.
+	 *
+	 * @throws Exception if test fails
+	 */
+	@Test
+	public void testPluginRoundTrip() throws Exception
+	{
+		ModelPluginDescriptor model = new ModelPluginDescriptor();
+		model.setClassName("test.TestPlugin"); //$NON-NLS-1$
+		fill(model);
+		assertRoundTrip(model);
+	}
+
+	/**
+	 * Plug-in fragment model survives save and load unchanged.
+	 *
+	 * @throws Exception if test fails
+	 */
+	@Test
+	public void testFragmentRoundTrip() throws Exception
+	{
+		ModelPluginFragment model = new ModelPluginFragment();
+		model.setPluginId("test.host"); //$NON-NLS-1$
+		model.setPluginVersion("2.0.1"); //$NON-NLS-1$
+		model.setMatchingRule(MatchingRule.GREATER_OR_EQUAL);
+		fill(model);
+		assertRoundTrip(model);
+	}
+
+	/**
+	 * Snapshot file with invalid lengths is discarded without huge
+	 * allocations, and it is rewritten on next save.
+	 *
+	 * @throws Exception if test fails
+	 */
+	@Test
+	public void testCorruptedFile() throws Exception
+	{
+		assertTrue(snapshotFile.getParentFile().mkdirs());
+		DataOutputStream out = new DataOutputStream(new FileOutputStream(snapshotFile));
+		try
+		{
+			out.writeInt(0x4A504653);
+			out.writeInt(1);
+			out.writeInt(1);
+			out.writeInt(Integer.MAX_VALUE - 8); // URL length
+		}
+		finally
+		{
+			out.close();
+		}
+		ManifestSnapshot snapshot = new ManifestSnapshot(snapshotFile);
+		snapshot.load();
+		assertNull(snapshot.get(manifestUrl));
+		snapshot.save();
+		ManifestSnapshot reloaded = new ManifestSnapshot(snapshotFile);
+		reloaded.load();
+		assertNull(reloaded.get(manifestUrl));
+		assertEquals(12, snapshotFile.length()); // header and zero count
+	}
+
+	/**
+	 * Entry that can't be restored, here because of unknown enum constant, is
+	 * reported as missing, so that manifest is parsed again, and it is dropped
+	 * from snapshot file.
+	 *
+	 * @throws Exception if test fails
+	 */
+	@Test
+	public void testStaleEntry() throws Exception
+	{
+		ModelPluginFragment model = new ModelPluginFragment();
+		model.setPluginId("test.host"); //$NON-NLS-1$
+		model.setMatchingRule(MatchingRule.EQUIVALENT);
+		model.setId("test.fragment"); //$NON-NLS-1$
+		ManifestSnapshot snapshot = new ManifestSnapshot(snapshotFile);
+		snapshot.put(manifestUrl, model);
+		snapshot.save();
+		byte[] data = Files.readAllBytes(snapshotFile.toPath());
+		byte[] rule = "EQUIVALENT".getBytes("UTF-8"); //$NON-NLS-1$ //$NON-NLS-2$
+		int pos = indexOf(data, rule);
+		assertTrue(pos != -1);
+		data[pos] = 'X';
+		Files.write(snapshotFile.toPath(), data);
+		ManifestSnapshot reloaded = new ManifestSnapshot(snapshotFile);
+		reloaded.load();
+		assertNull(reloaded.get(manifestUrl));
+		reloaded.save();
+		assertEquals(-1, indexOf(Files.readAllBytes(snapshotFile.toPath()), "XQUIVALENT" //$NON-NLS-1$
+			.getBytes("UTF-8"))); //$NON-NLS-1$
+	}
+
+	/**
+	 * Snapshot is written to a temporary file first, that doesn't remain in
+	 * snapshot folder.
+	 *
+	 * @throws Exception if test fails
+	 */
+	@Test
+	public void testAtomicSave() throws Exception
+	{
+		ModelPluginDescriptor model = new ModelPluginDescriptor();
+		model.setId("test.plugin"); //$NON-NLS-1$
+		ManifestSnapshot snapshot = new ManifestSnapshot(snapshotFile);
+		snapshot.put(manifestUrl, model);
+		snapshot.save();
+		snapshot.put(manifestUrl, model);
+		snapshot.save();
+		assertArrayEquals(new String[]{snapshotFile.getName()}, snapshotFile.getParentFile().list());
+	}
+
+	private void assertRoundTrip(final ModelPluginManifest model) throws Exception
+	{
+		model.setLocation(manifestUrl);
+		assertFilled(model, model.getClass().getSimpleName());
+		ManifestSnapshot snapshot = new ManifestSnapshot(snapshotFile);
+		snapshot.put(manifestUrl, model);
+		snapshot.save();
+		ManifestSnapshot reloaded = new ManifestSnapshot(snapshotFile);
+		reloaded.load();
+		ModelPluginManifest restored = reloaded.get(manifestUrl);
+		assertNotNull(restored);
+		assertModelEquals(model, restored, model.getClass().getSimpleName());
+	}
+
+	private static void fill(final ModelPluginManifest model)
+	{
+		model.setId("test.manifest"); //$NON-NLS-1$
+		model.setVersion("1.2.3.beta"); //$NON-NLS-1$
+		model.setVendor("vendor"); //$NON-NLS-1$
+		model.setDocsPath("docs"); //$NON-NLS-1$
+		model.setDocumentation(createDocumentation("manifest")); //$NON-NLS-1$
+		ModelAttribute attribute = new ModelAttribute();
+		attribute.setId("attr"); //$NON-NLS-1$
+		attribute.setValue("attr value"); //$NON-NLS-1$
+		attribute.setDocumentation(createDocumentation("attr")); //$NON-NLS-1$
+		ModelAttribute subAttribute = new ModelAttribute();
+		subAttribute.setId("sub-attr"); //$NON-NLS-1$
+		subAttribute.setValue("\u0437\u043d\u0430\u0447\u0435\u043d\u0438\u0435"); //$NON-NLS-1$
+		subAttribute.setDocumentation(createDocumentation("sub-attr")); //$NON-NLS-1$
+		subAttribute.getAttributes().add(createLeafAttribute());
+		attribute.getAttributes().add(subAttribute);
+		model.getAttributes().add(attribute);
+		ModelPrerequisite prerequisite = new ModelPrerequisite();
+		prerequisite.setId("import"); //$NON-NLS-1$
+		prerequisite.setPluginId("test.other"); //$NON-NLS-1$
+		prerequisite.setPluginVersion("0.9"); //$NON-NLS-1$
+		prerequisite.setMatchingRule(MatchingRule.EQUAL);
+		prerequisite.setDocumentation(createDocumentation("import")); //$NON-NLS-1$
+		prerequisite.setExported("true"); //$NON-NLS-1$
+		prerequisite.setOptional("true"); //$NON-NLS-1$
+		prerequisite.setReverseLookup("true"); //$NON-NLS-1$
+		model.getPrerequisites().add(prerequisite);
+		ModelLibrary library = new ModelLibrary();
+		library.setId("lib"); //$NON-NLS-1$
+		library.setPath("lib/test.jar"); //$NON-NLS-1$
+		library.setCodeLibrary("code"); //$NON-NLS-1$
+		library.setDocumentation(createDocumentation("lib")); //$NON-NLS-1$
+		library.setVersion("3.1"); //$NON-NLS-1$
+		library.getExports().add("test.*"); //$NON-NLS-1$
+		library.getExports().add("other.Class"); //$NON-NLS-1$
+		model.getLibraries().add(library);
+		ModelExtensionPoint point = new ModelExtensionPoint();
+		point.setId("point"); //$NON-NLS-1$
+		point.setParentPluginId("test.parent"); //$NON-NLS-1$
+		point.setParentPointId("parent-point"); //$NON-NLS-1$
+		point.setExtensionMultiplicity(ExtensionMultiplicity.ONE_PER_PLUGIN);
+		point.setDocumentation(createDocumentation("point")); //$NON-NLS-1$
+		ModelParameterDef paramDef = createParamDef("param-def"); //$NON-NLS-1$
+		ModelParameterDef subParamDef = createParamDef("sub-param-def"); //$NON-NLS-1$
+		subParamDef.getParamDefs().add(createParamDef("leaf-param-def")); //$NON-NLS-1$
+		subParamDef.getParamDefs().get(0).getParamDefs().add(createParamDef("last-param-def")); //$NON-NLS-1$
+		paramDef.getParamDefs().add(subParamDef);
+		point.getParamDefs().add(paramDef);
+		model.getExtensionPoints().add(point);
+		ModelExtension extension = new ModelExtension();
+		extension.setId("ext"); //$NON-NLS-1$
+		extension.setPluginId("test.parent"); //$NON-NLS-1$
+		extension.setPointId("parent-point"); //$NON-NLS-1$
+		extension.setDocumentation(createDocumentation("ext")); //$NON-NLS-1$
+		ModelParameter param = createParam("param"); //$NON-NLS-1$
+		ModelParameter subParam = createParam("sub-param"); //$NON-NLS-1$
+		subParam.getParams().add(createParam("leaf-param")); //$NON-NLS-1$
+		subParam.getParams().get(0).getParams().add(createParam("last-param")); //$NON-NLS-1$
+		param.getParams().add(subParam);
+		extension.getParams().add(param);
+		model.getExtensions().add(extension);
+	}
+
+	private static ModelDocumentation createDocumentation(final String prefix)
+	{
+		ModelDocumentation result = new ModelDocumentation();
+		result.setCaption(prefix + " caption"); //$NON-NLS-1$
+		result.setText(prefix + " text"); //$NON-NLS-1$
+		ModelDocumentationReference ref = new ModelDocumentationReference();
+		ref.setPath(prefix + "/ref.html"); //$NON-NLS-1$
+		ref.setCaption(prefix + " ref caption"); //$NON-NLS-1$
+		result.getReferences().add(ref);
+		return result;
+	}
+
+	private static ModelAttribute createLeafAttribute()
+	{
+		ModelAttribute result = new ModelAttribute();
+		result.setId("leaf-attr"); //$NON-NLS-1$
+		result.setValue("leaf value"); //$NON-NLS-1$
+		result.setDocumentation(createDocumentation("leaf-attr")); //$NON-NLS-1$
+		ModelAttribute last = new ModelAttribute();
+		last.setId("last-attr"); //$NON-NLS-1$
+		last.setValue("last value"); //$NON-NLS-1$
+		last.setDocumentation(createDocumentation("last-attr")); //$NON-NLS-1$
+		result.getAttributes().add(last);
+		return result;
+	}
+
+	private static ModelParameterDef createParamDef(final String id)
+	{
+		ModelParameterDef result = new ModelParameterDef();
+		result.setId(id);
+		result.setMultiplicity(ParameterMultiplicity.ONE_OR_MORE);
+		result.setType(ParameterType.EXTENSION_POINT_ID);
+		result.setCustomData(id + " custom data"); //$NON-NLS-1$
+		result.setDefaultValue(id + " default"); //$NON-NLS-1$
+		result.setDocumentation(createDocumentation(id));
+		return result;
+	}
+
+	private static ModelParameter createParam(final String id)
+	{
+		ModelParameter result = new ModelParameter();
+		result.setId(id);
+		result.setValue(id + " value"); //$NON-NLS-1$
+		result.setDocumentation(createDocumentation(id));
+		return result;
+	}
+
+	/**
+	 * Checks that every field of given model object and of objects it refers
+	 * to is set: no <code>null</code> values, no empty lists and no
+	 * <code>false</code> flags. Only lists of nested objects of the same
+	 * class, like sub-parameters, may be empty, so that nesting ends.
+	 */
+	private static void assertFilled(final Object model, final String path) throws IllegalAccessException
+	{
+		for( Field field : getFields(model.getClass()) )
+		{
+			String fieldPath = path + '.' + field.getName();
+			Object value = field.get(model);
+			assertNotNull(fieldPath, value);
+			if( value instanceof Boolean )
+			{
+				assertTrue(fieldPath, ((Boolean) value).booleanValue());
+			}
+			else if( value instanceof List )
+			{
+				List<?> list = (List<?>) value;
+				Type elementType = ((ParameterizedType) field.getGenericType()).getActualTypeArguments()[0];
+				assertFalse(fieldPath, list.isEmpty() && (elementType != model.getClass()));
+				for( int i = 0; i < list.size(); i++ )
+				{
+					if( isModel(list.get(i)) )
+					{
+						assertFilled(list.get(i), fieldPath + '[' + i + ']');
+					}
+				}
+			}
+			else if( isModel(value) )
+			{
+				assertFilled(value, fieldPath);
+			}
+		}
+	}
+
+	private static void assertModelEquals(final Object expected, final Object actual, final String path)
+		throws IllegalAccessException
+	{
+		assertNotNull(path, actual);
+		assertEquals(path, expected.getClass(), actual.getClass());
+		for( Field field : getFields(expected.getClass()) )
+		{
+			String fieldPath = path + '.' + field.getName();
+			Object expectedValue = field.get(expected);
+			Object actualValue = field.get(actual);
+			if( expectedValue instanceof List )
+			{
+				List<?> expectedList = (List<?>) expectedValue;
+				List<?> actualList = (List<?>) actualValue;
+				assertEquals(fieldPath + ".size", expectedList.size(), actualList.size()); //$NON-NLS-1$
+				for( int i = 0; i < expectedList.size(); i++ )
+				{
+					assertValueEquals(expectedList.get(i), actualList.get(i), fieldPath + '[' + i + ']');
+				}
+			}
+			else
+			{
+				assertValueEquals(expectedValue, actualValue, fieldPath);
+			}
+		}
+	}
+
+	private static void assertValueEquals(final Object expected, final Object actual, final String path)
+		throws IllegalAccessException
+	{
+		if( isModel(expected) )
+		{
+			assertModelEquals(expected, actual, path);
+		}
+		else
+		{
+			assertEquals(path, expected, actual);
+		}
+	}
+
+	private static boolean isModel(final Object value)
+	{
+		return (value != null) && value.getClass().getSimpleName().startsWith("Model") //$NON-NLS-1$
+			&& (value.getClass().getPackage() == ManifestSnapshotTest.class.getPackage());
+	}
+
+	private static List<Field> getFields(final Class<?> cls)
+	{
+		List<Field> result = new ArrayList<Field>();
+		for( Class<?> c = cls; c != Object.class; c = c.getSuperclass() )
+		{
+			for( Field field : c.getDeclaredFields() )
+			{
+				if( Modifier.isStatic(field.getModifiers()) || field.isSynthetic() )
+				{
+					continue;
+				}
+				field.setAccessible(true);
+				result.add(field);
+			}
+		}
+		return result;
+	}
+
+	private static int indexOf(final byte[] data, final byte[] pattern)
+	{
+		outer: for( int i = 0; i <= data.length - pattern.length; i++ )
+		{
+			for( int j = 0; j < pattern.length; j++ )
+			{
+				if( data[i + j] != pattern[j] )
+				{
+					continue outer;
+				}
+			}
+			return i;
+		}
+		return -1;
+	}
+}
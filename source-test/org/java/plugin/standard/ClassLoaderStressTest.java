@@ -0,0 +1,342 @@
+/*****************************************************************************
+ * Java Plug-in Framework (JPF) Copyright (C) 2004-2007 Dmitry Olshansky This
+ * library is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version. This library is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser
+ * General Public License for more details. You should have received a copy of
+ * the GNU Lesser General Public License along with this library; if not, write
+ * to the Free Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA
+ * 02111-1307 USA
+ *****************************************************************************/
+package org.java.plugin.standard;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import javax.tools.JavaCompiler;
+import javax.tools.ToolProvider;
+
+import org.java.plugin.ObjectFactory;
+import org.java.plugin.PluginClassLoader;
+import org.java.plugin.PluginManager;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Stress test for concurrent class loading by plug-in class loaders. Two
+ * generated plug-ins import each other and every class of one plug-in
+ * extends a class of the other one, so defining a class in one class loader
+ * requires loading it's super-class through the other. Many threads load all
+ * classes, in random order and through both class loaders, at the same time.
+ * <p>
+ * The test fails if any look-up fails (duplicate class definition is reported
+ * by JVM as <code>LinkageError</code>), if the same class name is resolved
+ * to different classes or to a class defined by a wrong plug-in, or if
+ * threads don't finish in time, in which case deadlocked threads are
+ * reported. Plug-in classes are compiled with system Java compiler, so JDK is
+ * required.
+ *
+ * @version $Id$
+ */
+public final class ClassLoaderStressTest
+{
+	private static final int PACKAGES = 10;
+	private static final int CLASSES = 10;
+	private static final int THREADS = 16;
+	private static final int ROUNDS = 10;
+	private static final long TIMEOUT = 60; // seconds
+
+	private static final String[] PLUGINS = {"a", "b"}; //$NON-NLS-1$ //$NON-NLS-2$
+
+	/**
+	 * Work folder for generated plug-ins.
+	 */
+	@Rule
+	public final TemporaryFolder tempFolder = new TemporaryFolder();
+
+	/**
+	 * @throws Exception if plug-ins can't be prepared
+	 */
+	@Test
+	public void testConcurrentClassLoading() throws Exception
+	{
+		File folder = tempFolder.getRoot();
+		createPlugins(folder);
+		List<String> failures = new ArrayList<String>();
+		for( int round = 0; (round < ROUNDS) && failures.isEmpty(); round++ )
+		{
+			runRound(folder, round, failures);
+		}
+		assertEquals(String.valueOf(failures), 0, failures.size());
+	}
+
+	private static void runRound(final File folder, final int round, final List<String> failures)
+		throws Exception
+	{
+		PluginManager manager = ObjectFactory.newInstance().createManager();
+		try
+		{
+			PluginManager.PluginLocation[] locations = new PluginManager.PluginLocation[PLUGINS.length];
+			for( int i = 0; i < PLUGINS.length; i++ )
+			{
+				locations[i] = StandardPluginLocation.create(new File(folder, PLUGINS[i]));
+			}
+			manager.publishPlugins(locations);
+			final PluginClassLoader[] loaders = new PluginClassLoader[PLUGINS.length];
+			for( int i = 0; i < PLUGINS.length; i++ )
+			{
+				loaders[i] = manager.getPluginClassLoader(manager.getRegistry().getPluginDescriptor(
+					getPluginId(i)));
+			}
+			final List<String> names = new ArrayList<String>();
+			for( int i = 0; i < PLUGINS.length; i++ )
+			{
+				for( int p = 0; p < PACKAGES; p++ )
+				{
+					for( int c = 0; c < CLASSES; c++ )
+					{
+						names.add(getClassName(i, p, c));
+					}
+				}
+			}
+			final ConcurrentHashMap<String, Class<?>> classes = new ConcurrentHashMap<String, Class<?>>();
+			final List<String> errors = Collections.synchronizedList(new ArrayList<String>());
+			final CountDownLatch start = new CountDownLatch(1);
+			ExecutorService executor = Executors.newFixedThreadPool(THREADS, new ThreadFactory()
+			{
+				private int count;
+
+				public synchronized Thread newThread(final Runnable r)
+				{
+					Thread result = new Thread(r, "jpf-stress-test-" + (++count)); //$NON-NLS-1$
+					result.setDaemon(true);
+					return result;
+				}
+			});
+			List<Future<?>> futures = new ArrayList<Future<?>>();
+			for( int t = 0; t < THREADS; t++ )
+			{
+				final Random random = new Random(round * THREADS + t);
+				final List<String> order = new ArrayList<String>(names);
+				Collections.shuffle(order, random);
+				futures.add(executor.submit(new Runnable()
+				{
+					public void run()
+					{
+						try
+						{
+							start.await();
+						}
+						catch( InterruptedException ie )
+						{
+							return;
+						}
+						for( String name : order )
+						{
+							loadClass(loaders, random.nextInt(loaders.length), name, classes, errors);
+						}
+					}
+				}));
+			}
+			start.countDown();
+			long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(TIMEOUT);
+			try
+			{
+				for( Future<?> future : futures )
+				{
+					future.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+				}
+			}
+			catch( TimeoutException te )
+			{
+				failures.add("round " + round //$NON-NLS-1$
+					+ ": class loading threads didn't finish in " + TIMEOUT //$NON-NLS-1$
+					+ " seconds" + getDeadlocks()); //$NON-NLS-1$
+			}
+			catch( ExecutionException ee )
+			{
+				failures.add("round " + round + ": " + ee.getCause()); //$NON-NLS-1$ //$NON-NLS-2$
+			}
+			executor.shutdownNow();
+			for( String error : errors )
+			{
+				failures.add("round " + round + ": " + error); //$NON-NLS-1$ //$NON-NLS-2$
+			}
+			if( failures.isEmpty() && (classes.size() != names.size()) )
+			{
+				failures.add("round " + round + ": " + classes.size() //$NON-NLS-1$ //$NON-NLS-2$
+					+ " classes loaded, expected " + names.size()); //$NON-NLS-1$
+			}
+		}
+		finally
+		{
+			manager.shutdown();
+		}
+	}
+
+	static void loadClass(final PluginClassLoader[] loaders, final int loaderIdx,
+		final String name, final ConcurrentHashMap<String, Class<?>> classes,
+		final List<String> errors)
+	{
+		Class<?> cls;
+		try
+		{
+			cls = loaders[loaderIdx].loadClass(name);
+		}
+		catch( Throwable t )
+		{
+			// duplicate class definition ends up here as LinkageError
+			errors.add("failed loading class " + name //$NON-NLS-1$
+				+ " through plug-in " + getPluginId(loaderIdx) + " - " + t); //$NON-NLS-1$ //$NON-NLS-2$
+			return;
+		}
+		String expectedId = getPluginId(getPluginIndex(name));
+		if( !(cls.getClassLoader() instanceof PluginClassLoader)
+			|| !expectedId.equals(((PluginClassLoader) cls.getClassLoader()).getPluginDescriptor()
+				.getId()) )
+		{
+			errors.add("class " + name + " defined by " + cls.getClassLoader() //$NON-NLS-1$ //$NON-NLS-2$
+				+ ", expected plug-in " + expectedId); //$NON-NLS-1$
+		}
+		Class<?> prev = classes.putIfAbsent(name, cls);
+		if( (prev != null) && (prev != cls) )
+		{
+			errors.add("class " + name + " has been defined more than once"); //$NON-NLS-1$ //$NON-NLS-2$
+		}
+	}
+
+	private static String getDeadlocks()
+	{
+		ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		long[] ids = bean.findDeadlockedThreads();
+		if( ids == null )
+		{
+			return ", no deadlock detected"; //$NON-NLS-1$
+		}
+		StringBuilder result = new StringBuilder(", deadlocked threads:"); //$NON-NLS-1$
+		for( ThreadInfo info : bean.getThreadInfo(ids, true, true) )
+		{
+			if( info != null )
+			{
+				result.append(System.getProperty("line.separator")).append(info); //$NON-NLS-1$
+			}
+		}
+		return result.toString();
+	}
+
+	static String getPluginId(final int pluginIdx)
+	{
+		return "stress." + PLUGINS[pluginIdx]; //$NON-NLS-1$
+	}
+
+	static int getPluginIndex(final String className)
+	{
+		return className.startsWith("stress." + PLUGINS[0] + '.') ? 0 : 1; //$NON-NLS-1$
+	}
+
+	static String getClassName(final int pluginIdx, final int pkg, final int cls)
+	{
+		return "stress." + PLUGINS[pluginIdx] //$NON-NLS-1$
+			+ ".p" + pkg + ".C" + cls; //$NON-NLS-1$ //$NON-NLS-2$
+	}
+
+	/**
+	 * Generates and compiles both plug-ins. Class <code>C(n)</code> of one
+	 * plug-in extends class <code>C(n-1)</code> of the other one.
+	 */
+	private static void createPlugins(final File folder) throws IOException
+	{
+		File srcFolder = new File(folder, "src"); //$NON-NLS-1$
+		List<String> sources = new ArrayList<String>();
+		for( int i = 0; i < PLUGINS.length; i++ )
+		{
+			int other = (i + 1) % PLUGINS.length;
+			write(new File(new File(folder, PLUGINS[i]), "plugin.xml"), //$NON-NLS-1$
+				"<?xml version=\"1.0\" ?>\n" //$NON-NLS-1$
+					+ "<!DOCTYPE plugin PUBLIC \"-//JPF//Java Plug-in Manifest 1.0\"" //$NON-NLS-1$
+					+ " \"http://jpf.sourceforge.net/plugin_1_0.dtd\">\n" //$NON-NLS-1$
+					+ "<plugin id=\"" + getPluginId(i) + "\" version=\"1.0.0\">\n" //$NON-NLS-1$ //$NON-NLS-2$
+					+ " <requires><import plugin-id=\"" + getPluginId(other) //$NON-NLS-1$
+					+ "\"/></requires>\n" //$NON-NLS-1$
+					+ " <runtime><library id=\"classes\" path=\"classes/\" type=\"code\">" //$NON-NLS-1$
+					+ "<export prefix=\"*\"/></library></runtime>\n" //$NON-NLS-1$
+					+ "</plugin>\n"); //$NON-NLS-1$
+			for( int p = 0; p < PACKAGES; p++ )
+			{
+				for( int c = 0; c < CLASSES; c++ )
+				{
+					String name = getClassName(i, p, c);
+					File file = new File(srcFolder, name.replace('.', '/') + ".java"); //$NON-NLS-1$
+					write(file, "package " + name.substring(0, name.lastIndexOf('.')) + ";\n" //$NON-NLS-1$ //$NON-NLS-2$
+						+ "public class C" + c //$NON-NLS-1$
+						+ ((c == 0) ? "" : " extends " + getClassName(other, p, c - 1)) //$NON-NLS-1$ //$NON-NLS-2$
+						+ " {\n}\n"); //$NON-NLS-1$
+					sources.add(file.getAbsolutePath());
+				}
+			}
+		}
+		JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+		assertTrue("Java compiler not available, JDK is required", compiler != null); //$NON-NLS-1$
+		File classesFolder = new File(folder, "classes"); //$NON-NLS-1$
+		classesFolder.mkdirs();
+		List<String> compilerArgs = new ArrayList<String>();
+		compilerArgs.add("-d"); //$NON-NLS-1$
+		compilerArgs.add(classesFolder.getAbsolutePath());
+		compilerArgs.addAll(sources);
+		ByteArrayOutputStream log = new ByteArrayOutputStream();
+		int rc = compiler.run(null, log, log, compilerArgs.toArray(new String[compilerArgs.size()]));
+		assertEquals("failed compiling plug-in classes: " + log, 0, rc); //$NON-NLS-1$
+		// move classes of each plug-in to it's code library
+		for( String plugin : PLUGINS )
+		{
+			File dest = new File(folder, plugin + "/classes/stress"); //$NON-NLS-1$
+			dest.mkdirs();
+			File src = new File(classesFolder, "stress/" + plugin); //$NON-NLS-1$
+			if( !src.renameTo(new File(dest, plugin)) )
+			{
+				throw new IOException("can't move " + src + " to " + dest); //$NON-NLS-1$ //$NON-NLS-2$
+			}
+		}
+	}
+
+	private static void write(final File file, final String text) throws IOException
+	{
+		file.getParentFile().mkdirs();
+		Writer out = new OutputStreamWriter(new FileOutputStream(file, false), "UTF-8"); //$NON-NLS-1$
+		try
+		{
+			out.write(text);
+		}
+		finally
+		{
+			out.close();
+		}
+	}
+}
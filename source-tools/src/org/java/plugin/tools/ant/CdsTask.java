@@ -0,0 +1,283 @@
+/*****************************************************************************
+ * Java Plug-in Framework (JPF)
+ * Copyright (C) 2004-2007 Dmitry Olshansky
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ *****************************************************************************/
+package org.java.plugin.tools.ant;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.URL;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.StringTokenizer;
+
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.taskdefs.Execute;
+import org.apache.tools.ant.taskdefs.LogStreamHandler;
+import org.apache.tools.ant.types.Path;
+import org.apache.tools.ant.types.Reference;
+import org.java.plugin.registry.Library;
+import org.java.plugin.registry.PluginDescriptor;
+import org.java.plugin.util.IoUtil;
+
+/**
+ * The Ant task to create JVM class data sharing archive for classes of
+ * plug-in set. Class list should be recorded during a training run with
+ * <code>cdsClassListFile</code> parameter of
+ * <code>StandardPluginLifecycleHandler</code>. Entries of that list, that
+ * refer to JAR files which are not code libraries of given plug-ins, are
+ * removed before the archive is dumped with <code>java -Xshare:dump</code>.
+ * Created archive is used with <code>-XX:SharedArchiveFile</code> JVM option
+ * and the same application class path.
+ * @version $Id$
+ */
+public final class CdsTask extends BaseJpfTask {
+    private File classList;
+    private File archive;
+    private String jvm;
+    private Path classpath;
+
+    /**
+     * @param aClassList class list file, recorded during training run
+     */
+    public void setClassList(final File aClassList) {
+        this.classList = aClassList;
+    }
+
+    /**
+     * @param anArchive class data sharing archive file to create
+     */
+    public void setArchive(final File anArchive) {
+        this.archive = anArchive;
+    }
+
+    /**
+     * @param aJvm java executable to dump archive with, by default the one
+     *             running Ant is used
+     */
+    public void setJvm(final String aJvm) {
+        this.jvm = aJvm;
+    }
+
+    /**
+     * @param aClasspath application class path, the same as used at run time
+     */
+    public void setClasspath(final Path aClasspath) {
+        createClasspath().append(aClasspath);
+    }
+
+    /**
+     * @param ref reference to application class path
+     */
+    public void setClasspathRef(final Reference ref) {
+        createClasspath().setRefid(ref);
+    }
+
+    /**
+     * @return application class path to be configured
+     */
+    public Path createClasspath() {
+        if (classpath == null) {
+            classpath = new Path(getProject());
+        }
+        return classpath.createPath();
+    }
+
+    /**
+     * @see org.apache.tools.ant.Task#execute()
+     */
+    @Override
+    public void execute() throws BuildException {
+        if (classList == null) {
+            throw new BuildException("classlist attribute must be set!", //$NON-NLS-1$
+                    getLocation());
+        }
+        if (archive == null) {
+            throw new BuildException("archive attribute must be set!", //$NON-NLS-1$
+                    getLocation());
+        }
+        if (!classList.isFile()) {
+            throw new BuildException("class list file " + classList //$NON-NLS-1$
+                    + " does not exist!", getLocation()); //$NON-NLS-1$
+        }
+        initRegistry(true);
+        Set<String> jars = collectJarLibraries();
+        File filteredList;
+        try {
+            File folder = archive.getAbsoluteFile().getParentFile();
+            if (!folder.isDirectory() && !folder.mkdirs()) {
+                throw new BuildException("can't create folder " + folder, //$NON-NLS-1$
+                        getLocation());
+            }
+            filteredList = File.createTempFile("jpf-cds", ".lst", folder); //$NON-NLS-1$ //$NON-NLS-2$
+            filterClassList(jars, filteredList);
+        } catch (IOException ioe) {
+            throw new BuildException("can't process class list " + classList, //$NON-NLS-1$
+                    ioe, getLocation());
+        }
+        try {
+            dump(filteredList);
+        } finally {
+            filteredList.delete();
+        }
+        log("Class data sharing archive created in file " + archive); //$NON-NLS-1$
+    }
+
+    private Set<String> collectJarLibraries() {
+        Set<String> result = new HashSet<String>();
+        for (PluginDescriptor descr : getRegistry().getPluginDescriptors()) {
+            for (Library lib : descr.getLibraries()) {
+                if (!lib.isCodeLibrary()) {
+                    continue;
+                }
+                URL url = getPathResolver().resolvePath(lib, lib.getPath());
+                File file = IoUtil.url2file(url);
+                if ((file != null) && file.isFile()) {
+                    result.add(file.getAbsolutePath());
+                } else {
+                    log("Classes of library " + lib.getUniqueId() //$NON-NLS-1$
+                            + " can't be archived as it is not a local JAR" //$NON-NLS-1$
+                            + " file, URL - " + url, Project.MSG_WARN); //$NON-NLS-1$
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Copies class list, leaving out classes from unknown JAR files and
+     * classes that refer to such classes.
+     */
+    private void filterClassList(final Set<String> jars, final File file)
+            throws IOException {
+        Set<String> removedIds = new HashSet<String>();
+        int count = 0;
+        int removed = 0;
+        BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new FileInputStream(classList), "UTF-8")); //$NON-NLS-1$
+        try {
+            Writer writer = new OutputStreamWriter(
+                    new FileOutputStream(file, false), "UTF-8"); //$NON-NLS-1$
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if ((line.trim().length() == 0) || line.startsWith("#")) { //$NON-NLS-1$
+                        continue;
+                    }
+                    count++;
+                    if (isAccepted(line, jars, removedIds)) {
+                        writer.write(line);
+                        writer.write('\n');
+                    } else {
+                        removed++;
+                    }
+                }
+            } finally {
+                writer.close();
+            }
+        } finally {
+            reader.close();
+        }
+        log("Class list processed, classes: " + count //$NON-NLS-1$
+                + ", removed: " + removed, //$NON-NLS-1$
+                (removed > 0) ? Project.MSG_WARN : Project.MSG_INFO);
+    }
+
+    private boolean isAccepted(final String line, final Set<String> jars,
+            final Set<String> removedIds) {
+        String id = null;
+        String source = null;
+        List<String> refs = new LinkedList<String>();
+        String key = null;
+        for (StringTokenizer st = new StringTokenizer(line, " "); //$NON-NLS-1$
+                st.hasMoreTokens();) {
+            String token = st.nextToken();
+            if (token.endsWith(":")) { //$NON-NLS-1$
+                key = token;
+                if ("source:".equals(key)) { //$NON-NLS-1$
+                    // source path may contain spaces
+                    source = line.substring(line.indexOf(" source: ") + 9); //$NON-NLS-1$
+                    break;
+                }
+            } else if ("id:".equals(key)) { //$NON-NLS-1$
+                id = token;
+            } else if ("super:".equals(key) //$NON-NLS-1$
+                    || "interfaces:".equals(key)) { //$NON-NLS-1$
+                refs.add(token);
+            }
+        }
+        boolean result = (source == null)
+            || jars.contains(new File(source).getAbsolutePath());
+        if (result) {
+            for (String ref : refs) {
+                if (removedIds.contains(ref)) {
+                    result = false;
+                    break;
+                }
+            }
+        }
+        if (!result) {
+            if (id != null) {
+                removedIds.add(id);
+            }
+            if (getVerbose()) {
+                log("Removed class list entry: " + line); //$NON-NLS-1$
+            }
+        }
+        return result;
+    }
+
+    private void dump(final File list) {
+        List<String> cmd = new LinkedList<String>();
+        cmd.add((jvm != null) ? jvm : new File(System.getProperty("java.home"), //$NON-NLS-1$
+                "bin" + File.separator + "java").getAbsolutePath()); //$NON-NLS-1$ //$NON-NLS-2$
+        cmd.add("-Xshare:dump"); //$NON-NLS-1$
+        cmd.add("-XX:SharedClassListFile=" + list.getAbsolutePath()); //$NON-NLS-1$
+        cmd.add("-XX:SharedArchiveFile=" + archive.getAbsolutePath()); //$NON-NLS-1$
+        if ((classpath != null) && (classpath.size() > 0)) {
+            cmd.add("-cp"); //$NON-NLS-1$
+            cmd.add(classpath.toString());
+        }
+        if (getVerbose()) {
+            log("Running " + cmd); //$NON-NLS-1$
+        }
+        Execute exe = new Execute(new LogStreamHandler(this,
+                Project.MSG_VERBOSE, Project.MSG_WARN));
+        exe.setAntRun(getProject());
+        exe.setCommandline(cmd.toArray(new String[cmd.size()]));
+        int rc;
+        try {
+            rc = exe.execute();
+        } catch (IOException ioe) {
+            throw new BuildException("can't run " + cmd.get(0), ioe, //$NON-NLS-1$
+                    getLocation());
+        }
+        if (Execute.isFailure(rc)) {
+            throw new BuildException("class data sharing archive dump failed," //$NON-NLS-1$
+                    + " exit code - " + rc, getLocation()); //$NON-NLS-1$
+        }
+    }
+}
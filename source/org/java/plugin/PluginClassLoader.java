@@ -28,6 +28,12 @@ import org.java.plugin.registry.PluginDescriptor;
  */
 public abstract class PluginClassLoader extends URLClassLoader
 {
+	static
+	{
+		// allows sub-classes to be registered as parallel capable too
+		registerAsParallelCapable();
+	}
+
 	private final PluginManager manager;
 	private final PluginDescriptor descriptor;
 
@@ -16,7 +16,12 @@ package org.java.plugin;
 import java.net.URL;
 import java.security.AccessController;
 import java.security.PrivilegedAction;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 
 import org.java.plugin.registry.Identity;
 import org.java.plugin.registry.PluginDescriptor;
@@ -281,6 +286,86 @@ public abstract class PluginManager
 	 */
 	public abstract void unregisterListener(final EventListener listener);
 
+	/**
+	 * Loads, but not initializes, given classes with class loader of plug-in
+	 * with given ID. This method doesn't activate plug-in. Classes that can't
+	 * be loaded are reported in returned map, this method never throws class
+	 * loading errors. This implementation loads classes one by one in current
+	 * thread.
+	 *
+	 * @param pluginId plug-in ID
+	 * @param classNames names of classes to be loaded
+	 * @return map from name of class that failed to load to the cause of
+	 *         failure, empty map if all classes have been loaded
+	 */
+	public Map<String, Throwable> preloadClasses(final String pluginId,
+		final Collection<String> classNames)
+	{
+		Map<String, Throwable> result = new HashMap<String, Throwable>();
+		ClassLoader cl = getPreloadClassLoader(pluginId);
+		for( String className : classNames )
+		{
+			try
+			{
+				Class.forName(className, false, cl);
+			}
+			catch( ClassNotFoundException cnfe )
+			{
+				result.put(className, cnfe);
+			}
+			catch( LinkageError le )
+			{
+				result.put(className, le);
+			}
+			catch( RuntimeException re )
+			{
+				result.put(className, re);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Asynchronous variant of {@link #preloadClasses(String, Collection)}.
+	 * This implementation loads classes in current thread and returns already
+	 * completed task.
+	 *
+	 * @param pluginId plug-in ID
+	 * @param classNames names of classes to be loaded
+	 * @return task that provides map from name of class that failed to load to
+	 *         the cause of failure
+	 */
+	public Future<Map<String, Throwable>> preloadClassesAsync(final String pluginId,
+		final Collection<String> classNames)
+	{
+		final Map<String, Throwable> failures = preloadClasses(pluginId, classNames);
+		FutureTask<Map<String, Throwable>> result = new FutureTask<Map<String, Throwable>>(
+			new Callable<Map<String, Throwable>>()
+			{
+				public Map<String, Throwable> call()
+				{
+					return failures;
+				}
+			});
+		result.run();
+		return result;
+	}
+
+	/**
+	 * @param pluginId plug-in ID
+	 * @return class loader of plug-in with given ID
+	 * @throws IllegalArgumentException if there is no such plug-in
+	 */
+	protected final PluginClassLoader getPreloadClassLoader(final String pluginId)
+	{
+		if( !getRegistry().isPluginDescriptorAvailable(pluginId) )
+		{
+			throw new IllegalArgumentException("unknown plug-in ID " //$NON-NLS-1$
+				+ pluginId);
+		}
+		return getPluginClassLoader(getRegistry().getPluginDescriptor(pluginId));
+	}
+
 	// Delegating methods
 
 	/**
@@ -0,0 +1,115 @@
+/*****************************************************************************
+ * Java Plug-in Framework (JPF) Copyright (C) 2004-2007 Dmitry Olshansky This
+ * library is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version. This library is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser
+ * General Public License for more details. You should have received a copy of
+ * the GNU Lesser General Public License along with this library; if not, write
+ * to the Free Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA
+ * 02111-1307 USA
+ *****************************************************************************/
+package org.java.plugin.registry.xml;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.java.plugin.registry.PluginDescriptor;
+import org.java.plugin.registry.PluginPrerequisite;
+
+/**
+ * Reverse index of plug-in prerequisites: maps plug-in ID to ID's of
+ * registered plug-ins, that declare it as prerequisite. Prerequisite versions
+ * are not taken into account here, as they should be checked against
+ * currently registered plug-ins. Index is updated together with the set of
+ * registered plug-ins and is not thread safe, like the registry itself.
+ *
+ * @version $Id$
+ */
+final class DependencyIndex
+{
+	private final Map<String, Set<String>> dependents = new HashMap<String, Set<String>>();
+	private final Map<String, Set<String>> prerequisites = new HashMap<String, Set<String>>();
+
+	/**
+	 * Adds prerequisites of given plug-in (including those contributed by
+	 * fragments) to this index.
+	 *
+	 * @param descr registered plug-in descriptor
+	 */
+	void add(final PluginDescriptor descr)
+	{
+		Set<String> ids = new HashSet<String>();
+		for( PluginPrerequisite pre : descr.getPrerequisites() )
+		{
+			if( !ids.add(pre.getPluginId()) )
+			{
+				continue;
+			}
+			Set<String> set = dependents.get(pre.getPluginId());
+			if( set == null )
+			{
+				set = new HashSet<String>();
+				dependents.put(pre.getPluginId(), set);
+			}
+			set.add(descr.getId());
+		}
+		prerequisites.put(descr.getId(), ids);
+	}
+
+	/**
+	 * Removes everything, that has been added for plug-in with given ID.
+	 *
+	 * @param pluginId plug-in ID
+	 */
+	void remove(final String pluginId)
+	{
+		Set<String> ids = prerequisites.remove(pluginId);
+		if( ids == null )
+		{
+			return;
+		}
+		for( String id : ids )
+		{
+			Set<String> set = dependents.get(id);
+			if( set == null )
+			{
+				continue;
+			}
+			set.remove(pluginId);
+			if( set.isEmpty() )
+			{
+				dependents.remove(id);
+			}
+		}
+	}
+
+	/**
+	 * Re-indexes given plug-in after fragments have been added to or removed
+	 * from it.
+	 *
+	 * @param descr registered plug-in descriptor
+	 */
+	void update(final PluginDescriptor descr)
+	{
+		remove(descr.getId());
+		add(descr);
+	}
+
+	/**
+	 * @param pluginId plug-in ID
+	 * @return ID's of registered plug-ins, that declare given plug-in as
+	 *         prerequisite
+	 */
+	Collection<String> getDependents(final String pluginId)
+	{
+		Set<String> result = dependents.get(pluginId);
+		return (result != null) ? result : Collections.<String> emptySet();
+	}
+}
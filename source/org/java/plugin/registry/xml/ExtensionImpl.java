@@ -325,6 +325,10 @@ final class ExtensionImpl extends PluginElementImpl<Extension> implements Extens
 	void registryChanged()
 	{
 		isValid = null;
+		for( Parameter param : parameters )
+		{
+			((ParameterImpl) param).registryChanged();
+		}
 	}
 
 	private class ParameterImpl extends PluginElementImpl<Parameter> implements Parameter
@@ -498,6 +502,21 @@ final class ExtensionImpl extends PluginElementImpl<Extension> implements Extens
 			return (modelParam.getValue() != null) ? modelParam.getValue() : ""; //$NON-NLS-1$
 		}
 
+		/**
+		 * Forgets parsed value and detected definition, as they may refer
+		 * to registry objects, that have been changed.
+		 */
+		void registryChanged()
+		{
+			valueParser = null;
+			definition = null;
+			definitionDetected = false;
+			for( Parameter param : subParameters )
+			{
+				((ParameterImpl) param).registryChanged();
+			}
+		}
+
 		boolean isValid()
 		{
 			if( valueParser != null )
@@ -0,0 +1,257 @@
+/*****************************************************************************
+ * Java Plug-in Framework (JPF) Copyright (C) 2004-2007 Dmitry Olshansky This
+ * library is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version. This library is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser
+ * General Public License for more details. You should have received a copy of
+ * the GNU Lesser General Public License along with this library; if not, write
+ * to the Free Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA
+ * 02111-1307 USA
+ *****************************************************************************/
+package org.java.plugin.registry.xml;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.java.plugin.registry.Extension;
+import org.java.plugin.registry.Extension.Parameter;
+import org.java.plugin.registry.ExtensionPoint;
+import org.java.plugin.registry.PluginDescriptor;
+import org.java.plugin.registry.PluginRegistry;
+
+/**
+ * Index of extensions by extension point they extend and of extension points
+ * by their parent point, for all registered plug-ins. Extensions are also
+ * indexed by plug-in ID's their parameter values may refer to, as plug-in,
+ * extension point or extension ID's, regardless of parameter types, which are
+ * known only when extended point is registered. Points are referred by
+ * their unique ID's, so extensions and child points are found even if
+ * referred point is not registered. Index is updated together with the set of
+ * registered plug-ins and is not thread safe, like the registry itself.
+ *
+ * @version $Id$
+ */
+final class ExtensionIndex
+{
+	private final PluginRegistry registry;
+	private final Map<String, List<Extension>> extensionsByPoint = new HashMap<String, List<Extension>>();
+	private final Map<String, List<ExtensionPoint>> pointsByParent = new HashMap<String, List<ExtensionPoint>>();
+	private final Map<String, List<Extension>> extensionsByReference = new HashMap<String, List<Extension>>();
+	private final Map<String, Collection<Extension>> pluginExtensions = new HashMap<String, Collection<Extension>>();
+	private final Map<String, Collection<ExtensionPoint>> pluginPoints = new HashMap<String, Collection<ExtensionPoint>>();
+
+	ExtensionIndex(final PluginRegistry aRegistry)
+	{
+		registry = aRegistry;
+	}
+
+	/**
+	 * Adds extensions and extension points of given plug-in (including those
+	 * contributed by fragments) to this index.
+	 *
+	 * @param descr registered plug-in descriptor
+	 */
+	void add(final PluginDescriptor descr)
+	{
+		Collection<Extension> extensions = new ArrayList<Extension>(descr.getExtensions());
+		for( Extension ext : extensions )
+		{
+			put(extensionsByPoint, getExtendedPointUid(ext), ext);
+			for( String id : getReferences(ext) )
+			{
+				put(extensionsByReference, id, ext);
+			}
+		}
+		Collection<ExtensionPoint> points = new ArrayList<ExtensionPoint>(descr.getExtensionPoints());
+		for( ExtensionPoint point : points )
+		{
+			String parentUid = getParentPointUid(point);
+			if( parentUid != null )
+			{
+				put(pointsByParent, parentUid, point);
+			}
+		}
+		pluginExtensions.put(descr.getId(), extensions);
+		pluginPoints.put(descr.getId(), points);
+	}
+
+	/**
+	 * Removes everything, that has been added for plug-in with given ID.
+	 *
+	 * @param pluginId plug-in ID
+	 */
+	void remove(final String pluginId)
+	{
+		Collection<Extension> extensions = pluginExtensions.remove(pluginId);
+		if( extensions != null )
+		{
+			for( Extension ext : extensions )
+			{
+				remove(extensionsByPoint, getExtendedPointUid(ext), ext);
+				for( String id : getReferences(ext) )
+				{
+					remove(extensionsByReference, id, ext);
+				}
+			}
+		}
+		Collection<ExtensionPoint> points = pluginPoints.remove(pluginId);
+		if( points != null )
+		{
+			for( ExtensionPoint point : points )
+			{
+				String parentUid = getParentPointUid(point);
+				if( parentUid != null )
+				{
+					remove(pointsByParent, parentUid, point);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Re-indexes given plug-in after fragments have been added to or removed
+	 * from it.
+	 *
+	 * @param descr registered plug-in descriptor
+	 */
+	void update(final PluginDescriptor descr)
+	{
+		remove(descr.getId());
+		add(descr);
+	}
+
+	/**
+	 * @param pointUid extension point unique ID
+	 * @return all registered extensions of given extension point
+	 */
+	Collection<Extension> getExtensions(final String pointUid)
+	{
+		List<Extension> result = extensionsByPoint.get(pointUid);
+		return (result != null) ? result : Collections.<Extension> emptyList();
+	}
+
+	/**
+	 * @param pointUid extension point unique ID
+	 * @return all registered extension points, that have given point as
+	 *         direct parent
+	 */
+	Collection<ExtensionPoint> getChildPoints(final String pointUid)
+	{
+		List<ExtensionPoint> result = pointsByParent.get(pointUid);
+		return (result != null) ? result : Collections.<ExtensionPoint> emptyList();
+	}
+
+	/**
+	 * @param pluginId plug-in ID
+	 * @return all registered extensions, which parameter values may refer to
+	 *         given plug-in or to it's extension points or extensions
+	 */
+	Collection<Extension> getReferringExtensions(final String pluginId)
+	{
+		List<Extension> result = extensionsByReference.get(pluginId);
+		return (result != null) ? result : Collections.<Extension> emptyList();
+	}
+
+	/**
+	 * @param ext extension
+	 * @return <code>true</code> if given extension object is one of currently
+	 *         registered
+	 */
+	boolean isRegistered(final Extension ext)
+	{
+		Collection<Extension> extensions = pluginExtensions.get(ext.getDeclaringPluginDescriptor()
+			.getId());
+		if( extensions == null )
+		{
+			return false;
+		}
+		for( Extension registered : extensions )
+		{
+			if( registered == ext )
+			{
+				return true;
+			}
+		}
+		return false;
+	}
+
+	String getExtendedPointUid(final Extension ext)
+	{
+		return registry.makeUniqueId(ext.getExtendedPluginId(), ext.getExtendedPointId());
+	}
+
+	String getParentPointUid(final ExtensionPoint point)
+	{
+		if( (point.getParentPluginId() == null) || (point.getParentExtensionPointId() == null) )
+		{
+			return null;
+		}
+		return registry.makeUniqueId(point.getParentPluginId(), point.getParentExtensionPointId());
+	}
+
+	private static Set<String> getReferences(final Extension ext)
+	{
+		Set<String> result = new HashSet<String>();
+		collectReferences(ext.getParameters(), result);
+		return result;
+	}
+
+	private static void collectReferences(final Collection<Parameter> params, final Set<String> result)
+	{
+		for( Parameter param : params )
+		{
+			String value = param.rawValue().trim();
+			int p = value.indexOf(PluginRegistryImpl.UNIQUE_SEPARATOR);
+			if( p > 0 )
+			{
+				value = value.substring(0, p);
+			}
+			if( value.length() > 0 )
+			{
+				result.add(value);
+			}
+			collectReferences(param.getSubParameters(), result);
+		}
+	}
+
+	private static <T> void put(final Map<String, List<T>> map, final String key, final T value)
+	{
+		List<T> values = map.get(key);
+		if( values == null )
+		{
+			values = new ArrayList<T>(2);
+			map.put(key, values);
+		}
+		values.add(value);
+	}
+
+	private static <T> void remove(final Map<String, List<T>> map, final String key, final T value)
+	{
+		List<T> values = map.get(key);
+		if( values == null )
+		{
+			return;
+		}
+		for( int i = 0; i < values.size(); i++ )
+		{
+			if( values.get(i) == value )
+			{
+				values.remove(i);
+				break;
+			}
+		}
+		if( values.isEmpty() )
+		{
+			map.remove(key);
+		}
+	}
+}
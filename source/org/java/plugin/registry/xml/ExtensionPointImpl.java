@@ -103,6 +103,15 @@ class ExtensionPointImpl extends PluginElementImpl<ExtensionPoint> implements Ex
 	{
 		connectedExtensions = new HashMap<String, Extension>();
 		availableExtensions = new HashMap<String, Extension>();
+		ExtensionIndex index = getExtensionIndex();
+		if( index != null )
+		{
+			for( Extension ext : index.getExtensions(getUniqueId()) )
+			{
+				connectExtension(ext);
+			}
+			return;
+		}
 		for( PluginDescriptor descr : getDeclaringPluginDescriptor().getRegistry()
 			.getPluginDescriptors() )
 		{
@@ -111,27 +120,43 @@ class ExtensionPointImpl extends PluginElementImpl<ExtensionPoint> implements Ex
 				if( getDeclaringPluginDescriptor().getId().equals(ext.getExtendedPluginId())
 					&& getId().equals(ext.getExtendedPointId()) )
 				{
-					availableExtensions.put(ext.getUniqueId(), ext);
-					if( ext.isValid() )
-					{
-						if( log.isDebugEnabled() )
-						{
-							log.debug("extension " + ext //$NON-NLS-1$
-								+ " connected to point " + this); //$NON-NLS-1$
-						}
-						connectedExtensions.put(ext.getUniqueId(), ext);
-					}
-					else
-					{
-						log.warn("extension " + ext.getUniqueId() //$NON-NLS-1$
-							+ " is invalid and doesn't connected to" //$NON-NLS-1$
-							+ " extension point " + getUniqueId()); //$NON-NLS-1$
-					}
+					connectExtension(ext);
 				}
 			}
 		}
 	}
 
+	private void connectExtension(final Extension ext)
+	{
+		availableExtensions.put(ext.getUniqueId(), ext);
+		if( ext.isValid() )
+		{
+			if( log.isDebugEnabled() )
+			{
+				log.debug("extension " + ext //$NON-NLS-1$
+					+ " connected to point " + this); //$NON-NLS-1$
+			}
+			connectedExtensions.put(ext.getUniqueId(), ext);
+		}
+		else
+		{
+			log.warn("extension " + ext.getUniqueId() //$NON-NLS-1$
+				+ " is invalid and doesn't connected to" //$NON-NLS-1$
+				+ " extension point " + getUniqueId()); //$NON-NLS-1$
+		}
+	}
+
+	/**
+	 * @return extension index of registry, this point belongs to, or
+	 *         <code>null</code> if registry is not {@link PluginRegistryImpl}
+	 */
+	private ExtensionIndex getExtensionIndex()
+	{
+		PluginRegistry registry = getDeclaringPluginDescriptor().getRegistry();
+		return (registry instanceof PluginRegistryImpl) ? ((PluginRegistryImpl) registry)
+			.getExtensionIndex() : null;
+	}
+
 	/**
 	 * @see org.java.plugin.registry.ExtensionPoint#getAvailableExtensions()
 	 */
@@ -430,6 +455,13 @@ class ExtensionPointImpl extends PluginElementImpl<ExtensionPoint> implements Ex
 	private void collectDescendants()
 	{
 		descendants = new LinkedList<ExtensionPoint>();
+		ExtensionIndex index = getExtensionIndex();
+		if( index != null )
+		{
+			collectDescendants(index, getUniqueId(), new HashSet<String>());
+			descendants = Collections.unmodifiableList(descendants);
+			return;
+		}
 		for( PluginDescriptor descr : getDeclaringPluginDescriptor().getRegistry()
 			.getPluginDescriptors() )
 		{
@@ -449,6 +481,25 @@ class ExtensionPointImpl extends PluginElementImpl<ExtensionPoint> implements Ex
 		descendants = Collections.unmodifiableList(descendants);
 	}
 
+	private void collectDescendants(final ExtensionIndex index, final String uid,
+		final Set<String> visited)
+	{
+		if( !visited.add(uid) )
+		{
+			return;
+		}
+		for( ExtensionPoint extp : index.getChildPoints(uid) )
+		{
+			if( log.isDebugEnabled() )
+			{
+				log.debug("extension point " + extp //$NON-NLS-1$
+					+ " is descendant of point " + this); //$NON-NLS-1$
+			}
+			descendants.add(extp);
+			collectDescendants(index, extp.getUniqueId(), visited);
+		}
+	}
+
 	/**
 	 * @see org.java.plugin.registry.ExtensionPoint#getDescendants()
 	 */
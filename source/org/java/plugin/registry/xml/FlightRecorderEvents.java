@@ -0,0 +1,86 @@
+/*****************************************************************************
+ * Java Plug-in Framework (JPF) Copyright (C) 2004-2007 Dmitry Olshansky This
+ * library is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version. This library is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser
+ * General Public License for more details. You should have received a copy of
+ * the GNU Lesser General Public License along with this library; if not, write
+ * to the Free Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA
+ * 02111-1307 USA
+ *****************************************************************************/
+package org.java.plugin.registry.xml;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Optional flight recorder events of this package. Event classes depend on
+ * <code>jdk.jfr</code> module, so they are loaded only if it is present in
+ * runtime, otherwise no events are emitted.
+ * 
+ * @version $Id$
+ */
+abstract class FlightRecorderEvents
+{
+	static final FlightRecorderEvents INSTANCE = create();
+
+	private static FlightRecorderEvents create()
+	{
+		try
+		{
+			Class.forName("jdk.jfr.Event"); //$NON-NLS-1$
+			return (FlightRecorderEvents) Class.forName(
+				"org.java.plugin.registry.xml.JdkFlightRecorderEvents") //$NON-NLS-1$
+				.getDeclaredConstructor().newInstance();
+		}
+		catch( Exception e )
+		{
+			// flight recorder is not available
+		}
+		catch( LinkageError le )
+		{
+			// flight recorder is not available
+		}
+		Log log = LogFactory.getLog(FlightRecorderEvents.class);
+		if( log.isDebugEnabled() )
+		{
+			log.debug("flight recorder is not available, registry events are not emitted"); //$NON-NLS-1$
+		}
+		return new FlightRecorderEvents()
+		{
+			@Override
+			RegistrationEvent startRegistration()
+			{
+				return null;
+			}
+		};
+	}
+
+	/**
+	 * @return started registration event or <code>null</code> if such events
+	 *         are not recorded
+	 */
+	abstract RegistrationEvent startRegistration();
+
+	/**
+	 * Registration or unregistration of plug-ins and plug-in fragments.
+	 */
+	interface RegistrationEvent
+	{
+		/**
+		 * @param time nanoseconds spent parsing manifests
+		 */
+		void manifestsParsed(long time);
+
+		/**
+		 * @param operation "register" or "unregister"
+		 * @param manifestCount number of given manifests or plug-in IDs
+		 * @param changedCount number of registered or unregistered plug-ins
+		 *            and fragments
+		 */
+		void finish(String operation, int manifestCount, int changedCount);
+	}
+}
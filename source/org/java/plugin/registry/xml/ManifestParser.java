@@ -19,8 +19,10 @@ import java.io.InputStreamReader;
 import java.io.Reader;
 import java.io.StringReader;
 import java.net.URL;
+import java.util.LinkedList;
 
 import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParser;
 import javax.xml.parsers.SAXParserFactory;
 
 import org.apache.commons.logging.Log;
@@ -29,6 +31,8 @@ import org.java.plugin.util.IoUtil;
 import org.xml.sax.EntityResolver;
 import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
+import org.xml.sax.SAXNotRecognizedException;
+import org.xml.sax.SAXNotSupportedException;
 
 /**
  * @version $Id: ManifestParser.java,v 1.4 2007/03/03 17:16:26 ddimon Exp $
@@ -108,15 +112,169 @@ final class ManifestParser
 		};
 	}
 
+	/**
+	 * Xerces property to share parsed DTD grammars between parsers.
+	 */
+	private static final String GRAMMAR_POOL_PROPERTY =
+		"http://apache.org/xml/properties/internal/grammar-pool"; //$NON-NLS-1$
+
+	/**
+	 * @return new grammar pool for parsers of given factory or
+	 *         <code>null</code> if parser implementation doesn't support
+	 *         grammar caching or it's grammar pool class is not accessible
+	 */
+	private static Object createGrammarPool(final SAXParserFactory factory)
+	{
+		String factoryClassName = factory.getClass().getName();
+		String poolClassName;
+		if( factoryClassName.startsWith("org.apache.xerces.") ) { //$NON-NLS-1$
+			poolClassName = "org.apache.xerces.util.XMLGrammarPoolImpl"; //$NON-NLS-1$
+		}
+		else if( factoryClassName.startsWith("com.sun.org.apache.xerces.internal.") ) { //$NON-NLS-1$
+			poolClassName = "com.sun.org.apache.xerces.internal.util.XMLGrammarPoolImpl"; //$NON-NLS-1$
+		}
+		else
+		{
+			return null;
+		}
+		try
+		{
+			Class<?> poolClass = Class.forName(poolClassName, false, ManifestParser.class
+				.getClassLoader());
+			// JDK internal class is accessible only if it's package is
+			// exported to this module
+			String poolPackage = poolClass.getPackage().getName();
+			Module module = ManifestParser.class.getModule();
+			if( !poolClass.getModule().isExported(poolPackage, module) )
+			{
+				log.info("DTD grammar caching is disabled for parser " //$NON-NLS-1$
+					+ factoryClassName + ", to enable it, run JVM with option --add-exports " //$NON-NLS-1$
+					+ poolClass.getModule().getName() + "/" + poolPackage + "=" //$NON-NLS-1$ //$NON-NLS-2$
+					+ (module.isNamed() ? module.getName() : "ALL-UNNAMED")); //$NON-NLS-1$
+				return null;
+			}
+			return poolClass.getDeclaredConstructor().newInstance();
+		}
+		catch( Exception e )
+		{
+			log.debug("DTD grammar pool is not available - " + e); //$NON-NLS-1$
+			return null;
+		}
+		catch( LinkageError le )
+		{
+			log.debug("DTD grammar pool is not available - " + le); //$NON-NLS-1$
+			return null;
+		}
+	}
+
 	private final SAXParserFactory parserFactory;
 	private final EntityResolver entityResolver;
+	/**
+	 * DTD grammar pool of this parser, so grammars are cached per registry.
+	 */
+	private volatile Object grammarPool;
+	/**
+	 * Parsers, that are not in use and may be reused by any thread.
+	 */
+	private final LinkedList<SAXParser> idleParsers = new LinkedList<SAXParser>();
 
 	ManifestParser(final boolean isValidating)
 	{
 		parserFactory = SAXParserFactory.newInstance();
 		parserFactory.setValidating(isValidating);
 		entityResolver = isValidating ? getDtdEntityResolver() : null;
-		log.info("got SAX parser factory - " + parserFactory); //$NON-NLS-1$
+		grammarPool = isValidating ? createGrammarPool(parserFactory) : null;
+		log.info("got SAX parser factory - " + parserFactory //$NON-NLS-1$
+			+ ", grammar pool - " + grammarPool); //$NON-NLS-1$
+	}
+
+	/**
+	 * Returns idle parser, creating new one if needed. Parsers are reused for
+	 * many documents, as their creation is expensive compared to parsing of
+	 * small manifest. Parser is owned by caller until it is released.
+	 */
+	private SAXParser getSAXParser() throws ParserConfigurationException, SAXException
+	{
+		SAXParser result;
+		synchronized( idleParsers )
+		{
+			result = idleParsers.poll();
+		}
+		if( result != null )
+		{
+			return result;
+		}
+		// parser factory is not guaranteed to be thread safe, so parser
+		// creation is synchronized while parsing itself may run concurrently
+		synchronized( parserFactory )
+		{
+			result = parserFactory.newSAXParser();
+		}
+		setGrammarPool(result);
+		return result;
+	}
+
+	/**
+	 * Resets given parser and keeps it for next document. Parsers that can't
+	 * be reset are discarded.
+	 */
+	private void releaseSAXParser(final SAXParser parser)
+	{
+		try
+		{
+			parser.reset();
+		}
+		catch( UnsupportedOperationException uoe )
+		{
+			return;
+		}
+		try
+		{
+			setGrammarPool(parser);
+		}
+		catch( SAXException se )
+		{
+			return;
+		}
+		synchronized( idleParsers )
+		{
+			idleParsers.add(parser);
+		}
+	}
+
+	/**
+	 * Discards idle parsers. Called when a batch of manifests has been parsed,
+	 * so that parsers don't hold memory between registrations.
+	 */
+	void releaseParsers()
+	{
+		synchronized( idleParsers )
+		{
+			idleParsers.clear();
+		}
+	}
+
+	private void setGrammarPool(final SAXParser parser) throws SAXException
+	{
+		Object pool = grammarPool;
+		if( pool == null )
+		{
+			return;
+		}
+		try
+		{
+			parser.getXMLReader().setProperty(GRAMMAR_POOL_PROPERTY, pool);
+		}
+		catch( SAXNotRecognizedException snre )
+		{
+			log.debug("DTD grammar pool is not supported by parser " + parser); //$NON-NLS-1$
+			grammarPool = null;
+		}
+		catch( SAXNotSupportedException snse )
+		{
+			log.debug("DTD grammar pool is not supported by parser " + parser); //$NON-NLS-1$
+			grammarPool = null;
+		}
 	}
 
 	ModelPluginManifest parseManifest(final URL url) throws ParserConfigurationException,
@@ -127,7 +285,9 @@ final class ManifestParser
 		InputStream strm = IoUtil.getResourceInputStream(url);
 		try
 		{
-			parserFactory.newSAXParser().parse(strm, handler);
+			SAXParser parser = getSAXParser();
+			parser.parse(strm, handler);
+			releaseSAXParser(parser);
 		}
 		finally
 		{
@@ -146,7 +306,9 @@ final class ManifestParser
 		InputStream strm = IoUtil.getResourceInputStream(url);
 		try
 		{
-			parserFactory.newSAXParser().parse(strm, handler);
+			SAXParser parser = getSAXParser();
+			parser.parse(strm, handler);
+			releaseSAXParser(parser);
 		}
 		finally
 		{
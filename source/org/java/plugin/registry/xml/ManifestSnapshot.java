@@ -0,0 +1,711 @@
+/*****************************************************************************
+ * Java Plug-in Framework (JPF) Copyright (C) 2004-2007 Dmitry Olshansky This
+ * library is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version. This library is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser
+ * General Public License for more details. You should have received a copy of
+ * the GNU Lesser General Public License along with this library; if not, write
+ * to the Free Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA
+ * 02111-1307 USA
+ *****************************************************************************/
+package org.java.plugin.registry.xml;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.java.plugin.registry.ExtensionMultiplicity;
+import org.java.plugin.registry.MatchingRule;
+import org.java.plugin.registry.ParameterMultiplicity;
+import org.java.plugin.registry.ParameterType;
+import org.java.plugin.registry.Version;
+import org.java.plugin.util.IoUtil;
+
+/**
+ * Binary snapshot of parsed plug-in manifests. Every manifest is stored
+ * together with it's URL and a stamp (modification time and size) of the file
+ * it is read from, so models of unchanged manifests can be restored without
+ * XML parsing. Manifests that aren't local files or JAR entries are never
+ * stored. The whole snapshot file is read at once, models are restored from
+ * stored data on request, so every caller gets it's own copy. Snapshot file,
+ * that can't be read, is ignored and rewritten, entries, that can't be
+ * restored, are parsed again. Snapshot file is replaced atomically, so it is
+ * never left half-written.
+ *
+ * @version $Id$
+ */
+final class ManifestSnapshot
+{
+	static Log log = LogFactory.getLog(ManifestSnapshot.class);
+
+	private static final int MAGIC = 0x4A504653; // "JPFS"
+	private static final int FORMAT_VERSION = 1;
+	private static final byte TYPE_PLUGIN = 1;
+	private static final byte TYPE_FRAGMENT = 2;
+
+	private final File file;
+	private final Map<String, Entry> entries = new HashMap<String, Entry>();
+	private final Set<String> verifiedEntries = new HashSet<String>();
+	private boolean modified;
+
+	/**
+	 * @param aFile snapshot file
+	 */
+	ManifestSnapshot(final File aFile)
+	{
+		file = aFile;
+	}
+
+	/**
+	 * Reads snapshot file, if it exists.
+	 */
+	synchronized void load()
+	{
+		if( !file.isFile() )
+		{
+			return;
+		}
+		try
+		{
+			// read fully, so that stored lengths can be checked against it
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(Files.readAllBytes(file
+				.toPath())));
+			try
+			{
+				if( (in.readInt() != MAGIC) || (in.readInt() != FORMAT_VERSION) )
+				{
+					log.warn("unsupported format of manifest snapshot file " + file); //$NON-NLS-1$
+					return;
+				}
+				int count = in.readInt();
+				for( int i = 0; i < count; i++ )
+				{
+					String url = readString(in);
+					String stamp = readString(in);
+					byte[] data = new byte[readLength(in)];
+					in.readFully(data);
+					entries.put(url, new Entry(stamp, data));
+				}
+			}
+			finally
+			{
+				in.close();
+			}
+		}
+		catch( IOException ioe )
+		{
+			discard(ioe);
+			return;
+		}
+		catch( RuntimeException re )
+		{
+			discard(re);
+			return;
+		}
+		if( log.isDebugEnabled() )
+		{
+			log.debug("manifest snapshot loaded from file " + file //$NON-NLS-1$
+				+ ", manifests=" + entries.size()); //$NON-NLS-1$
+		}
+	}
+
+	/**
+	 * Forgets everything read from corrupted snapshot file, so that it is
+	 * rewritten on next save.
+	 */
+	private void discard(final Exception e)
+	{
+		log.warn("failed loading manifest snapshot from file " + file //$NON-NLS-1$
+			+ ", snapshot is discarded", e); //$NON-NLS-1$
+		entries.clear();
+		modified = true;
+	}
+
+	/**
+	 * Writes snapshot file if snapshot has been changed. Manifests, that
+	 * weren't requested since snapshot has been loaded, are written only if
+	 * their files still exist and haven't been changed.
+	 */
+	synchronized void save()
+	{
+		for( Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator(); it.hasNext(); )
+		{
+			Map.Entry<String, Entry> entry = it.next();
+			if( verifiedEntries.contains(entry.getKey()) )
+			{
+				continue;
+			}
+			String stamp;
+			try
+			{
+				stamp = getStamp(new URL(entry.getKey()));
+			}
+			catch( MalformedURLException mue )
+			{
+				stamp = null;
+			}
+			if( entry.getValue().stamp.equals(stamp) )
+			{
+				verifiedEntries.add(entry.getKey());
+				continue;
+			}
+			it.remove();
+			modified = true;
+		}
+		if( !modified )
+		{
+			return;
+		}
+		File tempFile = null;
+		try
+		{
+			File folder = file.getAbsoluteFile().getParentFile();
+			if( (folder != null) && !folder.isDirectory() && !folder.mkdirs() )
+			{
+				throw new IOException("can't create folder " + folder); //$NON-NLS-1$
+			}
+			// written next to snapshot file, so that it can be renamed
+			tempFile = File.createTempFile(file.getName(), ".tmp", folder); //$NON-NLS-1$
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(
+				tempFile, false), 64 * 1024));
+			try
+			{
+				out.writeInt(MAGIC);
+				out.writeInt(FORMAT_VERSION);
+				out.writeInt(entries.size());
+				for( Map.Entry<String, Entry> entry : entries.entrySet() )
+				{
+					writeString(out, entry.getKey());
+					writeString(out, entry.getValue().stamp);
+					out.writeInt(entry.getValue().data.length);
+					out.write(entry.getValue().data);
+				}
+			}
+			finally
+			{
+				out.close();
+			}
+			try
+			{
+				Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+			}
+			catch( AtomicMoveNotSupportedException amnse )
+			{
+				Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+			tempFile = null;
+			modified = false;
+		}
+		catch( IOException ioe )
+		{
+			log.warn("failed saving manifest snapshot to file " + file, ioe); //$NON-NLS-1$
+			return;
+		}
+		finally
+		{
+			if( tempFile != null )
+			{
+				tempFile.delete();
+			}
+		}
+		if( log.isDebugEnabled() )
+		{
+			log.debug("manifest snapshot saved to file " + file //$NON-NLS-1$
+				+ ", manifests=" + entries.size()); //$NON-NLS-1$
+		}
+	}
+
+	/**
+	 * @param url manifest URL
+	 * @return model restored from snapshot or <code>null</code> if manifest
+	 *         isn't in snapshot or has been changed since it was stored
+	 */
+	synchronized ModelPluginManifest get(final URL url)
+	{
+		String key = url.toExternalForm();
+		Entry entry = entries.get(key);
+		if( entry == null )
+		{
+			return null;
+		}
+		if( !entry.stamp.equals(getStamp(url)) )
+		{
+			entries.remove(key);
+			verifiedEntries.remove(key);
+			modified = true;
+			return null;
+		}
+		verifiedEntries.add(key);
+		try
+		{
+			ModelPluginManifest result = readManifest(new DataInputStream(new ByteArrayInputStream(
+				entry.data)));
+			result.setLocation(url);
+			return result;
+		}
+		catch( IOException ioe )
+		{
+			return discard(key, ioe);
+		}
+		catch( RuntimeException re )
+		{
+			// stale or corrupted entry, e.g. unknown enum constant
+			return discard(key, re);
+		}
+	}
+
+	private ModelPluginManifest discard(final String key, final Exception e)
+	{
+		log.warn("failed restoring manifest " + key //$NON-NLS-1$
+			+ " from snapshot, it will be parsed again", e); //$NON-NLS-1$
+		entries.remove(key);
+		verifiedEntries.remove(key);
+		modified = true;
+		return null;
+	}
+
+	/**
+	 * Stores given manifest model in this snapshot.
+	 *
+	 * @param url manifest URL
+	 * @param model manifest model as it was parsed
+	 */
+	synchronized void put(final URL url, final ModelPluginManifest model)
+	{
+		String stamp = getStamp(url);
+		if( stamp == null )
+		{
+			return;
+		}
+		try
+		{
+			ByteArrayOutputStream data = new ByteArrayOutputStream(1024);
+			DataOutputStream out = new DataOutputStream(data);
+			writeManifest(out, model);
+			out.flush();
+			String key = url.toExternalForm();
+			entries.put(key, new Entry(stamp, data.toByteArray()));
+			verifiedEntries.add(key);
+			modified = true;
+		}
+		catch( IOException ioe )
+		{
+			// should never happen for in-memory stream
+			log.warn("failed storing manifest " + url //$NON-NLS-1$
+				+ " in snapshot", ioe); //$NON-NLS-1$
+		}
+	}
+
+	/**
+	 * @return modification time and size of manifest file or JAR file,
+	 *         containing manifest, or <code>null</code> if manifest is not
+	 *         local
+	 */
+	private static String getStamp(final URL url)
+	{
+		File manifestFile = IoUtil.url2file(url);
+		if( (manifestFile == null) && "jar".equalsIgnoreCase(url.getProtocol()) ) { //$NON-NLS-1$
+			String urlStr = url.toExternalForm();
+			int p = urlStr.indexOf("!/"); //$NON-NLS-1$
+			if( p != -1 )
+			{
+				try
+				{
+					manifestFile = IoUtil.url2file(new URL(urlStr.substring(4, p)));
+				}
+				catch( MalformedURLException mue )
+				{
+					// ignore
+				}
+			}
+		}
+		if( (manifestFile == null) || !manifestFile.isFile() )
+		{
+			return null;
+		}
+		return manifestFile.lastModified() + ":" + manifestFile.length(); //$NON-NLS-1$
+	}
+
+	// Serialization of model objects
+
+	private static void writeManifest(final DataOutputStream out, final ModelPluginManifest model)
+		throws IOException
+	{
+		if( model instanceof ModelPluginFragment )
+		{
+			ModelPluginFragment fragment = (ModelPluginFragment) model;
+			out.writeByte(TYPE_FRAGMENT);
+			writeString(out, fragment.getPluginId());
+			writeVersion(out, fragment.getPluginVersion());
+			writeString(out, fragment.getMatchingRule().name());
+		}
+		else
+		{
+			out.writeByte(TYPE_PLUGIN);
+			writeString(out, ((ModelPluginDescriptor) model).getClassName());
+		}
+		writeString(out, model.getId());
+		writeVersion(out, model.getVersion());
+		writeString(out, model.getVendor());
+		writeString(out, model.getDocsPath());
+		writeDocumentation(out, model.getDocumentation());
+		writeAttributes(out, model.getAttributes());
+		out.writeInt(model.getPrerequisites().size());
+		for( ModelPrerequisite prerequisite : model.getPrerequisites() )
+		{
+			writeString(out, prerequisite.getId());
+			writeString(out, prerequisite.getPluginId());
+			writeVersion(out, prerequisite.getPluginVersion());
+			writeString(out, prerequisite.getMatchingRule().name());
+			writeDocumentation(out, prerequisite.getDocumentation());
+			out.writeBoolean(prerequisite.isExported());
+			out.writeBoolean(prerequisite.isOptional());
+			out.writeBoolean(prerequisite.isReverseLookup());
+		}
+		out.writeInt(model.getLibraries().size());
+		for( ModelLibrary library : model.getLibraries() )
+		{
+			writeString(out, library.getId());
+			writeString(out, library.getPath());
+			out.writeBoolean(library.isCodeLibrary());
+			writeDocumentation(out, library.getDocumentation());
+			writeVersion(out, library.getVersion());
+			out.writeInt(library.getExports().size());
+			for( String export : library.getExports() )
+			{
+				writeString(out, export);
+			}
+		}
+		out.writeInt(model.getExtensionPoints().size());
+		for( ModelExtensionPoint point : model.getExtensionPoints() )
+		{
+			writeString(out, point.getId());
+			writeString(out, point.getParentPluginId());
+			writeString(out, point.getParentPointId());
+			writeString(out, point.getExtensionMultiplicity().name());
+			writeDocumentation(out, point.getDocumentation());
+			writeParamDefs(out, point.getParamDefs());
+		}
+		out.writeInt(model.getExtensions().size());
+		for( ModelExtension extension : model.getExtensions() )
+		{
+			writeString(out, extension.getId());
+			writeString(out, extension.getPluginId());
+			writeString(out, extension.getPointId());
+			writeDocumentation(out, extension.getDocumentation());
+			writeParams(out, extension.getParams());
+		}
+	}
+
+	private static ModelPluginManifest readManifest(final DataInputStream in) throws IOException
+	{
+		ModelPluginManifest result;
+		byte type = in.readByte();
+		if( type == TYPE_FRAGMENT )
+		{
+			ModelPluginFragment fragment = new ModelPluginFragment();
+			fragment.setPluginId(readString(in));
+			String pluginVersion = readString(in);
+			if( pluginVersion != null )
+			{
+				fragment.setPluginVersion(pluginVersion);
+			}
+			fragment.setMatchingRule(MatchingRule.valueOf(readString(in)));
+			result = fragment;
+		}
+		else if( type == TYPE_PLUGIN )
+		{
+			ModelPluginDescriptor descr = new ModelPluginDescriptor();
+			descr.setClassName(readString(in));
+			result = descr;
+		}
+		else
+		{
+			throw new IOException("unknown manifest type " + type); //$NON-NLS-1$
+		}
+		result.setId(readString(in));
+		String version = readString(in);
+		if( version != null )
+		{
+			result.setVersion(version);
+		}
+		result.setVendor(readString(in));
+		result.setDocsPath(readString(in));
+		result.setDocumentation(readDocumentation(in));
+		readAttributes(in, result.getAttributes());
+		for( int i = in.readInt(); i > 0; i-- )
+		{
+			ModelPrerequisite prerequisite = new ModelPrerequisite();
+			prerequisite.setId(readString(in));
+			prerequisite.setPluginId(readString(in));
+			String pluginVersion = readString(in);
+			if( pluginVersion != null )
+			{
+				prerequisite.setPluginVersion(pluginVersion);
+			}
+			prerequisite.setMatchingRule(MatchingRule.valueOf(readString(in)));
+			prerequisite.setDocumentation(readDocumentation(in));
+			prerequisite.setExported(Boolean.toString(in.readBoolean()));
+			prerequisite.setOptional(Boolean.toString(in.readBoolean()));
+			prerequisite.setReverseLookup(Boolean.toString(in.readBoolean()));
+			result.getPrerequisites().add(prerequisite);
+		}
+		for( int i = in.readInt(); i > 0; i-- )
+		{
+			ModelLibrary library = new ModelLibrary();
+			library.setId(readString(in));
+			library.setPath(readString(in));
+			library.setCodeLibrary(in.readBoolean() ? "code" : "resources"); //$NON-NLS-1$ //$NON-NLS-2$
+			library.setDocumentation(readDocumentation(in));
+			String libraryVersion = readString(in);
+			if( libraryVersion != null )
+			{
+				library.setVersion(libraryVersion);
+			}
+			for( int j = in.readInt(); j > 0; j-- )
+			{
+				library.getExports().add(readString(in));
+			}
+			result.getLibraries().add(library);
+		}
+		for( int i = in.readInt(); i > 0; i-- )
+		{
+			ModelExtensionPoint point = new ModelExtensionPoint();
+			point.setId(readString(in));
+			point.setParentPluginId(readString(in));
+			point.setParentPointId(readString(in));
+			point.setExtensionMultiplicity(ExtensionMultiplicity.valueOf(readString(in)));
+			point.setDocumentation(readDocumentation(in));
+			readParamDefs(in, point.getParamDefs());
+			result.getExtensionPoints().add(point);
+		}
+		for( int i = in.readInt(); i > 0; i-- )
+		{
+			ModelExtension extension = new ModelExtension();
+			extension.setId(readString(in));
+			extension.setPluginId(readString(in));
+			extension.setPointId(readString(in));
+			extension.setDocumentation(readDocumentation(in));
+			readParams(in, extension.getParams());
+			result.getExtensions().add(extension);
+		}
+		return result;
+	}
+
+	private static void writeDocumentation(final DataOutputStream out, final ModelDocumentation doc)
+		throws IOException
+	{
+		out.writeBoolean(doc != null);
+		if( doc == null )
+		{
+			return;
+		}
+		writeString(out, doc.getCaption());
+		writeString(out, doc.getText());
+		out.writeInt(doc.getReferences().size());
+		for( ModelDocumentationReference ref : doc.getReferences() )
+		{
+			writeString(out, ref.getPath());
+			writeString(out, ref.getCaption());
+		}
+	}
+
+	private static ModelDocumentation readDocumentation(final DataInputStream in) throws IOException
+	{
+		if( !in.readBoolean() )
+		{
+			return null;
+		}
+		ModelDocumentation result = new ModelDocumentation();
+		result.setCaption(readString(in));
+		result.setText(readString(in));
+		for( int i = in.readInt(); i > 0; i-- )
+		{
+			ModelDocumentationReference ref = new ModelDocumentationReference();
+			ref.setPath(readString(in));
+			ref.setCaption(readString(in));
+			result.getReferences().add(ref);
+		}
+		return result;
+	}
+
+	private static void writeAttributes(final DataOutputStream out, final List<ModelAttribute> attributes)
+		throws IOException
+	{
+		out.writeInt(attributes.size());
+		for( ModelAttribute attribute : attributes )
+		{
+			writeString(out, attribute.getId());
+			writeString(out, attribute.getValue());
+			writeDocumentation(out, attribute.getDocumentation());
+			writeAttributes(out, attribute.getAttributes());
+		}
+	}
+
+	private static void readAttributes(final DataInputStream in, final List<ModelAttribute> attributes)
+		throws IOException
+	{
+		for( int i = in.readInt(); i > 0; i-- )
+		{
+			ModelAttribute attribute = new ModelAttribute();
+			attribute.setId(readString(in));
+			attribute.setValue(readString(in));
+			attribute.setDocumentation(readDocumentation(in));
+			readAttributes(in, attribute.getAttributes());
+			attributes.add(attribute);
+		}
+	}
+
+	private static void writeParamDefs(final DataOutputStream out, final List<ModelParameterDef> paramDefs)
+		throws IOException
+	{
+		out.writeInt(paramDefs.size());
+		for( ModelParameterDef paramDef : paramDefs )
+		{
+			writeString(out, paramDef.getId());
+			writeString(out, paramDef.getMultiplicity().name());
+			writeString(out, paramDef.getType().name());
+			writeString(out, paramDef.getCustomData());
+			writeString(out, paramDef.getDefaultValue());
+			writeDocumentation(out, paramDef.getDocumentation());
+			writeParamDefs(out, paramDef.getParamDefs());
+		}
+	}
+
+	private static void readParamDefs(final DataInputStream in, final List<ModelParameterDef> paramDefs)
+		throws IOException
+	{
+		for( int i = in.readInt(); i > 0; i-- )
+		{
+			ModelParameterDef paramDef = new ModelParameterDef();
+			paramDef.setId(readString(in));
+			paramDef.setMultiplicity(ParameterMultiplicity.valueOf(readString(in)));
+			paramDef.setType(ParameterType.valueOf(readString(in)));
+			paramDef.setCustomData(readString(in));
+			paramDef.setDefaultValue(readString(in));
+			paramDef.setDocumentation(readDocumentation(in));
+			readParamDefs(in, paramDef.getParamDefs());
+			paramDefs.add(paramDef);
+		}
+	}
+
+	private static void writeParams(final DataOutputStream out, final List<ModelParameter> params)
+		throws IOException
+	{
+		out.writeInt(params.size());
+		for( ModelParameter param : params )
+		{
+			writeString(out, param.getId());
+			writeString(out, param.getValue());
+			writeDocumentation(out, param.getDocumentation());
+			writeParams(out, param.getParams());
+		}
+	}
+
+	private static void readParams(final DataInputStream in, final List<ModelParameter> params)
+		throws IOException
+	{
+		for( int i = in.readInt(); i > 0; i-- )
+		{
+			ModelParameter param = new ModelParameter();
+			param.setId(readString(in));
+			param.setValue(readString(in));
+			param.setDocumentation(readDocumentation(in));
+			readParams(in, param.getParams());
+			params.add(param);
+		}
+	}
+
+	/**
+	 * Versions are stored as strings, <code>null</code> values are restored
+	 * by not calling corresponding model setter.
+	 */
+	private static void writeVersion(final DataOutputStream out, final Version version)
+		throws IOException
+	{
+		writeString(out, (version != null) ? version.toString() : null);
+	}
+
+	/**
+	 * Writes string as UTF-8 bytes prefixed with their count, unlike
+	 * {@link DataOutputStream#writeUTF(String)} this supports
+	 * <code>null</code> values and strings of any length.
+	 */
+	private static void writeString(final DataOutputStream out, final String value)
+		throws IOException
+	{
+		if( value == null )
+		{
+			out.writeInt(-1);
+			return;
+		}
+		byte[] data = value.getBytes("UTF-8"); //$NON-NLS-1$
+		out.writeInt(data.length);
+		out.write(data);
+	}
+
+	private static String readString(final DataInputStream in) throws IOException
+	{
+		int len = in.readInt();
+		if( len == -1 )
+		{
+			return null;
+		}
+		byte[] data = new byte[checkLength(in, len)];
+		in.readFully(data);
+		return new String(data, "UTF-8"); //$NON-NLS-1$
+	}
+
+	private static int readLength(final DataInputStream in) throws IOException
+	{
+		return checkLength(in, in.readInt());
+	}
+
+	/**
+	 * Checks stored length against the number of bytes left, so that corrupted
+	 * data doesn't cause huge allocations.
+	 */
+	private static int checkLength(final DataInputStream in, final int len) throws IOException
+	{
+		if( (len < 0) || (len > in.available()) )
+		{
+			throw new IOException("invalid length " + len //$NON-NLS-1$
+				+ " in manifest snapshot data"); //$NON-NLS-1$
+		}
+		return len;
+	}
+
+	private static final class Entry
+	{
+		final String stamp;
+		final byte[] data;
+
+		Entry(final String aStamp, final byte[] aData)
+		{
+			stamp = aStamp;
+			data = aData;
+		}
+	}
+}
@@ -0,0 +1,74 @@
+/*****************************************************************************
+ * Java Plug-in Framework (JPF) Copyright (C) 2004-2007 Dmitry Olshansky This
+ * library is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version. This library is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser
+ * General Public License for more details. You should have received a copy of
+ * the GNU Lesser General Public License along with this library; if not, write
+ * to the Free Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA
+ * 02111-1307 USA
+ *****************************************************************************/
+package org.java.plugin.registry.xml;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * Flight recorder event emitted by {@link PluginRegistryImpl} when plug-ins
+ * are registered or unregistered.
+ * 
+ * @version $Id$
+ */
+@Name("org.java.plugin.Registration")
+@Label("Plug-in Registration")
+@Category({"Java Plug-in Framework"})
+@Description("Registration or unregistration of plug-ins and plug-in fragments")
+final class PluginRegistrationEvent extends Event implements FlightRecorderEvents.RegistrationEvent
+{
+	@Label("Operation")
+	String operation;
+
+	@Label("Manifests")
+	@Description("Number of given manifests or plug-in IDs")
+	int manifestCount;
+
+	@Label("Parse Time")
+	@Description("Time spent parsing manifests")
+	@Timespan(Timespan.NANOSECONDS)
+	long parseTime;
+
+	@Label("Changed")
+	@Description("Number of registered or unregistered plug-ins and fragments")
+	int changedCount;
+
+	/**
+	 * @see org.java.plugin.registry.xml.FlightRecorderEvents.RegistrationEvent#manifestsParsed(long)
+	 */
+	public void manifestsParsed(final long time)
+	{
+		parseTime = time;
+	}
+
+	/**
+	 * @see org.java.plugin.registry.xml.FlightRecorderEvents.RegistrationEvent#finish(java.lang.String,
+	 *      int, int)
+	 */
+	public void finish(final String anOperation, final int aManifestCount, final int aChangedCount)
+	{
+		end();
+		if( shouldCommit() )
+		{
+			operation = anOperation;
+			manifestCount = aManifestCount;
+			changedCount = aChangedCount;
+			commit();
+		}
+	}
+}
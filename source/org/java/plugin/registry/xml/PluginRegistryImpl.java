@@ -13,17 +13,28 @@
  *****************************************************************************/
 package org.java.plugin.registry.xml;
 
+import java.io.File;
 import java.net.URL;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -41,6 +52,7 @@ import org.java.plugin.registry.PluginFragment;
 import org.java.plugin.registry.PluginPrerequisite;
 import org.java.plugin.registry.PluginRegistry;
 import org.java.plugin.registry.Version;
+import org.java.plugin.registry.xml.FlightRecorderEvents.RegistrationEvent;
 import org.java.plugin.registry.xml.IntegrityChecker.ReportItemImpl;
 import org.java.plugin.util.ExtendedProperties;
 
@@ -63,6 +75,19 @@ import org.java.plugin.util.ExtendedProperties;
  * report that is available with
  * {@link PluginRegistry#checkIntegrity(PathResolver)} method. The default
  * parameter value is <code>false</code>.</dd>
+ * <dt>manifestSnapshotFile</dt>
+ * <dd>Path to the file where parsed manifests are stored in binary form.
+ * Manifests, that haven't been changed since they were stored, are restored
+ * from this file instead of being parsed again, manifests that are new or
+ * changed are parsed and added to the file. Only manifests, that are local
+ * files or entries of local JAR files, are stored. No snapshot is used by
+ * default.</dd>
+ * <dt>manifestParsingThreads</dt>
+ * <dd>Maximum number of threads used to parse manifests given to
+ * {@link PluginRegistry#register(URL[]) register} method, including calling
+ * thread. Value <code>1</code> or less means that manifests are parsed in
+ * calling thread one by one. Registration results don't depend on this
+ * parameter. The default value is the number of available processors.</dd>
  * </dl>
  * 
  * @see org.java.plugin.ObjectFactory#createRegistry()
@@ -71,15 +96,20 @@ import org.java.plugin.util.ExtendedProperties;
 public final class PluginRegistryImpl implements PluginRegistry
 {
 	static final String PACKAGE_NAME = "org.java.plugin.registry.xml"; //$NON-NLS-1$
-	private static final char UNIQUE_SEPARATOR = '@';
+	static final char UNIQUE_SEPARATOR = '@';
 	private static final Log log = LogFactory.getLog(PluginRegistryImpl.class);
 
 	private final List<ReportItem> registrationReport = new LinkedList<ReportItem>();
 	private final Map<String, PluginDescriptor> registeredPlugins = new HashMap<String, PluginDescriptor>();
 	private final Map<String, PluginFragment> registeredFragments = new HashMap<String, PluginFragment>();
+	private final ExtensionIndex extensionIndex = new ExtensionIndex(this);
+	private final DependencyIndex dependencyIndex = new DependencyIndex();
 	private final List<RegistryChangeListener> listeners = Collections
 		.synchronizedList(new LinkedList<RegistryChangeListener>());
 	private ManifestParser manifestParser;
+	private ManifestSnapshot manifestSnapshot;
+	private int manifestParsingThreads = 1;
+	private Executor manifestParsingExecutor;
 	private boolean stopOnError = false;
 
 	/**
@@ -101,8 +131,27 @@ public final class PluginRegistryImpl implements PluginRegistry
 		boolean isValidating = !"false".equalsIgnoreCase( //$NON-NLS-1$
 			config.getProperty("isValidating", "true")); //$NON-NLS-1$ //$NON-NLS-2$
 		manifestParser = new ManifestParser(isValidating);
+		String threads = config.getProperty("manifestParsingThreads"); //$NON-NLS-1$
+		try
+		{
+			manifestParsingThreads = (threads == null) ? Runtime.getRuntime().availableProcessors()
+				: Integer.parseInt(threads.trim());
+		}
+		catch( NumberFormatException nfe )
+		{
+			log.warn("invalid manifestParsingThreads parameter value " + threads, nfe); //$NON-NLS-1$
+			manifestParsingThreads = 1;
+		}
+		String snapshotFile = config.getProperty("manifestSnapshotFile"); //$NON-NLS-1$
+		if( (snapshotFile != null) && (snapshotFile.trim().length() > 0) )
+		{
+			manifestSnapshot = new ManifestSnapshot(new File(snapshotFile.trim()));
+			manifestSnapshot.load();
+		}
 		log.info("configured, stopOnError=" + stopOnError //$NON-NLS-1$
-			+ ", isValidating=" + isValidating); //$NON-NLS-1$
+			+ ", isValidating=" + isValidating //$NON-NLS-1$
+			+ ", manifestSnapshotFile=" + snapshotFile //$NON-NLS-1$
+			+ ", manifestParsingThreads=" + manifestParsingThreads); //$NON-NLS-1$
 	}
 
 	/**
@@ -153,36 +202,54 @@ public final class PluginRegistryImpl implements PluginRegistry
 	 */
 	public Map<String, Identity> register(final URL[] manifests) throws ManifestProcessingException
 	{
-		// collecting registered extension points and extensions
-		List<ExtensionPoint> registeredPoints = new LinkedList<ExtensionPoint>();
-		Map<String, Extension> registeredExtensions = new HashMap<String, Extension>();
-		for( PluginDescriptor descriptor : registeredPlugins.values() )
+		RegistrationEvent event = FlightRecorderEvents.INSTANCE.startRegistration();
+		Map<String, Identity> result = null;
+		try
 		{
-			for( ExtensionPoint point : descriptor.getExtensionPoints() )
+			result = registerManifests(manifests, event);
+			return result;
+		}
+		finally
+		{
+			if( event != null )
 			{
-				registeredPoints.add(point);
-				for( Extension ext : point.getConnectedExtensions() )
-				{
-					registeredExtensions.put(ext.getUniqueId(), ext);
-				}
+				event.finish("register", manifests.length, //$NON-NLS-1$
+					(result != null) ? result.size() : 0);
 			}
 		}
+	}
+
+	/**
+	 * @param event flight recorder event to report parse time to, may be
+	 *            <code>null</code>
+	 */
+	private Map<String, Identity> registerManifests(final URL[] manifests, final RegistrationEvent event)
+		throws ManifestProcessingException
+	{
 		Map<String, Identity> result = new HashMap<String, Identity>(manifests.length);
-		Map<String, ModelPluginManifest> plugins = new HashMap<String, ModelPluginManifest>();
-		Map<String, ModelPluginManifest> fragments = new HashMap<String, ModelPluginManifest>();
+		// keep manifests in given order, so that results don't depend on
+		// order in which parallel parsing completes
+		Map<String, ModelPluginManifest> plugins = new LinkedHashMap<String, ModelPluginManifest>();
+		Map<String, ModelPluginManifest> fragments = new LinkedHashMap<String, ModelPluginManifest>();
 		// parsing given manifests
 		registrationReport.add(new ReportItemImpl(IntegrityCheckReport.Severity.INFO, null,
 			IntegrityCheckReport.Error.NO_ERROR, "manifestsParsingStart", //$NON-NLS-1$
 			null));
-		for( URL url : manifests )
-		{
-			ModelPluginManifest model;
-			try
+		long parseStart = System.nanoTime();
+		ModelPluginManifest[] models = new ModelPluginManifest[manifests.length];
+		Throwable[] errors = new Throwable[manifests.length];
+		int restored = parseManifests(manifests, models, errors);
+		for( int i = 0; i < manifests.length; i++ )
+		{
+			URL url = manifests[i];
+			ModelPluginManifest model = models[i];
+			if( errors[i] instanceof Error )
 			{
-				model = manifestParser.parseManifest(url);
+				throw (Error) errors[i];
 			}
-			catch( Exception e )
+			if( errors[i] != null )
 			{
+				Exception e = (Exception) errors[i];
 				log.error("can't parse manifest file " + url, e); //$NON-NLS-1$
 				if( stopOnError )
 				{
@@ -207,10 +274,19 @@ public final class PluginRegistryImpl implements PluginRegistry
 			}
 			plugins.put(url.toExternalForm(), model);
 		}
+		if( manifestSnapshot != null )
+		{
+			manifestSnapshot.save();
+		}
+		if( event != null )
+		{
+			event.manifestsParsed(System.nanoTime() - parseStart);
+		}
 		if( log.isDebugEnabled() )
 		{
 			log.debug("manifest files parsed, plugins.size=" + plugins.size() //$NON-NLS-1$
-				+ ", fragments.size=" + fragments.size()); //$NON-NLS-1$
+				+ ", fragments.size=" + fragments.size() //$NON-NLS-1$
+				+ ", restoredFromSnapshot=" + restored); //$NON-NLS-1$
 		}
 		registrationReport.add(new ReportItemImpl(IntegrityCheckReport.Severity.INFO, null,
 			IntegrityCheckReport.Error.NO_ERROR, "manifestsParsingFinish", //$NON-NLS-1$
@@ -227,6 +303,22 @@ public final class PluginRegistryImpl implements PluginRegistry
 			log.debug("plug-in fragments versions checked, fragments.size=" //$NON-NLS-1$
 				+ fragments.size());
 		}
+		// collecting extension points and extensions, that may be affected
+		ChangeScope scope = new ChangeScope();
+		Set<String> changingPlugins = new HashSet<String>();
+		for( ModelPluginManifest model : plugins.values() )
+		{
+			changingPlugins.add(model.getId());
+		}
+		for( ModelPluginManifest model : fragments.values() )
+		{
+			changingPlugins.add(((ModelPluginFragment) model).getPluginId());
+		}
+		scope.collect(changingPlugins, plugins.values());
+		scope.collectModels(fragments.values());
+		boolean analyzeChanges = !listeners.isEmpty() || log.isDebugEnabled();
+		Map<String, Extension> connectedExtensions = analyzeChanges ? scope
+			.getConnectedExtensions() : null;
 		RegistryChangeDataImpl registryChangeData = new RegistryChangeDataImpl();
 		// registering new plug-ins
 		registrationReport.add(new ReportItemImpl(IntegrityCheckReport.Severity.INFO, null,
@@ -267,55 +359,181 @@ public final class PluginRegistryImpl implements PluginRegistry
 		{
 			return result;
 		}
-		// notify all interested members that plug-ins set has been changed
-		for( ExtensionPoint extensionPoint : registeredPoints )
+		// notify affected members that plug-ins set has been changed
+		changingPlugins.clear();
+		changingPlugins.addAll(registryChangeData.addedPlugins());
+		changingPlugins.addAll(registryChangeData.modifiedPlugins());
+		scope.collect(changingPlugins, null);
+		scope.invalidate();
+		if( analyzeChanges )
 		{
-			((ExtensionPointImpl) extensionPoint).registryChanged();
+			// analyze changes in extensions set
+			scope.analyzeChanges(connectedExtensions, registryChangeData);
+			// fire event
+			fireEvent(registryChangeData);
 		}
-		for( Extension extension : registeredExtensions.values() )
+		return result;
+	}
+
+	/**
+	 * Parses given manifests, in parallel if more than one thread is
+	 * configured for manifest parsing. Results are stored at the same index
+	 * as manifest URL.
+	 * 
+	 * @return number of manifests restored from snapshot
+	 */
+	private int parseManifests(final URL[] manifests, final ModelPluginManifest[] models,
+		final Throwable[] errors)
+	{
+		try
 		{
-			((ExtensionImpl) extension).registryChanged();
+			return parseAllManifests(manifests, models, errors);
 		}
-		if( !listeners.isEmpty() || log.isDebugEnabled() )
+		finally
 		{
-			// analyze changes in extensions set
-			for( PluginDescriptor pluginDescriptor : registeredPlugins.values() )
+			manifestParser.releaseParsers();
+		}
+	}
+
+	private int parseAllManifests(final URL[] manifests, final ModelPluginManifest[] models,
+		final Throwable[] errors)
+	{
+		final AtomicInteger restored = new AtomicInteger();
+		final AtomicInteger next = new AtomicInteger();
+		Executor executor = getManifestParsingExecutor(manifests.length);
+		if( executor == null )
+		{
+			parseNextManifests(manifests, models, errors, next, restored);
+			return restored.get();
+		}
+		int workers = Math.min(manifests.length, manifestParsingThreads);
+		final CountDownLatch done = new CountDownLatch(workers - 1);
+		for( int i = 1; i < workers; i++ )
+		{
+			Runnable worker = new Runnable()
 			{
-				for( ExtensionPoint extensionPoint : pluginDescriptor.getExtensionPoints() )
+				public void run()
 				{
-					for( Extension ext : extensionPoint.getConnectedExtensions() )
+					try
+					{
+						parseNextManifests(manifests, models, errors, next, restored);
+					}
+					finally
 					{
-						if( !registeredExtensions.containsKey(ext.getUniqueId()) )
-						{
-							registryChangeData.putAddedExtension(ext.getUniqueId(),
-								makeUniqueId(ext.getExtendedPluginId(), ext.getExtendedPointId()));
-						}
-						else
-						{
-							registeredExtensions.remove(ext.getUniqueId());
-							if( registryChangeData.modifiedPlugins().contains(
-								ext.getDeclaringPluginDescriptor().getId())
-								|| registryChangeData.modifiedPlugins().contains(
-									ext.getExtendedPluginId()) )
-							{
-								registryChangeData.putModifiedExtension(
-									ext.getUniqueId(),
-									makeUniqueId(ext.getExtendedPluginId(),
-										ext.getExtendedPointId()));
-							}
-						}
+						done.countDown();
 					}
 				}
+			};
+			try
+			{
+				executor.execute(worker);
 			}
-			for( Extension ext : registeredExtensions.values() )
+			catch( RejectedExecutionException ree )
 			{
-				registryChangeData.putRemovedExtension(ext.getUniqueId(),
-					makeUniqueId(ext.getExtendedPluginId(), ext.getExtendedPointId()));
+				done.countDown();
 			}
-			// fire event
-			fireEvent(registryChangeData);
 		}
-		return result;
+		// current thread takes part in parsing too and picks up all
+		// manifests left by rejected workers
+		parseNextManifests(manifests, models, errors, next, restored);
+		boolean interrupted = false;
+		while( true )
+		{
+			try
+			{
+				done.await();
+				break;
+			}
+			catch( InterruptedException ie )
+			{
+				interrupted = true;
+			}
+		}
+		if( interrupted )
+		{
+			Thread.currentThread().interrupt();
+		}
+		return restored.get();
+	}
+
+	void parseNextManifests(final URL[] manifests, final ModelPluginManifest[] models,
+		final Throwable[] errors, final AtomicInteger next, final AtomicInteger restored)
+	{
+		for( int i = next.getAndIncrement(); i < manifests.length; i = next.getAndIncrement() )
+		{
+			URL url = manifests[i];
+			try
+			{
+				ModelPluginManifest model = (manifestSnapshot != null) ? manifestSnapshot.get(url)
+					: null;
+				if( model == null )
+				{
+					model = manifestParser.parseManifest(url);
+					if( manifestSnapshot != null )
+					{
+						manifestSnapshot.put(url, model);
+					}
+				}
+				else
+				{
+					restored.incrementAndGet();
+				}
+				models[i] = model;
+			}
+			catch( Exception e )
+			{
+				errors[i] = e;
+			}
+			catch( Error e )
+			{
+				errors[i] = e;
+			}
+		}
+	}
+
+	/**
+	 * @return executor for parsing given number of manifests or
+	 *         <code>null</code> if they should be parsed in current thread
+	 */
+	private synchronized Executor getManifestParsingExecutor(final int count)
+	{
+		if( (count < 2) || (manifestParsingThreads < 2) )
+		{
+			return null;
+		}
+		if( manifestParsingExecutor == null )
+		{
+			ThreadPoolExecutor executor = new ThreadPoolExecutor(manifestParsingThreads - 1,
+				manifestParsingThreads - 1, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+				new ThreadFactory()
+				{
+					private final AtomicInteger count = new AtomicInteger();
+
+					public Thread newThread(final Runnable r)
+					{
+						Thread result = new Thread(r, "jpf-manifest-parser-" //$NON-NLS-1$
+							+ count.incrementAndGet());
+						result.setDaemon(true);
+						return result;
+					}
+				});
+			executor.allowCoreThreadTimeOut(true);
+			manifestParsingExecutor = executor;
+		}
+		return manifestParsingExecutor;
+	}
+
+	/**
+	 * Sets executor to be used for parallel manifest parsing instead of
+	 * internal thread pool. Number of parsing tasks is still limited by
+	 * <code>manifestParsingThreads</code> configuration parameter.
+	 * 
+	 * @param executor executor for manifest parsing tasks or
+	 *        <code>null</code> to use internal thread pool
+	 */
+	public synchronized void setManifestParsingExecutor(final Executor executor)
+	{
+		manifestParsingExecutor = executor;
 	}
 
 	private void checkVersions(final Map<String, ModelPluginManifest> plugins)
@@ -419,6 +637,8 @@ public final class PluginRegistryImpl implements PluginRegistry
 			return null;
 		}
 		registeredPlugins.put(result.getId(), result);
+		extensionIndex.add(result);
+		dependencyIndex.add(result);
 		return result;
 	}
 
@@ -441,6 +661,8 @@ public final class PluginRegistryImpl implements PluginRegistry
 			if( descr != null && result.matches(descr) )
 			{
 				descr.registerFragment(result);
+				extensionIndex.update(descr);
+				dependencyIndex.update(descr);
 				if( !registryChangeData.addedPlugins().contains(descr.getId()) )
 				{
 					registryChangeData.modifiedPlugins().add(descr.getId());
@@ -481,20 +703,25 @@ public final class PluginRegistryImpl implements PluginRegistry
 	 */
 	public Collection<String> unregister(final String[] ids)
 	{
-		// collecting registered extension points and extensions
-		final List<ExtensionPoint> registeredPoints = new LinkedList<ExtensionPoint>();
-		final Map<String, Extension> registeredExtensions = new HashMap<String, Extension>();
-		for( PluginDescriptor pluginDescriptor : registeredPlugins.values() )
+		RegistrationEvent event = FlightRecorderEvents.INSTANCE.startRegistration();
+		Collection<String> result = null;
+		try
 		{
-			for( ExtensionPoint point : pluginDescriptor.getExtensionPoints() )
+			result = unregisterPlugins(ids);
+			return result;
+		}
+		finally
+		{
+			if( event != null )
 			{
-				registeredPoints.add(point);
-				for( Extension ext : point.getConnectedExtensions() )
-				{
-					registeredExtensions.put(ext.getUniqueId(), ext);
-				}
+				event.finish("unregister", ids.length, //$NON-NLS-1$
+					(result != null) ? result.size() : 0);
 			}
 		}
+	}
+
+	private Collection<String> unregisterPlugins(final String[] ids)
+	{
 		final Set<String> result = new HashSet<String>();
 		RegistryChangeDataImpl registryChangeData = new RegistryChangeDataImpl();
 		// collect objects to be unregistered
@@ -537,6 +764,17 @@ public final class PluginRegistryImpl implements PluginRegistry
 				removingFragments.put(fragment.getId(), fragment);
 			}
 		}
+		// collecting extension points and extensions, that may be affected
+		ChangeScope scope = new ChangeScope();
+		Set<String> changingPlugins = new HashSet<String>(removingPlugins.keySet());
+		for( PluginFragment fragment : removingFragments.values() )
+		{
+			changingPlugins.add(fragment.getPluginId());
+		}
+		scope.collect(changingPlugins, null);
+		boolean analyzeChanges = !listeners.isEmpty() || log.isDebugEnabled();
+		Map<String, Extension> connectedExtensions = analyzeChanges ? scope
+			.getConnectedExtensions() : null;
 		// notify about plug-ins removal first
 		fireEvent(registryChangeData);
 		registrationReport.add(new ReportItemImpl(IntegrityCheckReport.Severity.INFO, null,
@@ -574,60 +812,279 @@ public final class PluginRegistryImpl implements PluginRegistry
 		{
 			return result;
 		}
-		// notify all interested members that plug-ins set has been changed
-		for( ExtensionPoint extensionPoint : registeredPoints )
+		// notify affected members that plug-ins set has been changed
+		scope.collect(registryChangeData.modifiedPlugins(), null);
+		scope.invalidate();
+		if( analyzeChanges )
 		{
-			((ExtensionPointImpl) extensionPoint).registryChanged();
+			// analyze changes in extensions set
+			scope.analyzeChanges(connectedExtensions, registryChangeData);
+			// fire event
+			fireEvent(registryChangeData);
 		}
-		for( Extension extension : registeredExtensions.values() )
+		return result;
+	}
+
+	/**
+	 * @return index of extensions and extension points of registered plug-ins
+	 */
+	ExtensionIndex getExtensionIndex()
+	{
+		return extensionIndex;
+	}
+
+	/**
+	 * @param ids plug-in ID's
+	 * @return ID's of registered plug-ins that directly depend on any of given
+	 *         plug-ins, regardless of prerequisite version matching
+	 */
+	private Set<String> getDirectDependents(final Collection<String> ids)
+	{
+		Set<String> result = new HashSet<String>();
+		for( String id : ids )
 		{
-			((ExtensionImpl) extension).registryChanged();
+			result.addAll(dependencyIndex.getDependents(id));
 		}
-		if( !listeners.isEmpty() || log.isDebugEnabled() )
+		return result;
+	}
+
+	/**
+	 * Extension points and extensions, whose cached state may be changed by
+	 * registering or un-registering plug-ins. These are extension points and
+	 * extensions of changed plug-ins, extensions of plug-ins depending on
+	 * them and extensions with parameter values referring to them, extension
+	 * points extended by those extensions, all extensions and descendants of changed
+	 * extension points and ancestors of changed extension points. Scope is
+	 * collected once before change, to capture state of objects that are
+	 * going to be removed, and once after change, to add new objects.
+	 */
+	private final class ChangeScope
+	{
+		private final Map<ExtensionPoint, Boolean> points = new IdentityHashMap<ExtensionPoint, Boolean>();
+		private final Map<Extension, Boolean> extensions = new IdentityHashMap<Extension, Boolean>();
+		private final Set<String> visitedPoints = new HashSet<String>();
+
+		ChangeScope()
 		{
-			// analyze changes in extensions set
-			for( PluginDescriptor descriptor : registeredPlugins.values() )
+			// no-op
+		}
+
+		/**
+		 * @param changedPluginIds ID's of plug-ins that are going to be or have
+		 *        been added, removed or modified
+		 * @param models manifests of new plug-ins, may be <code>null</code>
+		 */
+		void collect(final Set<String> changedPluginIds, final Collection<ModelPluginManifest> models)
+		{
+			visitedPoints.clear();
+			for( String id : changedPluginIds )
+			{
+				collectPlugin(id, true);
+			}
+			for( String id : getDirectDependents(changedPluginIds) )
 			{
-				for( ExtensionPoint point : descriptor.getExtensionPoints() )
+				if( !changedPluginIds.contains(id) )
 				{
-					for( Extension ext : point.getConnectedExtensions() )
-					{
-						if( !registeredExtensions.containsKey(ext.getUniqueId()) )
-						{
-							registryChangeData.putAddedExtension(ext.getUniqueId(),
-								makeUniqueId(ext.getExtendedPluginId(), ext.getExtendedPointId()));
-						}
-						else
-						{
-							registeredExtensions.remove(ext.getUniqueId());
-							if( registryChangeData.modifiedPlugins().contains(
-								ext.getDeclaringPluginDescriptor().getId())
-								|| registryChangeData.modifiedPlugins().contains(
-									ext.getExtendedPluginId()) )
-							{
-								registryChangeData.putModifiedExtension(
-									ext.getUniqueId(),
-									makeUniqueId(ext.getExtendedPluginId(),
-										ext.getExtendedPointId()));
-							}
-						}
-					}
+					collectPlugin(id, false);
+				}
+			}
+			for( String id : changedPluginIds )
+			{
+				for( Extension ext : extensionIndex.getReferringExtensions(id) )
+				{
+					extensions.put(ext, Boolean.TRUE);
+					touchPoint(extensionIndex.getExtendedPointUid(ext));
+				}
+			}
+			if( models != null )
+			{
+				collectModels(models);
+			}
+		}
+
+		/**
+		 * Collects extension points, referred in given manifests, that are
+		 * not registered yet.
+		 */
+		void collectModels(final Collection<ModelPluginManifest> models)
+		{
+			for( ModelPluginManifest model : models )
+			{
+				String pluginId = (model instanceof ModelPluginFragment) ? ((ModelPluginFragment) model)
+					.getPluginId() : model.getId();
+				for( ModelExtensionPoint point : model.getExtensionPoints() )
+				{
+					collectPoint(makeUniqueId(pluginId, point.getId()));
+				}
+				for( ModelExtension ext : model.getExtensions() )
+				{
+					touchPoint(makeUniqueId(ext.getPluginId(), ext.getPointId()));
+				}
+			}
+		}
+
+		private void collectPlugin(final String id, final boolean changed)
+		{
+			PluginDescriptor descr = registeredPlugins.get(id);
+			if( descr == null )
+			{
+				return;
+			}
+			if( changed )
+			{
+				for( ExtensionPoint point : descr.getExtensionPoints() )
+				{
+					collectPoint(point.getUniqueId());
+				}
+			}
+			for( Extension ext : descr.getExtensions() )
+			{
+				extensions.put(ext, Boolean.TRUE);
+				touchPoint(extensionIndex.getExtendedPointUid(ext));
+			}
+		}
+
+		/**
+		 * Collects extension point, that is added, removed or modified, with
+		 * all it's extensions, descendants and ancestors.
+		 */
+		private void collectPoint(final String uid)
+		{
+			if( !visitedPoints.add(uid) )
+			{
+				return;
+			}
+			ExtensionPoint point = findExtensionPoint(uid);
+			if( point != null )
+			{
+				points.put(point, Boolean.TRUE);
+				collectAncestors(point);
+			}
+			for( Extension ext : extensionIndex.getExtensions(uid) )
+			{
+				extensions.put(ext, Boolean.TRUE);
+			}
+			for( ExtensionPoint child : extensionIndex.getChildPoints(uid) )
+			{
+				collectPoint(child.getUniqueId());
+			}
+		}
+
+		/**
+		 * Collects extension point, which set of extensions may be changed.
+		 */
+		private void touchPoint(final String uid)
+		{
+			ExtensionPoint point = findExtensionPoint(uid);
+			if( point != null )
+			{
+				points.put(point, Boolean.TRUE);
+			}
+		}
+
+		private void collectAncestors(final ExtensionPoint point)
+		{
+			Set<String> visited = new HashSet<String>();
+			String parentUid = extensionIndex.getParentPointUid(point);
+			while( (parentUid != null) && visited.add(parentUid) )
+			{
+				ExtensionPoint parent = findExtensionPoint(parentUid);
+				if( parent == null )
+				{
+					break;
+				}
+				points.put(parent, Boolean.TRUE);
+				parentUid = extensionIndex.getParentPointUid(parent);
+			}
+		}
+
+		private ExtensionPoint findExtensionPoint(final String uid)
+		{
+			PluginDescriptor descr = registeredPlugins.get(extractPluginId(uid));
+			if( descr == null )
+			{
+				return null;
+			}
+			String id = extractId(uid);
+			for( ExtensionPoint point : descr.getExtensionPoints() )
+			{
+				if( point.getId().equals(id) )
+				{
+					return point;
+				}
+			}
+			return null;
+		}
+
+		/**
+		 * @return collected extensions, that are registered and connected to
+		 *         their extension points, mapped by unique ID
+		 */
+		Map<String, Extension> getConnectedExtensions()
+		{
+			Map<String, Extension> result = new HashMap<String, Extension>();
+			for( Extension ext : extensions.keySet() )
+			{
+				if( extensionIndex.isRegistered(ext) && ext.isValid()
+					&& (findExtensionPoint(extensionIndex.getExtendedPointUid(ext)) != null) )
+				{
+					result.put(ext.getUniqueId(), ext);
+				}
+			}
+			return result;
+		}
+
+		/**
+		 * Resets cached state of all collected objects.
+		 */
+		void invalidate()
+		{
+			for( ExtensionPoint point : points.keySet() )
+			{
+				((ExtensionPointImpl) point).registryChanged();
+			}
+			for( Extension ext : extensions.keySet() )
+			{
+				((ExtensionImpl) ext).registryChanged();
+			}
+		}
+
+		/**
+		 * Puts differences between given and current set of connected
+		 * extensions to given change data.
+		 */
+		void analyzeChanges(final Map<String, Extension> oldExtensions,
+			final RegistryChangeDataImpl registryChangeData)
+		{
+			Map<String, Extension> removedExtensions = new HashMap<String, Extension>(oldExtensions);
+			for( Extension ext : getConnectedExtensions().values() )
+			{
+				if( removedExtensions.remove(ext.getUniqueId()) == null )
+				{
+					registryChangeData.putAddedExtension(ext.getUniqueId(),
+						makeUniqueId(ext.getExtendedPluginId(), ext.getExtendedPointId()));
+				}
+				else if( registryChangeData.modifiedPlugins().contains(
+					ext.getDeclaringPluginDescriptor().getId())
+					|| registryChangeData.modifiedPlugins().contains(ext.getExtendedPluginId()) )
+				{
+					registryChangeData.putModifiedExtension(ext.getUniqueId(), makeUniqueId(ext
+						.getExtendedPluginId(), ext.getExtendedPointId()));
 				}
 			}
-			for( Extension ext : registeredExtensions.values() )
+			for( Extension ext : removedExtensions.values() )
 			{
 				registryChangeData.putRemovedExtension(ext.getUniqueId(),
 					makeUniqueId(ext.getExtendedPluginId(), ext.getExtendedPointId()));
 			}
-			// fire event
-			fireEvent(registryChangeData);
 		}
-		return result;
 	}
 
 	private void unregisterPlugin(final PluginDescriptorImpl descr)
 	{
 		registeredPlugins.remove(descr.getId());
+		extensionIndex.remove(descr.getId());
+		dependencyIndex.remove(descr.getId());
 		registrationReport.add(new ReportItemImpl(IntegrityCheckReport.Severity.INFO, null,
 			IntegrityCheckReport.Error.NO_ERROR, "pluginUnregistered", descr.getUniqueId())); //$NON-NLS-1$
 	}
@@ -639,6 +1096,8 @@ public final class PluginRegistryImpl implements PluginRegistry
 		if( descr != null )
 		{
 			descr.unregisterFragment(fragment);
+			extensionIndex.update(descr);
+			dependencyIndex.update(descr);
 		}
 		registeredFragments.remove(fragment.getId());
 		registrationReport.add(new ReportItemImpl(IntegrityCheckReport.Severity.INFO, null,
@@ -791,34 +1250,39 @@ public final class PluginRegistryImpl implements PluginRegistry
 	public Collection<PluginDescriptor> getDependingPlugins(final PluginDescriptor descr)
 	{
 		Map<String, PluginDescriptor> result = new HashMap<String, PluginDescriptor>();
-		addDependencies(descr, result);
-		result.remove(descr.getId());
+		LinkedList<String> queue = new LinkedList<String>();
+		queue.add(descr.getId());
+		while( !queue.isEmpty() )
+		{
+			String id = queue.removeFirst();
+			for( String dependedId : dependencyIndex.getDependents(id) )
+			{
+				if( dependedId.equals(descr.getId()) || result.containsKey(dependedId) )
+				{
+					continue;
+				}
+				PluginDescriptor dependedDescr = registeredPlugins.get(dependedId);
+				if( (dependedDescr == null) || !isDependingOn(dependedDescr, id) )
+				{
+					continue;
+				}
+				result.put(dependedId, dependedDescr);
+				queue.add(dependedId);
+			}
+		}
 		return result.values();
 	}
 
-	private void addDependencies(PluginDescriptor descr, Map<String, PluginDescriptor> already)
+	private static boolean isDependingOn(final PluginDescriptor descr, final String pluginId)
 	{
-		if( already.containsKey(descr.getId()) )
-		{
-			return;
-		}
-		already.put(descr.getId(), descr);
-		for( PluginDescriptor dependedDescr : getPluginDescriptors() )
+		for( PluginPrerequisite pre : descr.getPrerequisites() )
 		{
-			if( dependedDescr.getId().equals(descr.getId()) )
+			if( pre.getPluginId().equals(pluginId) && pre.matches() )
 			{
-				continue;
-			}
-			for( PluginPrerequisite pre : dependedDescr.getPrerequisites() )
-			{
-				if( !pre.getPluginId().equals(descr.getId()) || !pre.matches() )
-				{
-					continue;
-				}
-				addDependencies(dependedDescr, already);
-				break;
+				return true;
 			}
 		}
+		return false;
 	}
 
 	/**
@@ -0,0 +1,184 @@
+/*****************************************************************************
+ * Java Plug-in Framework (JPF) Copyright (C) 2004-2007 Dmitry Olshansky This
+ * library is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version. This library is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser
+ * General Public License for more details. You should have received a copy of
+ * the GNU Lesser General Public License along with this library; if not, write
+ * to the Free Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA
+ * 02111-1307 USA
+ *****************************************************************************/
+package org.java.plugin.standard;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.URL;
+import java.security.CodeSource;
+import java.security.ProtectionDomain;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.java.plugin.util.IoUtil;
+
+/**
+ * Classes defined by plug-in class loaders during a training run, saved in
+ * the class list format of JVM class data sharing. Classes of custom class
+ * loaders are written with their JAR file as <code>source</code> and with
+ * references to their super class and interfaces, so
+ * <code>java -Xshare:dump -XX:SharedClassListFile=...</code> can archive them.
+ * Classes from folder libraries can't be archived and are skipped.
+ *
+ * @version $Id$
+ */
+final class CdsClassList
+{
+	static Log log = LogFactory.getLog(CdsClassList.class);
+
+	private final Queue<Class<?>> classes = new ConcurrentLinkedQueue<Class<?>>();
+
+	/**
+	 * @param cls class defined by plug-in class loader
+	 */
+	void record(final Class<?> cls)
+	{
+		classes.add(cls);
+	}
+
+	void clear()
+	{
+		classes.clear();
+	}
+
+	void save(final File file)
+	{
+		try
+		{
+			File folder = file.getParentFile();
+			if( (folder != null) && !folder.exists() )
+			{
+				folder.mkdirs();
+			}
+			Writer out = new OutputStreamWriter(new FileOutputStream(file, false), "UTF-8"); //$NON-NLS-1$
+			try
+			{
+				Map<Class<?>, Integer> ids = new HashMap<Class<?>, Integer>();
+				int skipped = 0;
+				for( Class<?> cls : classes )
+				{
+					if( write(out, cls, ids) < 0 )
+					{
+						skipped++;
+					}
+				}
+				if( log.isDebugEnabled() )
+				{
+					log.debug("class list saved to file " + file //$NON-NLS-1$
+						+ ", classes=" + ids.size() + ", skipped=" + skipped); //$NON-NLS-1$ //$NON-NLS-2$
+				}
+			}
+			finally
+			{
+				out.close();
+			}
+		}
+		catch( IOException ioe )
+		{
+			log.warn("failed saving class list to file " + file, ioe); //$NON-NLS-1$
+		}
+	}
+
+	/**
+	 * Writes given class, after it's super types, if it wasn't written yet.
+	 * 
+	 * @return ID of given class in the list or <code>-1</code> if class can't
+	 *         be archived
+	 */
+	private static int write(final Writer out, final Class<?> cls, final Map<Class<?>, Integer> ids)
+		throws IOException
+	{
+		Integer id = ids.get(cls);
+		if( id != null )
+		{
+			return id.intValue();
+		}
+		String name = cls.getName().replace('.', '/');
+		if( isBuiltIn(cls.getClassLoader()) )
+		{
+			id = Integer.valueOf(ids.size());
+			ids.put(cls, id);
+			out.write(name + " id: " + id + '\n'); //$NON-NLS-1$
+			return id.intValue();
+		}
+		String source = getSource(cls);
+		if( source == null )
+		{
+			return -1;
+		}
+		Class<?> superClass = (cls.getSuperclass() != null) ? cls.getSuperclass() : Object.class;
+		int superId = write(out, superClass, ids);
+		if( superId < 0 )
+		{
+			return -1;
+		}
+		StringBuilder interfaces = new StringBuilder();
+		for( Class<?> itf : cls.getInterfaces() )
+		{
+			int itfId = write(out, itf, ids);
+			if( itfId < 0 )
+			{
+				return -1;
+			}
+			interfaces.append(' ').append(itfId);
+		}
+		id = Integer.valueOf(ids.size());
+		ids.put(cls, id);
+		StringBuilder line = new StringBuilder(name);
+		line.append(" id: ").append(id).append(" super: ").append(superId); //$NON-NLS-1$ //$NON-NLS-2$
+		if( interfaces.length() > 0 )
+		{
+			line.append(" interfaces:").append(interfaces); //$NON-NLS-1$
+		}
+		line.append(" source: ").append(source).append('\n'); //$NON-NLS-1$
+		out.write(line.toString());
+		return id.intValue();
+	}
+
+	private static boolean isBuiltIn(final ClassLoader loader)
+	{
+		ClassLoader system = ClassLoader.getSystemClassLoader();
+		return (loader == null) || (loader == system) || (loader == system.getParent());
+	}
+
+	/**
+	 * @return path of local JAR file given class was loaded from or
+	 *         <code>null</code>
+	 */
+	private static String getSource(final Class<?> cls)
+	{
+		ProtectionDomain domain = cls.getProtectionDomain();
+		CodeSource codeSource = (domain != null) ? domain.getCodeSource() : null;
+		URL location = (codeSource != null) ? codeSource.getLocation() : null;
+		if( location == null )
+		{
+			return null;
+		}
+		File file = IoUtil.url2file(location);
+		if( (file == null) || !file.isFile()
+			|| !file.getName().toLowerCase(Locale.ENGLISH).endsWith(".jar") ) //$NON-NLS-1$
+		{
+			return null;
+		}
+		return file.getAbsolutePath();
+	}
+}
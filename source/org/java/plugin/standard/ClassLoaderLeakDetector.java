@@ -0,0 +1,457 @@
+/*****************************************************************************
+ * Java Plug-in Framework (JPF) Copyright (C) 2004-2007 Dmitry Olshansky This
+ * library is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version. This library is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser
+ * General Public License for more details. You should have received a copy of
+ * the GNU Lesser General Public License along with this library; if not, write
+ * to the Free Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA
+ * 02111-1307 USA
+ *****************************************************************************/
+package org.java.plugin.standard;
+
+import java.lang.management.ClassLoadingMXBean;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.ListenerNotFoundException;
+import javax.management.MBeanServer;
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+import javax.management.openmbean.CompositeData;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.java.plugin.PluginClassLoader;
+import org.java.plugin.PluginManager;
+import org.java.plugin.PluginManager.EventListener;
+import org.java.plugin.registry.PluginDescriptor;
+
+import com.sun.management.GarbageCollectionNotificationInfo;
+
+/**
+ * Tracks disposed plug-in class loaders with weak references and reports
+ * those that are still reachable after given number of garbage collections,
+ * naming retention roots known to the framework: package statistics, manager
+ * event listeners, threads, import delegates and dynamic class providers of
+ * other plug-ins. Only major (old generation) collections are counted, as
+ * young collections don't unload classes. Tracked loaders are checked, on a
+ * background thread, after each such collection.
+ *
+ * @version $Id$
+ */
+final class ClassLoaderLeakDetector implements ClassLoaderLeakDetectorMBean
+{
+	static Log log = LogFactory.getLog(ClassLoaderLeakDetector.class);
+
+	private static final int MAX_REPORTED_PACKAGES = 10;
+
+	private final int gcCount;
+	private final ReferenceQueue<StandardPluginClassLoader> queue = new ReferenceQueue<StandardPluginClassLoader>();
+	private final List<TrackedLoader> tracked = new ArrayList<TrackedLoader>();
+	private final Map<TrackedLoader, String> leaks = new LinkedHashMap<TrackedLoader, String>();
+	private final long initialUnloadedClasses;
+	private long reclaimed;
+	private long metaspaceAfterReclaim = -1;
+	private volatile int trackedCount;
+	private final AtomicLong majorCollections = new AtomicLong();
+	private final AtomicBoolean checkPending = new AtomicBoolean();
+	private volatile ThreadPoolExecutor checkExecutor;
+	private StandardPluginManager manager;
+	private ObjectName objectName;
+	private final NotificationListener gcListener = new NotificationListener()
+	{
+		public void handleNotification(final Notification notification, final Object handback)
+		{
+			if( !GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION.equals(notification
+				.getType()) )
+			{
+				return;
+			}
+			if( !isMajorCollection(GarbageCollectionNotificationInfo.from(
+				(CompositeData) notification.getUserData()).getGcAction()) )
+			{
+				return;
+			}
+			majorCollections.incrementAndGet();
+			if( trackedCount > 0 )
+			{
+				scheduleCheck();
+			}
+		}
+	};
+
+	/**
+	 * @param aGcCount number of major garbage collections after which
+	 *            reachable disposed class loader is reported
+	 */
+	ClassLoaderLeakDetector(final int aGcCount)
+	{
+		gcCount = aGcCount;
+		initialUnloadedClasses = ManagementFactory.getClassLoadingMXBean().getUnloadedClassCount();
+	}
+
+	/**
+	 * Starts listening to garbage collections and registers this detector in
+	 * platform MBean server.
+	 */
+	synchronized void start(final PluginManager aManager)
+	{
+		if( aManager instanceof StandardPluginManager )
+		{
+			manager = (StandardPluginManager) aManager;
+		}
+		checkExecutor = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS,
+			new LinkedBlockingQueue<Runnable>(), new ThreadFactory()
+			{
+				public Thread newThread(final Runnable r)
+				{
+					Thread result = new Thread(r, "jpf-leak-detector"); //$NON-NLS-1$
+					result.setDaemon(true);
+					return result;
+				}
+			});
+		checkExecutor.allowCoreThreadTimeOut(true);
+		for( GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans() )
+		{
+			if( gc instanceof NotificationEmitter )
+			{
+				((NotificationEmitter) gc).addNotificationListener(gcListener, null, null);
+			}
+		}
+		try
+		{
+			objectName = new ObjectName("org.java.plugin:type=ClassLoaderLeakDetector,manager=" //$NON-NLS-1$
+				+ Integer.toHexString(System.identityHashCode(aManager)));
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			if( server.isRegistered(objectName) )
+			{
+				server.unregisterMBean(objectName);
+			}
+			server.registerMBean(new StandardMBean(this, ClassLoaderLeakDetectorMBean.class), objectName);
+		}
+		catch( JMException jme )
+		{
+			log.warn("failed registering class loader leak detector", jme); //$NON-NLS-1$
+			objectName = null;
+		}
+		catch( SecurityException se )
+		{
+			log.warn("failed registering class loader leak detector", se); //$NON-NLS-1$
+			objectName = null;
+		}
+	}
+
+	synchronized void stop()
+	{
+		for( GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans() )
+		{
+			if( gc instanceof NotificationEmitter )
+			{
+				try
+				{
+					((NotificationEmitter) gc).removeNotificationListener(gcListener);
+				}
+				catch( ListenerNotFoundException lnfe )
+				{
+					// ignore
+				}
+			}
+		}
+		if( checkExecutor != null )
+		{
+			checkExecutor.shutdown();
+			checkExecutor = null;
+		}
+		if( objectName != null )
+		{
+			try
+			{
+				ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+			}
+			catch( JMException jme )
+			{
+				log.warn("failed unregistering class loader leak detector", jme); //$NON-NLS-1$
+			}
+			objectName = null;
+		}
+		tracked.clear();
+		trackedCount = 0;
+		leaks.clear();
+		manager = null;
+	}
+
+	/**
+	 * @param loader disposed class loader
+	 */
+	synchronized void track(final StandardPluginClassLoader loader)
+	{
+		tracked.add(new TrackedLoader(loader, queue, majorCollections.get()));
+		trackedCount = tracked.size();
+		if( log.isDebugEnabled() )
+		{
+			log.debug("tracking disposed class loader " + loader); //$NON-NLS-1$
+		}
+	}
+
+	/**
+	 * @see org.java.plugin.standard.ClassLoaderLeakDetectorMBean#check()
+	 */
+	public synchronized String[] check()
+	{
+		boolean reclaimedNow = false;
+		for( Reference<? extends StandardPluginClassLoader> ref = queue.poll(); ref != null; ref = queue
+			.poll() )
+		{
+			TrackedLoader loader = (TrackedLoader) ref;
+			tracked.remove(loader);
+			trackedCount = tracked.size();
+			reclaimed++;
+			reclaimedNow = true;
+			if( leaks.remove(loader) != null )
+			{
+				log.info("class loader of plug-in " + loader.pluginUid //$NON-NLS-1$
+					+ ", reported as leaked, has been reclaimed"); //$NON-NLS-1$
+			}
+		}
+		if( reclaimedNow )
+		{
+			metaspaceAfterReclaim = getMetaspaceUsed();
+		}
+		long gcs = majorCollections.get();
+		for( TrackedLoader loader : tracked )
+		{
+			if( leaks.containsKey(loader) || ((gcs - loader.gcCountAtDisposal) < gcCount) )
+			{
+				continue;
+			}
+			StandardPluginClassLoader cl = loader.get();
+			if( cl == null )
+			{
+				continue; // will be polled from the queue
+			}
+			String report = "class loader of plug-in " + loader.pluginUid //$NON-NLS-1$
+				+ " survived " + (gcs - loader.gcCountAtDisposal) //$NON-NLS-1$
+				+ " major garbage collections after it was disposed," //$NON-NLS-1$
+				+ " known retention roots: " //$NON-NLS-1$
+				+ findRoots(cl, loader.descriptor);
+			leaks.put(loader, report);
+			log.warn(report);
+		}
+		return getSuspectedLeaks();
+	}
+
+	private String findRoots(final StandardPluginClassLoader cl, final PluginDescriptor descr)
+	{
+		List<String> roots = new ArrayList<String>();
+		List<String> packages = StandardPluginClassLoader.getCachedPackages(descr);
+		if( !packages.isEmpty() )
+		{
+			roots.add("package statistics entries " //$NON-NLS-1$
+				+ ((packages.size() > MAX_REPORTED_PACKAGES) ? packages.subList(0, MAX_REPORTED_PACKAGES)
+					+ "..." : packages.toString())); //$NON-NLS-1$
+		}
+		StandardPluginManager mgr = manager;
+		if( mgr != null )
+		{
+			for( EventListener listener : mgr.getEventListeners() )
+			{
+				if( listener.getClass().getClassLoader() == cl )
+				{
+					roots.add("plug-in manager event listener " + listener); //$NON-NLS-1$
+				}
+			}
+			for( PluginClassLoader other : mgr.getClassLoaders() )
+			{
+				if( !(other instanceof StandardPluginClassLoader) || (other == cl) )
+				{
+					continue;
+				}
+				StandardPluginClassLoader loader = (StandardPluginClassLoader) other;
+				if( loader.isDelegatingTo(cl) )
+				{
+					roots.add("import delegates of plug-in " //$NON-NLS-1$
+						+ loader.getPluginDescriptor().getUniqueId());
+				}
+				for( DynamicClassLoader provider : loader.getDynamicClassLoaders() )
+				{
+					if( provider.getClass().getClassLoader() == cl )
+					{
+						roots.add("dynamic class provider " + provider //$NON-NLS-1$
+							+ " of plug-in " + loader.getPluginDescriptor().getUniqueId()); //$NON-NLS-1$
+					}
+				}
+			}
+		}
+		for( Thread thread : getThreads() )
+		{
+			if( thread.getContextClassLoader() == cl )
+			{
+				roots.add("context class loader of thread " + thread.getName()); //$NON-NLS-1$
+			}
+			if( thread.getClass().getClassLoader() == cl )
+			{
+				roots.add("running thread " + thread.getName()); //$NON-NLS-1$
+			}
+		}
+		return roots.isEmpty() ? "none, heap dump analysis required" : roots.toString(); //$NON-NLS-1$
+	}
+
+	private static Thread[] getThreads()
+	{
+		ThreadGroup root = Thread.currentThread().getThreadGroup();
+		while( root.getParent() != null )
+		{
+			root = root.getParent();
+		}
+		Thread[] result = new Thread[root.activeCount() + 16];
+		int count;
+		while( (count = root.enumerate(result, true)) == result.length )
+		{
+			result = new Thread[result.length * 2];
+		}
+		Thread[] threads = new Thread[count];
+		System.arraycopy(result, 0, threads, 0, count);
+		return threads;
+	}
+
+	/**
+	 * Runs {@link #check()} on background thread, unless it is already
+	 * scheduled, so that retention roots are not analyzed on the thread
+	 * delivering garbage collection notifications.
+	 */
+	private void scheduleCheck()
+	{
+		ThreadPoolExecutor executor = checkExecutor;
+		if( (executor == null) || !checkPending.compareAndSet(false, true) )
+		{
+			return;
+		}
+		try
+		{
+			executor.execute(new Runnable()
+			{
+				public void run()
+				{
+					checkPending.set(false);
+					check();
+				}
+			});
+		}
+		catch( RejectedExecutionException ree )
+		{
+			// detector has been stopped
+			checkPending.set(false);
+		}
+	}
+
+	/**
+	 * @param gcAction action reported in garbage collection notification
+	 * @return <code>false</code> for young collections and for pauses of
+	 *         concurrent collectors, that are reported as part of a cycle
+	 */
+	static boolean isMajorCollection(final String gcAction)
+	{
+		if( gcAction == null )
+		{
+			return false;
+		}
+		return (gcAction.indexOf("major") != -1) //$NON-NLS-1$
+			|| (gcAction.indexOf("cycle") != -1) //$NON-NLS-1$
+			|| (gcAction.indexOf("concurrent") != -1); //$NON-NLS-1$
+	}
+
+	/**
+	 * @see org.java.plugin.standard.ClassLoaderLeakDetectorMBean#getTrackedLoaders()
+	 */
+	public synchronized int getTrackedLoaders()
+	{
+		return tracked.size();
+	}
+
+	/**
+	 * @see org.java.plugin.standard.ClassLoaderLeakDetectorMBean#getReclaimedLoaders()
+	 */
+	public synchronized long getReclaimedLoaders()
+	{
+		return reclaimed;
+	}
+
+	/**
+	 * @see org.java.plugin.standard.ClassLoaderLeakDetectorMBean#getSuspectedLeaks()
+	 */
+	public synchronized String[] getSuspectedLeaks()
+	{
+		return leaks.values().toArray(new String[leaks.size()]);
+	}
+
+	/**
+	 * @see org.java.plugin.standard.ClassLoaderLeakDetectorMBean#getUnloadedClasses()
+	 */
+	public long getUnloadedClasses()
+	{
+		ClassLoadingMXBean bean = ManagementFactory.getClassLoadingMXBean();
+		return bean.getUnloadedClassCount() - initialUnloadedClasses;
+	}
+
+	/**
+	 * @see org.java.plugin.standard.ClassLoaderLeakDetectorMBean#getMetaspaceUsedAfterReclaim()
+	 */
+	public synchronized long getMetaspaceUsedAfterReclaim()
+	{
+		return metaspaceAfterReclaim;
+	}
+
+	/**
+	 * @see org.java.plugin.standard.ClassLoaderLeakDetectorMBean#getMetaspaceUsed()
+	 */
+	public long getMetaspaceUsed()
+	{
+		for( MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans() )
+		{
+			if( "Metaspace".equals(pool.getName()) ) //$NON-NLS-1$
+			{
+				return pool.getUsage().getUsed();
+			}
+		}
+		return -1;
+	}
+
+	private static final class TrackedLoader extends WeakReference<StandardPluginClassLoader>
+	{
+		final String pluginUid;
+		final PluginDescriptor descriptor;
+		final long gcCountAtDisposal;
+
+		TrackedLoader(final StandardPluginClassLoader loader,
+			final ReferenceQueue<StandardPluginClassLoader> queue, final long aGcCount)
+		{
+			super(loader, queue);
+			descriptor = loader.getPluginDescriptor();
+			pluginUid = descriptor.getUniqueId();
+			gcCountAtDisposal = aGcCount;
+		}
+	}
+}
@@ -0,0 +1,69 @@
+/*****************************************************************************
+ * Java Plug-in Framework (JPF) Copyright (C) 2004-2007 Dmitry Olshansky This
+ * library is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version. This library is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser
+ * General Public License for more details. You should have received a copy of
+ * the GNU Lesser General Public License along with this library; if not, write
+ * to the Free Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA
+ * 02111-1307 USA
+ *****************************************************************************/
+package org.java.plugin.standard;
+
+/**
+ * Management interface of disposed plug-in class loaders tracking. Registered
+ * in platform MBean server under name
+ * <code>org.java.plugin:type=ClassLoaderLeakDetector,manager=&lt;hash&gt;</code>
+ * when <code>leakDetectionGcCount</code> parameter of
+ * {@link StandardPluginLifecycleHandler} is set.
+ * 
+ * @version $Id$
+ */
+public interface ClassLoaderLeakDetectorMBean
+{
+	/**
+	 * @return number of disposed plug-in class loaders that haven't been
+	 *         garbage collected yet
+	 */
+	int getTrackedLoaders();
+
+	/**
+	 * @return number of disposed plug-in class loaders that have been garbage
+	 *         collected
+	 */
+	long getReclaimedLoaders();
+
+	/**
+	 * @return descriptions of disposed plug-in class loaders that survived
+	 *         configured number of major garbage collections, with known
+	 *         retention roots
+	 */
+	String[] getSuspectedLeaks();
+
+	/**
+	 * @return number of classes unloaded by JVM since tracking started
+	 */
+	long getUnloadedClasses();
+
+	/**
+	 * @return metaspace used at last garbage collection that reclaimed plug-in
+	 *         class loader, in bytes, or <code>-1</code> if not known
+	 */
+	long getMetaspaceUsedAfterReclaim();
+
+	/**
+	 * @return current metaspace usage in bytes or <code>-1</code> if JVM
+	 *         doesn't report metaspace pool
+	 */
+	long getMetaspaceUsed();
+
+	/**
+	 * Checks tracked class loaders now.
+	 * 
+	 * @return descriptions of suspected leaks
+	 */
+	String[] check();
+}
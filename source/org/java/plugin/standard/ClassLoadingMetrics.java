@@ -0,0 +1,156 @@
+/*****************************************************************************
+ * Java Plug-in Framework (JPF) Copyright (C) 2004-2007 Dmitry Olshansky This
+ * library is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version. This library is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser
+ * General Public License for more details. You should have received a copy of
+ * the GNU Lesser General Public License along with this library; if not, write
+ * to the Free Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA
+ * 02111-1307 USA
+ *****************************************************************************/
+package org.java.plugin.standard;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Class loading counters of one plug-in class loader. Counters are striped so
+ * that concurrent class loading threads don't contend on them.
+ * 
+ * @version $Id$
+ */
+final class ClassLoadingMetrics implements ClassLoadingMetricsMBean
+{
+	private final String pluginId;
+	final LongAdder localHits = new LongAdder();
+	final LongAdder packageRouteHits = new LongAdder();
+	final LongAdder packageRouteMisses = new LongAdder();
+	final LongAdder guessHits = new LongAdder();
+	final LongAdder guessMisses = new LongAdder();
+	final LongAdder importScans = new LongAdder();
+	final LongAdder importScanHits = new LongAdder();
+	final LongAdder findClassCount = new LongAdder();
+	final LongAdder findClassTime = new LongAdder();
+	final LongAdder visibilityRejections = new LongAdder();
+
+	ClassLoadingMetrics(final String aPluginId)
+	{
+		pluginId = aPluginId;
+	}
+
+	/**
+	 * @param nanos time spent in one find class attempt
+	 */
+	void findClassDone(final long nanos)
+	{
+		findClassCount.increment();
+		findClassTime.add(nanos);
+	}
+
+	/**
+	 * @see org.java.plugin.standard.ClassLoadingMetricsMBean#getPluginId()
+	 */
+	public String getPluginId()
+	{
+		return pluginId;
+	}
+
+	/**
+	 * @see org.java.plugin.standard.ClassLoadingMetricsMBean#getLocalHits()
+	 */
+	public long getLocalHits()
+	{
+		return localHits.sum();
+	}
+
+	/**
+	 * @see org.java.plugin.standard.ClassLoadingMetricsMBean#getPackageRouteHits()
+	 */
+	public long getPackageRouteHits()
+	{
+		return packageRouteHits.sum();
+	}
+
+	/**
+	 * @see org.java.plugin.standard.ClassLoadingMetricsMBean#getPackageRouteMisses()
+	 */
+	public long getPackageRouteMisses()
+	{
+		return packageRouteMisses.sum();
+	}
+
+	/**
+	 * @see org.java.plugin.standard.ClassLoadingMetricsMBean#getGuessHits()
+	 */
+	public long getGuessHits()
+	{
+		return guessHits.sum();
+	}
+
+	/**
+	 * @see org.java.plugin.standard.ClassLoadingMetricsMBean#getGuessMisses()
+	 */
+	public long getGuessMisses()
+	{
+		return guessMisses.sum();
+	}
+
+	/**
+	 * @see org.java.plugin.standard.ClassLoadingMetricsMBean#getImportScans()
+	 */
+	public long getImportScans()
+	{
+		return importScans.sum();
+	}
+
+	/**
+	 * @see org.java.plugin.standard.ClassLoadingMetricsMBean#getImportScanHits()
+	 */
+	public long getImportScanHits()
+	{
+		return importScanHits.sum();
+	}
+
+	/**
+	 * @see org.java.plugin.standard.ClassLoadingMetricsMBean#getFindClassCount()
+	 */
+	public long getFindClassCount()
+	{
+		return findClassCount.sum();
+	}
+
+	/**
+	 * @see org.java.plugin.standard.ClassLoadingMetricsMBean#getFindClassTime()
+	 */
+	public long getFindClassTime()
+	{
+		return findClassTime.sum() / 1000;
+	}
+
+	/**
+	 * @see org.java.plugin.standard.ClassLoadingMetricsMBean#getVisibilityRejections()
+	 */
+	public long getVisibilityRejections()
+	{
+		return visibilityRejections.sum();
+	}
+
+	/**
+	 * @see org.java.plugin.standard.ClassLoadingMetricsMBean#reset()
+	 */
+	public void reset()
+	{
+		localHits.reset();
+		packageRouteHits.reset();
+		packageRouteMisses.reset();
+		guessHits.reset();
+		guessMisses.reset();
+		importScans.reset();
+		importScanHits.reset();
+		findClassCount.reset();
+		findClassTime.reset();
+		visibilityRejections.reset();
+	}
+}
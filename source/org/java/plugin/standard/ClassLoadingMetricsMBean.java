@@ -0,0 +1,90 @@
+/*****************************************************************************
+ * Java Plug-in Framework (JPF) Copyright (C) 2004-2007 Dmitry Olshansky This
+ * library is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version. This library is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser
+ * General Public License for more details. You should have received a copy of
+ * the GNU Lesser General Public License along with this library; if not, write
+ * to the Free Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA
+ * 02111-1307 USA
+ *****************************************************************************/
+package org.java.plugin.standard;
+
+/**
+ * Management interface of plug-in class loading statistics. Instances are
+ * registered by {@link StandardPluginManager} in platform MBean server, one
+ * per plug-in class loader, under name
+ * <code>org.java.plugin:type=PluginClassLoader,manager=&lt;hash&gt;,plugin=&lt;plug-in ID&gt;</code>.
+ * 
+ * @version $Id$
+ */
+public interface ClassLoadingMetricsMBean
+{
+	/**
+	 * @return plug-in ID
+	 */
+	String getPluginId();
+
+	/**
+	 * @return number of classes found in plug-in's own code libraries
+	 */
+	long getLocalHits();
+
+	/**
+	 * @return number of class look-ups resolved by package routes built from
+	 *         code libraries index
+	 */
+	long getPackageRouteHits();
+
+	/**
+	 * @return number of class look-ups where package routes didn't help
+	 */
+	long getPackageRouteMisses();
+
+	/**
+	 * @return number of class look-ups resolved by guessing plug-in from
+	 *         package statistics (package or parent package)
+	 */
+	long getGuessHits();
+
+	/**
+	 * @return number of class look-ups where package statistics guess didn't
+	 *         help
+	 */
+	long getGuessMisses();
+
+	/**
+	 * @return number of full scans of imported plug-ins
+	 */
+	long getImportScans();
+
+	/**
+	 * @return number of full scans of imported plug-ins that found requested
+	 *         class
+	 */
+	long getImportScanHits();
+
+	/**
+	 * @return number of attempts to read class from plug-in's code libraries
+	 */
+	long getFindClassCount();
+
+	/**
+	 * @return total time, in microseconds, spent reading and defining classes
+	 *         from plug-in's code libraries
+	 */
+	long getFindClassTime();
+
+	/**
+	 * @return number of classes rejected by plug-in libraries export rules
+	 */
+	long getVisibilityRejections();
+
+	/**
+	 * Resets all counters to zero.
+	 */
+	void reset();
+}
@@ -0,0 +1,228 @@
+/*****************************************************************************
+ * Java Plug-in Framework (JPF) Copyright (C) 2004-2007 Dmitry Olshansky This
+ * library is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version. This library is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser
+ * General Public License for more details. You should have received a copy of
+ * the GNU Lesser General Public License along with this library; if not, write
+ * to the Free Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA
+ * 02111-1307 USA
+ *****************************************************************************/
+package org.java.plugin.standard;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Queue;
+import java.util.StringTokenizer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Ordered lists of classes, per plug-in, defined by plug-in class loaders
+ * during the first period of application uptime. Recorded profile is saved to
+ * a file and used at next start to preload the same classes before they are
+ * requested. Each class is recorded once, when it is first requested by the
+ * application; classes loaded by profile replay threads are not recorded, so
+ * the profile doesn't retain classes that are no longer used.
+ *
+ * @version $Id$
+ */
+final class ClassLoadingProfile
+{
+	static Log log = LogFactory.getLog(ClassLoadingProfile.class);
+
+	private static final ThreadLocal<Boolean> replayThread = new ThreadLocal<Boolean>();
+
+	private final ConcurrentMap<String, Queue<String>> pluginClasses = new ConcurrentHashMap<String, Queue<String>>();
+	private final ConcurrentMap<String, Boolean> recordedClasses = new ConcurrentHashMap<String, Boolean>();
+	private final long recordingDeadline;
+	private volatile boolean recording;
+
+	/**
+	 * @param recordingTime time in milliseconds, starting from now, during
+	 *            which classes are recorded
+	 */
+	ClassLoadingProfile(final long recordingTime)
+	{
+		recording = recordingTime > 0;
+		recordingDeadline = System.currentTimeMillis() + recordingTime;
+	}
+
+	/**
+	 * @param pluginId ID of plug-in that defined class
+	 * @param className name of defined class
+	 */
+	void record(final String pluginId, final String className)
+	{
+		if( !recording || (replayThread.get() != null) )
+		{
+			return;
+		}
+		if( System.currentTimeMillis() > recordingDeadline )
+		{
+			recording = false;
+			recordedClasses.clear();
+			return;
+		}
+		if( recordedClasses.putIfAbsent(pluginId + '|' + className, Boolean.TRUE) != null )
+		{
+			return;
+		}
+		Queue<String> classes = pluginClasses.get(pluginId);
+		if( classes == null )
+		{
+			classes = new ConcurrentLinkedQueue<String>();
+			Queue<String> existing = pluginClasses.putIfAbsent(pluginId, classes);
+			if( existing != null )
+			{
+				classes = existing;
+			}
+		}
+		classes.add(className);
+	}
+
+	/**
+	 * @param pluginId plug-in ID
+	 * @return classes recorded for given plug-in in order they were defined
+	 */
+	List<String> getClasses(final String pluginId)
+	{
+		Queue<String> classes = pluginClasses.get(pluginId);
+		if( classes == null )
+		{
+			return Collections.emptyList();
+		}
+		return new ArrayList<String>(classes);
+	}
+
+	boolean isEmpty()
+	{
+		return pluginClasses.isEmpty();
+	}
+
+	void clear()
+	{
+		recording = false;
+		pluginClasses.clear();
+		recordedClasses.clear();
+	}
+
+	/**
+	 * Marks current thread as the one that replays a profile, classes loaded
+	 * by such thread are not recorded.
+	 *
+	 * @param value <code>true</code> to mark, <code>false</code> to unmark
+	 */
+	static void setReplayThread(final boolean value)
+	{
+		if( value )
+		{
+			replayThread.set(Boolean.TRUE);
+		}
+		else
+		{
+			replayThread.remove();
+		}
+	}
+
+	void load(final File file)
+	{
+		if( !file.isFile() )
+		{
+			return;
+		}
+		Properties data = new Properties();
+		try
+		{
+			InputStream in = new FileInputStream(file);
+			try
+			{
+				data.load(in);
+			}
+			finally
+			{
+				in.close();
+			}
+		}
+		catch( IOException ioe )
+		{
+			log.warn("failed loading class loading profile from file " + file, ioe); //$NON-NLS-1$
+			return;
+		}
+		for( Map.Entry<Object, Object> entry : data.entrySet() )
+		{
+			Queue<String> classes = new ConcurrentLinkedQueue<String>();
+			StringTokenizer st = new StringTokenizer((String) entry.getValue(), ",", false); //$NON-NLS-1$
+			while( st.hasMoreTokens() )
+			{
+				classes.add(st.nextToken());
+			}
+			pluginClasses.put((String) entry.getKey(), classes);
+		}
+		if( log.isDebugEnabled() )
+		{
+			log.debug("class loading profile loaded from file " + file //$NON-NLS-1$
+				+ ", plug-ins=" + pluginClasses.size()); //$NON-NLS-1$
+		}
+	}
+
+	void save(final File file)
+	{
+		Properties data = new Properties();
+		for( Map.Entry<String, Queue<String>> entry : pluginClasses.entrySet() )
+		{
+			StringBuilder buf = new StringBuilder();
+			for( String className : entry.getValue() )
+			{
+				if( buf.length() > 0 )
+				{
+					buf.append(',');
+				}
+				buf.append(className);
+			}
+			data.setProperty(entry.getKey(), buf.toString());
+		}
+		try
+		{
+			File folder = file.getParentFile();
+			if( (folder != null) && !folder.exists() )
+			{
+				folder.mkdirs();
+			}
+			OutputStream out = new FileOutputStream(file, false);
+			try
+			{
+				data.store(out, "This is automatically generated file."); //$NON-NLS-1$
+			}
+			finally
+			{
+				out.close();
+			}
+			if( log.isDebugEnabled() )
+			{
+				log.debug("class loading profile saved to file " + file //$NON-NLS-1$
+					+ ", plug-ins=" + data.size()); //$NON-NLS-1$
+			}
+		}
+		catch( IOException ioe )
+		{
+			log.warn("failed saving class loading profile to file " + file, ioe); //$NON-NLS-1$
+		}
+	}
+}
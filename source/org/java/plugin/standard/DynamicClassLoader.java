@@ -1,6 +1,17 @@
 package org.java.plugin.standard;
 
+/**
+ * Provider of classes generated at runtime, consulted by
+ * {@link StandardPluginClassLoader} before normal class look-up.
+ * 
+ * @see StandardPluginClassLoader#addDynamicClassLoader(DynamicClassLoader)
+ */
 public interface DynamicClassLoader
 {
+	/**
+	 * @param name class name
+	 * @return provided class or <code>null</code> if this provider doesn't
+	 *         know given class
+	 */
 	Class<?> findClass(String name);
 }
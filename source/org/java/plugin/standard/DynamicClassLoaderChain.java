@@ -0,0 +1,145 @@
+/*****************************************************************************
+ * Java Plug-in Framework (JPF) Copyright (C) 2004-2007 Dmitry Olshansky This
+ * library is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version. This library is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser
+ * General Public License for more details. You should have received a copy of
+ * the GNU Lesser General Public License along with this library; if not, write
+ * to the Free Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA
+ * 02111-1307 USA
+ *****************************************************************************/
+package org.java.plugin.standard;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Ordered chain of {@link DynamicClassLoader dynamic class providers} of one
+ * plug-in class loader. Classes returned by providers, as well as names no
+ * provider knows, are cached until they are explicitly invalidated or the
+ * chain is changed.
+ *
+ * @version $Id$
+ */
+final class DynamicClassLoaderChain
+{
+	private static final int MAX_MISSES = 4096;
+	private static final DynamicClassLoader[] EMPTY = new DynamicClassLoader[0];
+
+	private volatile DynamicClassLoader[] providers = EMPTY;
+	private final ConcurrentMap<String, Class<?>> classes = new ConcurrentHashMap<String, Class<?>>();
+	private final NegativeLookupCache misses = new NegativeLookupCache(MAX_MISSES);
+	private final AtomicInteger generation = new AtomicInteger();
+
+	boolean isEmpty()
+	{
+		return providers.length == 0;
+	}
+
+	/**
+	 * @param name class name
+	 * @return class provided by the first provider in chain that knows given
+	 *         class or <code>null</code>
+	 */
+	Class<?> findClass(final String name)
+	{
+		DynamicClassLoader[] chain = providers;
+		if( chain.length == 0 )
+		{
+			return null;
+		}
+		Class<?> result = classes.get(name);
+		if( (result != null) || misses.contains(name) )
+		{
+			return result;
+		}
+		int gen = generation.get();
+		for( DynamicClassLoader provider : chain )
+		{
+			result = provider.findClass(name);
+			if( result != null )
+			{
+				break;
+			}
+		}
+		if( result != null )
+		{
+			classes.put(name, result);
+		}
+		else
+		{
+			misses.add(name);
+		}
+		if( gen != generation.get() )
+		{
+			// invalidated while providers were queried
+			classes.remove(name);
+			misses.clear();
+		}
+		return result;
+	}
+
+	synchronized void add(final DynamicClassLoader provider)
+	{
+		DynamicClassLoader[] chain = Arrays.copyOf(providers, providers.length + 1);
+		chain[chain.length - 1] = provider;
+		providers = chain;
+		invalidate();
+	}
+
+	synchronized boolean remove(final DynamicClassLoader provider)
+	{
+		List<DynamicClassLoader> chain = new ArrayList<DynamicClassLoader>(Arrays.asList(providers));
+		if( !chain.remove(provider) )
+		{
+			return false;
+		}
+		providers = chain.toArray(new DynamicClassLoader[chain.size()]);
+		invalidate();
+		return true;
+	}
+
+	synchronized void set(final DynamicClassLoader provider)
+	{
+		providers = (provider == null) ? EMPTY : new DynamicClassLoader[]{provider};
+		invalidate();
+	}
+
+	List<DynamicClassLoader> getProviders()
+	{
+		return Arrays.asList(providers.clone());
+	}
+
+	/**
+	 * @param name name of class to forget
+	 */
+	void invalidate(final String name)
+	{
+		generation.incrementAndGet();
+		classes.remove(name);
+		misses.remove(name);
+	}
+
+	void invalidate()
+	{
+		generation.incrementAndGet();
+		classes.clear();
+		misses.clear();
+	}
+
+	/**
+	 * Forgets names no provider knows, keeping found classes.
+	 */
+	void invalidateMisses()
+	{
+		generation.incrementAndGet();
+		misses.clear();
+	}
+}
@@ -0,0 +1,119 @@
+/*****************************************************************************
+ * Java Plug-in Framework (JPF) Copyright (C) 2004-2007 Dmitry Olshansky This
+ * library is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version. This library is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser
+ * General Public License for more details. You should have received a copy of
+ * the GNU Lesser General Public License along with this library; if not, write
+ * to the Free Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA
+ * 02111-1307 USA
+ *****************************************************************************/
+package org.java.plugin.standard;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Optional flight recorder events of this package. Event classes depend on
+ * <code>jdk.jfr</code> module, so they are loaded only if it is present in
+ * runtime, otherwise no events are emitted.
+ * 
+ * @version $Id$
+ */
+abstract class FlightRecorderEvents
+{
+	static final FlightRecorderEvents INSTANCE = create();
+
+	private static FlightRecorderEvents create()
+	{
+		try
+		{
+			Class.forName("jdk.jfr.Event"); //$NON-NLS-1$
+			return (FlightRecorderEvents) Class.forName(
+				"org.java.plugin.standard.JdkFlightRecorderEvents") //$NON-NLS-1$
+				.getDeclaredConstructor().newInstance();
+		}
+		catch( Exception e )
+		{
+			// flight recorder is not available
+		}
+		catch( LinkageError le )
+		{
+			// flight recorder is not available
+		}
+		Log log = LogFactory.getLog(FlightRecorderEvents.class);
+		if( log.isDebugEnabled() )
+		{
+			log.debug("flight recorder is not available, plug-in events are not emitted"); //$NON-NLS-1$
+		}
+		return new FlightRecorderEvents()
+		{
+			@Override
+			ClassLoadingEvent startClassLoading()
+			{
+				return null;
+			}
+
+			@Override
+			ActivationEvent startActivation()
+			{
+				return null;
+			}
+		};
+	}
+
+	/**
+	 * @return started class look-up event or <code>null</code> if such events
+	 *         are not recorded
+	 */
+	abstract ClassLoadingEvent startClassLoading();
+
+	/**
+	 * @return started plug-in activation event or <code>null</code> if such
+	 *         events are not recorded
+	 */
+	abstract ActivationEvent startActivation();
+
+	/**
+	 * Class look-up request to plug-in class loader.
+	 */
+	interface ClassLoadingEvent
+	{
+		/**
+		 * @param step look-up step, that is going to be tried
+		 */
+		void step(String step);
+
+		/**
+		 * @param pluginId ID of requesting plug-in
+		 * @param className requested class name
+		 * @param result found class or <code>null</code>
+		 */
+		void finish(String pluginId, String className, Class<?> result);
+	}
+
+	/**
+	 * Plug-in activation, including activation of it's prerequisites.
+	 */
+	interface ActivationEvent
+	{
+		/**
+		 * @param time nanoseconds spent activating plug-in prerequisites
+		 */
+		void prerequisitesActivated(long time);
+
+		/**
+		 * @param time nanoseconds spent in <code>Plugin.start()</code>
+		 */
+		void pluginStarted(long time);
+
+		/**
+		 * @param pluginId activated plug-in ID
+		 * @param succeeded <code>true</code> if plug-in has been activated
+		 */
+		void finish(String pluginId, boolean succeeded);
+	}
+}
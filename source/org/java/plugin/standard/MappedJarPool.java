@@ -0,0 +1,532 @@
+/*****************************************************************************
+ * Java Plug-in Framework (JPF) Copyright (C) 2004-2007 Dmitry Olshansky This
+ * library is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version. This library is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser
+ * General Public License for more details. You should have received a copy of
+ * the GNU Lesser General Public License along with this library; if not, write
+ * to the Free Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA
+ * 02111-1307 USA
+ *****************************************************************************/
+package org.java.plugin.standard;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLConnection;
+import java.net.URLStreamHandler;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.jar.Manifest;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Pool of memory-mapped JAR libraries. Each JAR file is mapped once, it's
+ * central directory is read into an index and the file is closed right away,
+ * so mapped libraries don't hold file handles. Class bytes and resources are
+ * copied out of the mapping, no buffer over the mapping is handed out. Mappings
+ * are reference counted by plug-in class loaders and unmapped explicitly when
+ * the last one is disposed, so the file isn't locked until garbage collection.
+ * Resource URL's that are opened after that are served by JDK.
+ * <p>
+ * ZIP64 archives, archives larger than 2GB and multi-release JAR's are not
+ * mapped, as versioned entries are resolved by JDK only. JAR files must not be
+ * overwritten while they are mapped.
+ *
+ * @version $Id$
+ */
+final class MappedJarPool
+{
+	static Log log = LogFactory.getLog(MappedJarPool.class);
+
+	private static final Object unsafe;
+	private static final Method invokeCleaner;
+
+	static
+	{
+		Object theUnsafe = null;
+		Method method = null;
+		try
+		{
+			Class<?> unsafeClass = Class.forName("sun.misc.Unsafe"); //$NON-NLS-1$
+			Field field = unsafeClass.getDeclaredField("theUnsafe"); //$NON-NLS-1$
+			field.setAccessible(true);
+			theUnsafe = field.get(null);
+			method = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class); //$NON-NLS-1$
+		}
+		catch( Exception e )
+		{
+			log.debug("mapped JAR files can't be unmapped explicitly", e); //$NON-NLS-1$
+			theUnsafe = null;
+			method = null;
+		}
+		unsafe = theUnsafe;
+		invokeCleaner = method;
+	}
+
+	private final Map<String, MappedJar> jars = new HashMap<String, MappedJar>();
+
+	/**
+	 * @param file JAR file
+	 * @return mapped JAR or <code>null</code> if given file can't be mapped
+	 */
+	synchronized MappedJar acquire(final File file)
+	{
+		String key = file.getAbsolutePath();
+		MappedJar result = jars.get(key);
+		if( (result != null) && !result.isModified() )
+		{
+			result.references++;
+			return result;
+		}
+		try
+		{
+			result = MappedJar.open(file);
+		}
+		catch( IOException ioe )
+		{
+			log.warn("can't map JAR file " + file, ioe); //$NON-NLS-1$
+			return null;
+		}
+		if( result == null )
+		{
+			return null;
+		}
+		jars.put(key, result);
+		result.references++;
+		return result;
+	}
+
+	synchronized void release(final MappedJar jar)
+	{
+		if( --jar.references > 0 )
+		{
+			return;
+		}
+		String key = jar.file.getAbsolutePath();
+		if( jars.get(key) == jar )
+		{
+			jars.remove(key);
+		}
+		jar.close();
+	}
+
+	synchronized void clear()
+	{
+		jars.clear();
+	}
+
+	/**
+	 * Unmaps given buffer right away, if JDK allows that, otherwise mapping is
+	 * dropped by garbage collector.
+	 * 
+	 * @param buffer mapped buffer, not a duplicate or slice
+	 */
+	static void unmap(final MappedByteBuffer buffer)
+	{
+		if( invokeCleaner == null )
+		{
+			return;
+		}
+		try
+		{
+			invokeCleaner.invoke(unsafe, buffer);
+		}
+		catch( Exception e )
+		{
+			log.debug("can't unmap buffer", e); //$NON-NLS-1$
+		}
+	}
+
+	/**
+	 * Memory-mapped JAR file.
+	 */
+	static final class MappedJar
+	{
+		private static final int LOCAL_HEADER = 0x04034b50;
+		private static final int CENTRAL_HEADER = 0x02014b50;
+		private static final int END_HEADER = 0x06054b50;
+		private static final int STORED = 0;
+		private static final int DEFLATED = 8;
+		private static final Charset UTF8 = Charset.forName("UTF-8"); //$NON-NLS-1$
+
+		final File file;
+		int references;
+		private final long lastModified;
+		private final long length;
+		private final MappedByteBuffer data;
+		/**
+		 * Entry name to {method, local header offset, compressed size, size}.
+		 */
+		private final Map<String, int[]> entries;
+		private final boolean signed;
+		private volatile Manifest manifest;
+		private volatile boolean manifestRead;
+		/**
+		 * Guards mapping against being unmapped while entry is read.
+		 */
+		private final ReadWriteLock lock = new ReentrantReadWriteLock();
+		private boolean closed;
+
+		static MappedJar open(final File file) throws IOException
+		{
+			long lastModified = file.lastModified();
+			long length = file.length();
+			if( length > Integer.MAX_VALUE )
+			{
+				return null;
+			}
+			MappedByteBuffer data;
+			RandomAccessFile raf = new RandomAccessFile(file, "r"); //$NON-NLS-1$
+			try
+			{
+				FileChannel channel = raf.getChannel();
+				data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			}
+			finally
+			{
+				raf.close();
+			}
+			data.order(ByteOrder.LITTLE_ENDIAN);
+			Map<String, int[]> entries = readCentralDirectory(data);
+			if( entries == null )
+			{
+				unmap(data);
+				return null;
+			}
+			MappedJar result = new MappedJar(file, lastModified, length, data, entries);
+			if( result.isMultiRelease() )
+			{
+				log.debug("multi-release JAR file " + file + " is not mapped"); //$NON-NLS-1$ //$NON-NLS-2$
+				result.close();
+				return null;
+			}
+			return result;
+		}
+
+		private static Map<String, int[]> readCentralDirectory(final ByteBuffer data)
+		{
+			int end = -1;
+			for( int i = data.limit() - 22, min = Math.max(0, i - 0xFFFF); i >= min; i-- )
+			{
+				if( data.getInt(i) == END_HEADER )
+				{
+					end = i;
+					break;
+				}
+			}
+			if( end == -1 )
+			{
+				return null;
+			}
+			int total = data.getShort(end + 10) & 0xFFFF;
+			long offset = data.getInt(end + 16) & 0xFFFFFFFFL;
+			if( (total == 0xFFFF) || (offset == 0xFFFFFFFFL) )
+			{
+				return null; // ZIP64
+			}
+			Map<String, int[]> result = new HashMap<String, int[]>(total * 2);
+			int pos = (int) offset;
+			byte[] nameBuf = new byte[256];
+			for( int i = 0; i < total; i++ )
+			{
+				if( (pos + 46 > data.limit()) || (data.getInt(pos) != CENTRAL_HEADER) )
+				{
+					return null;
+				}
+				int flags = data.getShort(pos + 8) & 0xFFFF;
+				int method = data.getShort(pos + 10) & 0xFFFF;
+				long compressedSize = data.getInt(pos + 20) & 0xFFFFFFFFL;
+				long size = data.getInt(pos + 24) & 0xFFFFFFFFL;
+				int nameLength = data.getShort(pos + 28) & 0xFFFF;
+				int extraLength = data.getShort(pos + 30) & 0xFFFF;
+				int commentLength = data.getShort(pos + 32) & 0xFFFF;
+				long localOffset = data.getInt(pos + 42) & 0xFFFFFFFFL;
+				if( (compressedSize == 0xFFFFFFFFL) || (size == 0xFFFFFFFFL) || (localOffset == 0xFFFFFFFFL) )
+				{
+					return null; // ZIP64
+				}
+				if( nameLength > nameBuf.length )
+				{
+					nameBuf = new byte[nameLength];
+				}
+				for( int j = 0; j < nameLength; j++ )
+				{
+					nameBuf[j] = data.get(pos + 46 + j);
+				}
+				String name = new String(nameBuf, 0, nameLength, UTF8);
+				// encrypted entries and unknown methods are served by JDK
+				if( ((flags & 1) == 0) && ((method == STORED) || (method == DEFLATED)) )
+				{
+					result.put(name, new int[]{method, (int) localOffset, (int) compressedSize, (int) size});
+				}
+				pos += 46 + nameLength + extraLength + commentLength;
+			}
+			return result;
+		}
+
+		private MappedJar(final File aFile, final long aLastModified, final long aLength, final MappedByteBuffer aData,
+			final Map<String, int[]> anEntries)
+		{
+			file = aFile;
+			lastModified = aLastModified;
+			length = aLength;
+			data = aData;
+			entries = anEntries;
+			boolean isSigned = false;
+			for( String name : entries.keySet() )
+			{
+				if( name.startsWith("META-INF/") //$NON-NLS-1$
+					&& (name.endsWith(".SF") || name.endsWith(".RSA") //$NON-NLS-1$ //$NON-NLS-2$
+						|| name.endsWith(".DSA") || name.endsWith(".EC")) ) //$NON-NLS-1$ //$NON-NLS-2$
+				{
+					isSigned = true;
+					break;
+				}
+			}
+			signed = isSigned;
+		}
+
+		boolean isModified()
+		{
+			return (file.lastModified() != lastModified) || (file.length() != length);
+		}
+
+		/**
+		 * @return <code>true</code> if JAR is signed, classes of signed JAR's
+		 *         should be loaded by JDK to get their certificates
+		 */
+		boolean isSigned()
+		{
+			return signed;
+		}
+
+		boolean contains(final String name)
+		{
+			return entries.containsKey(name);
+		}
+
+		private boolean isMultiRelease()
+		{
+			Manifest mf = getManifest();
+			return (mf != null)
+				&& "true".equalsIgnoreCase(mf.getMainAttributes().getValue("Multi-Release")); //$NON-NLS-1$ //$NON-NLS-2$
+		}
+
+		/**
+		 * Unmaps this JAR, entries can't be read after that.
+		 */
+		void close()
+		{
+			lock.writeLock().lock();
+			try
+			{
+				if( closed )
+				{
+					return;
+				}
+				closed = true;
+				unmap(data);
+			}
+			finally
+			{
+				lock.writeLock().unlock();
+			}
+		}
+
+		/**
+		 * @return JAR manifest or <code>null</code> if there is no manifest
+		 */
+		Manifest getManifest()
+		{
+			if( !manifestRead )
+			{
+				try
+				{
+					byte[] bytes = getBytes("META-INF/MANIFEST.MF"); //$NON-NLS-1$
+					manifest = (bytes != null) ? new Manifest(new ByteArrayInputStream(bytes)) : null;
+				}
+				catch( IOException ioe )
+				{
+					log.warn("can't read manifest of JAR file " + file, ioe); //$NON-NLS-1$
+				}
+				manifestRead = true;
+			}
+			return manifest;
+		}
+
+		/**
+		 * @param name entry name
+		 * @return entry content or <code>null</code> if there is no such
+		 *         entry
+		 * @throws IOException if entry can't be read
+		 */
+		byte[] getBytes(final String name) throws IOException
+		{
+			int[] entry = entries.get(name);
+			if( entry == null )
+			{
+				return null;
+			}
+			byte[] result = new byte[entry[3]];
+			byte[] compressed = (entry[0] == STORED) ? result : new byte[entry[2]];
+			lock.readLock().lock();
+			try
+			{
+				if( closed )
+				{
+					throw new IOException("JAR file " + file //$NON-NLS-1$
+						+ " has been unmapped"); //$NON-NLS-1$
+				}
+				getEntryData(entry).get(compressed);
+			}
+			finally
+			{
+				lock.readLock().unlock();
+			}
+			if( entry[0] == STORED )
+			{
+				return result;
+			}
+			Inflater inflater = new Inflater(true);
+			try
+			{
+				inflater.setInput(compressed);
+				int count = 0;
+				while( count < result.length )
+				{
+					int n = inflater.inflate(result, count, result.length - count);
+					if( n == 0 )
+					{
+						if( inflater.finished() || inflater.needsDictionary() || inflater.needsInput() )
+						{
+							throw new IOException("unexpected end of entry " + name //$NON-NLS-1$
+								+ " in JAR file " + file); //$NON-NLS-1$
+						}
+					}
+					count += n;
+				}
+			}
+			catch( DataFormatException dfe )
+			{
+				throw new IOException("invalid entry " + name //$NON-NLS-1$
+					+ " in JAR file " + file + ": " + dfe.getMessage()); //$NON-NLS-1$ //$NON-NLS-2$
+			}
+			finally
+			{
+				inflater.end();
+			}
+			return result;
+		}
+
+		/**
+		 * @return stream over a copy of entry data or <code>null</code> if
+		 *         this JAR has been unmapped
+		 */
+		InputStream getInputStream(final String name) throws IOException
+		{
+			if( !entries.containsKey(name) )
+			{
+				throw new FileNotFoundException(name);
+			}
+			byte[] bytes;
+			lock.readLock().lock();
+			try
+			{
+				if( closed )
+				{
+					return null;
+				}
+				bytes = getBytes(name);
+			}
+			finally
+			{
+				lock.readLock().unlock();
+			}
+			return new ByteArrayInputStream(bytes);
+		}
+
+		private ByteBuffer getEntryData(final int[] entry) throws IOException
+		{
+			int pos = entry[1];
+			if( data.getInt(pos) != LOCAL_HEADER )
+			{
+				throw new IOException("invalid local header in JAR file " + file); //$NON-NLS-1$
+			}
+			int start = pos + 30 + (data.getShort(pos + 26) & 0xFFFF) + (data.getShort(pos + 28) & 0xFFFF);
+			ByteBuffer result = data.duplicate();
+			result.limit(start + entry[2]);
+			result.position(start);
+			return result;
+		}
+	}
+
+	/**
+	 * Stream handler for resource URL's served from mapped JAR's. URL's keep
+	 * standard "jar:" form.
+	 */
+	static final class MappedJarHandler extends URLStreamHandler
+	{
+		private final MappedJar jar;
+
+		MappedJarHandler(final MappedJar aJar)
+		{
+			jar = aJar;
+		}
+
+		/**
+		 * @see java.net.URLStreamHandler#openConnection(java.net.URL)
+		 */
+		@Override
+		protected URLConnection openConnection(final URL u)
+		{
+			return new URLConnection(u)
+			{
+				@Override
+				public void connect()
+				{
+					connected = true;
+				}
+
+				@Override
+				public InputStream getInputStream() throws IOException
+				{
+					String spec = getURL().getFile();
+					InputStream result = jar.getInputStream(spec.substring(spec.indexOf("!/") + 2)); //$NON-NLS-1$
+					if( result == null )
+					{
+						// JAR has been unmapped, let JDK read it
+						return new URL(getURL().toExternalForm()).openStream();
+					}
+					return result;
+				}
+
+				@Override
+				public long getLastModified()
+				{
+					return jar.lastModified;
+				}
+			};
+		}
+	}
+}
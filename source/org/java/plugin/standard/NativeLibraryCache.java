@@ -0,0 +1,413 @@
+/*****************************************************************************
+ * Java Plug-in Framework (JPF) Copyright (C) 2004-2007 Dmitry Olshansky This
+ * library is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version. This library is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser
+ * General Public License for more details. You should have received a copy of
+ * the GNU Lesser General Public License along with this library; if not, write
+ * to the Free Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA
+ * 02111-1307 USA
+ *****************************************************************************/
+package org.java.plugin.standard;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.URL;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.java.plugin.util.IoUtil;
+
+/**
+ * Persistent cache of native libraries that can't be loaded directly from
+ * their plug-in location. Libraries are stored in sub-folders named after
+ * their content (SHA-256 digest), so the same library is copied once and then
+ * shared by all plug-ins and all JVM's using the same cache folder. Look-up and
+ * changes of the cache folder are guarded by a file lock. Entries that weren't
+ * used for a long time are evicted, oldest first, when the cache is opened;
+ * entries used recently are never evicted, so a library found by another
+ * process has time to be loaded.
+ *
+ * @version $Id$
+ */
+final class NativeLibraryCache
+{
+	static Log log = LogFactory.getLog(NativeLibraryCache.class);
+
+	private static final String LOCK_FILE = "cache.lock"; //$NON-NLS-1$
+	private static final String TEMP_SUFFIX = ".tmp"; //$NON-NLS-1$
+	private static final long TEMP_FILE_AGE = 60L * 60L * 1000L;
+	private static final long RECENT_ENTRY_AGE = 10L * 60L * 1000L;
+	/**
+	 * File lock is held by JVM, not by thread, so threads of this JVM are
+	 * serialized with this lock.
+	 */
+	private static final Lock jvmLock = new ReentrantLock();
+
+	private final File folder;
+	private final long maxAge;
+	private final long maxSize;
+
+	/**
+	 * @param aFolder cache folder
+	 * @param aMaxAge time in milliseconds after which unused library is evicted
+	 * @param aMaxSize maximum total size of cached libraries in bytes
+	 */
+	NativeLibraryCache(final File aFolder, final long aMaxAge, final long aMaxSize)
+	{
+		folder = aFolder;
+		maxAge = aMaxAge;
+		maxSize = aMaxSize;
+	}
+
+	/**
+	 * Looks up given library in this cache, copying it from given URL if
+	 * needed.
+	 *
+	 * @param libUrl library URL
+	 * @param libname library file name
+	 * @return local library file
+	 * @throws IOException if library can't be copied to the cache
+	 */
+	File getLibrary(final URL libUrl, final String libname) throws IOException
+	{
+		if( !folder.isDirectory() && !folder.mkdirs() )
+		{
+			throw new IOException("can't create cache folder " + folder); //$NON-NLS-1$
+		}
+		File result = new File(new File(folder, getContentKey(libUrl)), libname);
+		RandomAccessFile lockFile = lockFolder();
+		try
+		{
+			if( result.isFile() )
+			{
+				result.setLastModified(System.currentTimeMillis());
+				return result;
+			}
+		}
+		finally
+		{
+			unlockFolder(lockFile);
+		}
+		File tempFile = File.createTempFile("lib", TEMP_SUFFIX, folder); //$NON-NLS-1$
+		try
+		{
+			MessageDigest digest = getDigest();
+			InputStream in = IoUtil.getResourceInputStream(libUrl);
+			try
+			{
+				copy(new DigestInputStream(in, digest), tempFile);
+			}
+			finally
+			{
+				in.close();
+			}
+			// library may have been changed since its key was computed
+			File entryFolder = new File(folder, toHex(digest.digest()));
+			result = new File(entryFolder, libname);
+			lockFile = lockFolder();
+			try
+			{
+				if( !result.isFile() )
+				{
+					if( !entryFolder.isDirectory() && !entryFolder.mkdirs() )
+					{
+						throw new IOException("can't create cache folder " + entryFolder); //$NON-NLS-1$
+					}
+					if( !tempFile.renameTo(result) )
+					{
+						throw new IOException("can't move " + tempFile //$NON-NLS-1$
+							+ " to " + result); //$NON-NLS-1$
+					}
+				}
+				else
+				{
+					result.setLastModified(System.currentTimeMillis());
+				}
+			}
+			finally
+			{
+				unlockFolder(lockFile);
+			}
+			return result;
+		}
+		finally
+		{
+			// does nothing if the file has been moved to the cache
+			tempFile.delete();
+		}
+	}
+
+	/**
+	 * Acquires lock of the cache folder, that must be released with
+	 * {@link #unlockFolder(RandomAccessFile)}.
+	 *
+	 * @return opened lock file
+	 */
+	private RandomAccessFile lockFolder() throws IOException
+	{
+		jvmLock.lock();
+		boolean locked = false;
+		try
+		{
+			RandomAccessFile result = new RandomAccessFile(new File(folder, LOCK_FILE), "rw"); //$NON-NLS-1$
+			try
+			{
+				result.getChannel().lock();
+				locked = true;
+				return result;
+			}
+			finally
+			{
+				if( !locked )
+				{
+					result.close();
+				}
+			}
+		}
+		finally
+		{
+			if( !locked )
+			{
+				jvmLock.unlock();
+			}
+		}
+	}
+
+	private static void unlockFolder(final RandomAccessFile lockFile) throws IOException
+	{
+		try
+		{
+			// closing the channel releases file lock
+			lockFile.close();
+		}
+		finally
+		{
+			jvmLock.unlock();
+		}
+	}
+
+	/**
+	 * Removes libraries that weren't used longer than maximum age and then,
+	 * oldest first, libraries that exceed maximum cache size. Libraries that
+	 * are loaded by other processes may be not removed on some platforms.
+	 */
+	void evict()
+	{
+		if( !folder.isDirectory() )
+		{
+			return;
+		}
+		try
+		{
+			RandomAccessFile lockFile = lockFolder();
+			try
+			{
+				evictEntries();
+			}
+			finally
+			{
+				unlockFolder(lockFile);
+			}
+		}
+		catch( IOException ioe )
+		{
+			log.warn("failed evicting native libraries from cache folder " //$NON-NLS-1$
+				+ folder, ioe);
+		}
+	}
+
+	private void evictEntries()
+	{
+		long now = System.currentTimeMillis();
+		List<File> entries = new ArrayList<File>();
+		long totalSize = 0;
+		int evicted = 0;
+		File[] files = folder.listFiles();
+		if( files == null )
+		{
+			return;
+		}
+		for( File file : files )
+		{
+			if( file.isDirectory() )
+			{
+				long age = now - getLastUsed(file);
+				if( age < RECENT_ENTRY_AGE )
+				{
+					// may be about to be loaded by another process
+					totalSize += getSize(file);
+					continue;
+				}
+				if( age > maxAge )
+				{
+					if( deleteEntry(file) )
+					{
+						evicted++;
+					}
+					continue;
+				}
+				entries.add(file);
+				totalSize += getSize(file);
+			}
+			else if( file.getName().endsWith(TEMP_SUFFIX) && ((now - file.lastModified()) > TEMP_FILE_AGE) )
+			{
+				// left by interrupted copying
+				file.delete();
+			}
+		}
+		if( totalSize > maxSize )
+		{
+			Collections.sort(entries, new Comparator<File>()
+			{
+				public int compare(final File o1, final File o2)
+				{
+					long t1 = getLastUsed(o1);
+					long t2 = getLastUsed(o2);
+					return (t1 < t2) ? -1 : ((t1 == t2) ? 0 : 1);
+				}
+			});
+			for( File entry : entries )
+			{
+				if( totalSize <= maxSize )
+				{
+					break;
+				}
+				long size = getSize(entry);
+				if( deleteEntry(entry) )
+				{
+					totalSize -= size;
+					evicted++;
+				}
+			}
+		}
+		if( log.isDebugEnabled() )
+		{
+			log.debug("native libraries cache " + folder //$NON-NLS-1$
+				+ " checked, evicted=" + evicted //$NON-NLS-1$
+				+ ", size=" + totalSize); //$NON-NLS-1$
+		}
+	}
+
+	static long getLastUsed(final File entry)
+	{
+		long result = entry.lastModified();
+		File[] files = entry.listFiles();
+		if( files == null )
+		{
+			return result;
+		}
+		for( File file : files )
+		{
+			result = Math.max(result, file.lastModified());
+		}
+		return result;
+	}
+
+	private static long getSize(final File entry)
+	{
+		long result = 0;
+		File[] files = entry.listFiles();
+		if( files == null )
+		{
+			return result;
+		}
+		for( File file : files )
+		{
+			result += file.length();
+		}
+		return result;
+	}
+
+	private static boolean deleteEntry(final File entry)
+	{
+		return IoUtil.emptyFolder(entry) && entry.delete();
+	}
+
+	/**
+	 * @return hex encoded SHA-256 digest of given library content
+	 */
+	private static String getContentKey(final URL libUrl) throws IOException
+	{
+		MessageDigest digest = getDigest();
+		InputStream in = IoUtil.getResourceInputStream(libUrl);
+		try
+		{
+			byte[] buf = new byte[64 * 1024];
+			int count;
+			while( (count = in.read(buf)) != -1 )
+			{
+				digest.update(buf, 0, count);
+			}
+		}
+		finally
+		{
+			in.close();
+		}
+		return toHex(digest.digest());
+	}
+
+	private static MessageDigest getDigest() throws IOException
+	{
+		try
+		{
+			return MessageDigest.getInstance("SHA-256"); //$NON-NLS-1$
+		}
+		catch( NoSuchAlgorithmException nsae )
+		{
+			throw new IOException("SHA-256 digest is not available"); //$NON-NLS-1$
+		}
+	}
+
+	private static String toHex(final byte[] data)
+	{
+		StringBuilder result = new StringBuilder(data.length * 2);
+		for( byte b : data )
+		{
+			result.append(Character.forDigit((b >> 4) & 0xF, 16));
+			result.append(Character.forDigit(b & 0xF, 16));
+		}
+		return result.toString();
+	}
+
+	/**
+	 * Copies given stream to file using channel transfer.
+	 */
+	static void copy(final InputStream in, final File file) throws IOException
+	{
+		FileOutputStream out = new FileOutputStream(file, false);
+		try
+		{
+			FileChannel channel = out.getChannel();
+			ReadableByteChannel source = Channels.newChannel(in);
+			long position = 0;
+			long count;
+			while( (count = channel.transferFrom(source, position, 1024 * 1024)) > 0 )
+			{
+				position += count;
+			}
+		}
+		finally
+		{
+			out.close();
+		}
+	}
+}
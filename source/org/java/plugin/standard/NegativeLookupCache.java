@@ -0,0 +1,121 @@
+/*****************************************************************************
+ * Java Plug-in Framework (JPF) Copyright (C) 2004-2007 Dmitry Olshansky This
+ * library is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version. This library is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser
+ * General Public License for more details. You should have received a copy of
+ * the GNU Lesser General Public License along with this library; if not, write
+ * to the Free Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA
+ * 02111-1307 USA
+ *****************************************************************************/
+package org.java.plugin.standard;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded set of class names that are known to be absent in plug-in code
+ * libraries. Names are kept in two generations, each holding up to half of
+ * maximum size. When current generation is full, it becomes the old one and
+ * the oldest names are dropped, while names found in old generation are moved
+ * to current one, so recently used names survive eviction. Look-up takes a
+ * lock only when generations are switched.
+ *
+ * @version $Id$
+ */
+final class NegativeLookupCache
+{
+	private final int generationSize;
+	private volatile ConcurrentMap<String, Boolean> current = new ConcurrentHashMap<String, Boolean>();
+	private volatile ConcurrentMap<String, Boolean> old = new ConcurrentHashMap<String, Boolean>();
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	/**
+	 * @param aMaxSize maximum number of class names to remember
+	 */
+	NegativeLookupCache(final int aMaxSize)
+	{
+		generationSize = Math.max(1, aMaxSize / 2);
+	}
+
+	/**
+	 * @param name class name
+	 * @return <code>true</code> if given class is known to be absent
+	 */
+	boolean contains(final String name)
+	{
+		if( current.containsKey(name) )
+		{
+			hits.incrementAndGet();
+			return true;
+		}
+		if( old.remove(name) != null )
+		{
+			put(name);
+			hits.incrementAndGet();
+			return true;
+		}
+		misses.incrementAndGet();
+		return false;
+	}
+
+	/**
+	 * @param name name of class that can't be found
+	 */
+	void add(final String name)
+	{
+		put(name);
+	}
+
+	private void put(final String name)
+	{
+		ConcurrentMap<String, Boolean> map = current;
+		if( map.size() >= generationSize )
+		{
+			synchronized( this )
+			{
+				if( current == map )
+				{
+					old = map;
+					current = new ConcurrentHashMap<String, Boolean>();
+				}
+				map = current;
+			}
+		}
+		map.put(name, Boolean.TRUE);
+	}
+
+	/**
+	 * @param name class name to forget
+	 */
+	void remove(final String name)
+	{
+		current.remove(name);
+		old.remove(name);
+	}
+
+	synchronized void clear()
+	{
+		current = new ConcurrentHashMap<String, Boolean>();
+		old = new ConcurrentHashMap<String, Boolean>();
+	}
+
+	int size()
+	{
+		return current.size() + old.size();
+	}
+	long getHits()
+	{
+		return hits.get();
+	}
+
+	long getMisses()
+	{
+		return misses.get();
+	}
+}
@@ -0,0 +1,81 @@
+/*****************************************************************************
+ * Java Plug-in Framework (JPF) Copyright (C) 2004-2007 Dmitry Olshansky This
+ * library is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version. This library is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser
+ * General Public License for more details. You should have received a copy of
+ * the GNU Lesser General Public License along with this library; if not, write
+ * to the Free Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA
+ * 02111-1307 USA
+ *****************************************************************************/
+package org.java.plugin.standard;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * Flight recorder event emitted by {@link StandardPluginManager} for each
+ * plug-in activation.
+ * 
+ * @version $Id$
+ */
+@Name("org.java.plugin.Activation")
+@Label("Plug-in Activation")
+@Category({"Java Plug-in Framework"})
+@Description("Plug-in activation, including activation of it's prerequisites")
+final class PluginActivationEvent extends Event implements FlightRecorderEvents.ActivationEvent
+{
+	@Label("Plug-in")
+	String pluginId;
+
+	@Label("Prerequisites Time")
+	@Description("Time spent activating plug-in prerequisites")
+	@Timespan(Timespan.NANOSECONDS)
+	long prerequisitesTime;
+
+	@Label("Start Time")
+	@Description("Time spent in Plugin.start()")
+	@Timespan(Timespan.NANOSECONDS)
+	long pluginStartTime;
+
+	@Label("Succeeded")
+	boolean succeeded;
+
+	/**
+	 * @see org.java.plugin.standard.FlightRecorderEvents.ActivationEvent#prerequisitesActivated(long)
+	 */
+	public void prerequisitesActivated(final long time)
+	{
+		prerequisitesTime = time;
+	}
+
+	/**
+	 * @see org.java.plugin.standard.FlightRecorderEvents.ActivationEvent#pluginStarted(long)
+	 */
+	public void pluginStarted(final long time)
+	{
+		pluginStartTime = time;
+	}
+
+	/**
+	 * @see org.java.plugin.standard.FlightRecorderEvents.ActivationEvent#finish(java.lang.String,
+	 *      boolean)
+	 */
+	public void finish(final String aPluginId, final boolean isSucceeded)
+	{
+		end();
+		if( shouldCommit() )
+		{
+			pluginId = aPluginId;
+			succeeded = isSucceeded;
+			commit();
+		}
+	}
+}
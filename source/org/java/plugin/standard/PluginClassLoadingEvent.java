@@ -0,0 +1,88 @@
+/*****************************************************************************
+ * Java Plug-in Framework (JPF) Copyright (C) 2004-2007 Dmitry Olshansky This
+ * library is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version. This library is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser
+ * General Public License for more details. You should have received a copy of
+ * the GNU Lesser General Public License along with this library; if not, write
+ * to the Free Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA
+ * 02111-1307 USA
+ *****************************************************************************/
+package org.java.plugin.standard;
+
+import org.java.plugin.PluginClassLoader;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+/**
+ * Flight recorder event emitted by {@link StandardPluginClassLoader} for each
+ * class look-up request. By default only look-ups that take more than one
+ * millisecond are recorded.
+ * 
+ * @version $Id$
+ */
+@Name("org.java.plugin.ClassLoading")
+@Label("Plug-in Class Loading")
+@Category({"Java Plug-in Framework"})
+@Description("Class look-up request to plug-in class loader")
+@StackTrace(false)
+@Threshold("1 ms")
+final class PluginClassLoadingEvent extends Event implements FlightRecorderEvents.ClassLoadingEvent
+{
+	@Label("Plug-in")
+	String pluginId;
+
+	@Label("Class")
+	String className;
+
+	@Label("Delegation Path")
+	@Description("Look-up steps in order they were tried")
+	String path;
+
+	@Label("Defining Plug-in")
+	@Description("ID of plug-in that defined found class, empty for classes of parent class loader")
+	String definingPlugin;
+
+	@Label("Found")
+	boolean found;
+
+	/**
+	 * @see org.java.plugin.standard.FlightRecorderEvents.ClassLoadingEvent#step(java.lang.String)
+	 */
+	public void step(final String step)
+	{
+		path = (path == null) ? step : path + '>' + step;
+	}
+
+	/**
+	 * @see org.java.plugin.standard.FlightRecorderEvents.ClassLoadingEvent#finish(java.lang.String,
+	 *      java.lang.String, java.lang.Class)
+	 */
+	public void finish(final String aPluginId, final String aClassName, final Class<?> result)
+	{
+		end();
+		if( !shouldCommit() )
+		{
+			return;
+		}
+		pluginId = aPluginId;
+		className = aClassName;
+		found = result != null;
+		if( result != null )
+		{
+			ClassLoader loader = result.getClassLoader();
+			definingPlugin = (loader instanceof PluginClassLoader) ? ((PluginClassLoader) loader)
+				.getPluginDescriptor().getId() : ""; //$NON-NLS-1$
+		}
+		commit();
+	}
+}
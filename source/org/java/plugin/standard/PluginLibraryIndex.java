@@ -0,0 +1,486 @@
+/*****************************************************************************
+ * Java Plug-in Framework (JPF) Copyright (C) 2004-2007 Dmitry Olshansky This
+ * library is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version. This library is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser
+ * General Public License for more details. You should have received a copy of
+ * the GNU Lesser General Public License along with this library; if not, write
+ * to the Free Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA
+ * 02111-1307 USA
+ *****************************************************************************/
+package org.java.plugin.standard;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.StringTokenizer;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.java.plugin.PluginManager;
+import org.java.plugin.registry.Library;
+import org.java.plugin.registry.PluginDescriptor;
+import org.java.plugin.util.IoUtil;
+
+/**
+ * Index of Java packages contained in plug-in code libraries. Library content
+ * is scanned once, on first request, and shared by all class loaders created
+ * by the same life cycle handler. Plug-in class loaders use this index to
+ * route class look-up directly to the imported plug-in that contains requested
+ * package. Folders of JAR libraries are indexed too, on first resource
+ * look-up in a library, so that plug-in class loaders can skip libraries that
+ * don't contain the folder of requested resource. Only folder paths are kept,
+ * in a sorted array, so index size doesn't grow with number of entries. Folder
+ * libraries are not indexed for resources as their content may change at run
+ * time.
+ * <p>
+ * The index may be saved to and loaded from a file to avoid scanning libraries
+ * again after restart. Only JAR libraries are stored, each with the time stamp
+ * and size of the archive it was read from; entries of changed archives are
+ * ignored on load. Folder libraries are always scanned.
+ *
+ * @version $Id$
+ */
+final class PluginLibraryIndex
+{
+	static Log log = LogFactory.getLog(PluginLibraryIndex.class);
+
+	private final Map<String, Set<String>> libraryPackages = new HashMap<String, Set<String>>();
+	private final Map<String, String> libraryStamps = new HashMap<String, String>();
+	private final Map<String, String[]> libraryFolders = new HashMap<String, String[]>();
+
+	/**
+	 * @param manager plug-in manager
+	 * @param descr plug-in descriptor
+	 * @return set of packages found in all code libraries of given plug-in
+	 */
+	Set<String> getPackages(final PluginManager manager, final PluginDescriptor descr)
+	{
+		Set<String> result = new HashSet<String>();
+		for( Library lib : descr.getLibraries() )
+		{
+			if( !lib.isCodeLibrary() )
+			{
+				continue;
+			}
+			result.addAll(getLibraryPackages(manager.getPathResolver().resolvePath(lib, lib.getPath())));
+		}
+		return result;
+	}
+
+	/**
+	 * @param libUrl code library URL
+	 * @return set of packages found in given library
+	 */
+	Set<String> getLibraryPackages(final URL libUrl)
+	{
+		String key = libUrl.toExternalForm();
+		Set<String> result;
+		synchronized( libraryPackages )
+		{
+			result = libraryPackages.get(key);
+		}
+		if( result != null )
+		{
+			return result;
+		}
+		String stamp = getLibraryStamp(libUrl);
+		result = scanLibrary(libUrl, false);
+		result = (result == null) ? Collections.<String> emptySet() : Collections.unmodifiableSet(result);
+		synchronized( libraryPackages )
+		{
+			libraryPackages.put(key, result);
+			if( stamp != null )
+			{
+				libraryStamps.put(key, stamp);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Removes all cached data for libraries of given plug-in.
+	 *
+	 * @param manager plug-in manager
+	 * @param descr plug-in descriptor
+	 */
+	void invalidate(final PluginManager manager, final PluginDescriptor descr)
+	{
+		synchronized( libraryPackages )
+		{
+			for( Library lib : descr.getLibraries() )
+			{
+				String key = manager.getPathResolver().resolvePath(lib, lib.getPath()).toExternalForm();
+				libraryPackages.remove(key);
+				libraryStamps.remove(key);
+				libraryFolders.remove(key);
+			}
+		}
+	}
+
+	void clear()
+	{
+		synchronized( libraryPackages )
+		{
+			libraryPackages.clear();
+			libraryStamps.clear();
+			libraryFolders.clear();
+		}
+	}
+
+	/**
+	 * Loads index data, previously saved with {@link #save(File)}, for all
+	 * libraries that were not changed since then.
+	 *
+	 * @param file index file
+	 */
+	void load(final File file)
+	{
+		if( !file.isFile() )
+		{
+			return;
+		}
+		Properties data = new Properties();
+		try
+		{
+			InputStream in = new FileInputStream(file);
+			try
+			{
+				data.load(in);
+			}
+			finally
+			{
+				in.close();
+			}
+		}
+		catch( IOException ioe )
+		{
+			log.warn("failed loading code libraries index from file " + file, ioe); //$NON-NLS-1$
+			return;
+		}
+		int loaded = 0;
+		synchronized( libraryPackages )
+		{
+			for( Map.Entry<Object, Object> entry : data.entrySet() )
+			{
+				String key = (String) entry.getKey();
+				String value = (String) entry.getValue();
+				int p = value.indexOf('|');
+				if( p == -1 )
+				{
+					continue;
+				}
+				String stamp = value.substring(0, p);
+				try
+				{
+					if( !stamp.equals(getLibraryStamp(new URL(key))) )
+					{
+						continue;
+					}
+				}
+				catch( MalformedURLException mue )
+				{
+					continue;
+				}
+				Set<String> packages = new HashSet<String>();
+				StringTokenizer st = new StringTokenizer(value.substring(p + 1), ","); //$NON-NLS-1$
+				while( st.hasMoreTokens() )
+				{
+					packages.add(st.nextToken());
+				}
+				libraryPackages.put(key, Collections.unmodifiableSet(packages));
+				libraryStamps.put(key, stamp);
+				loaded++;
+			}
+		}
+		if( log.isDebugEnabled() )
+		{
+			log.debug("code libraries index loaded from file " + file //$NON-NLS-1$
+				+ ", libraries=" + loaded + " of " + data.size()); //$NON-NLS-1$ //$NON-NLS-2$
+		}
+	}
+
+	/**
+	 * Saves index data for all JAR libraries to given file.
+	 *
+	 * @param file index file
+	 */
+	void save(final File file)
+	{
+		Properties data = new Properties();
+		synchronized( libraryPackages )
+		{
+			for( Map.Entry<String, String> entry : libraryStamps.entrySet() )
+			{
+				Set<String> packages = libraryPackages.get(entry.getKey());
+				if( packages == null )
+				{
+					continue;
+				}
+				StringBuilder buf = new StringBuilder(entry.getValue()).append('|');
+				for( String pkgName : packages )
+				{
+					if( buf.charAt(buf.length() - 1) != '|' )
+					{
+						buf.append(',');
+					}
+					buf.append(pkgName);
+				}
+				data.setProperty(entry.getKey(), buf.toString());
+			}
+		}
+		try
+		{
+			File folder = file.getParentFile();
+			if( (folder != null) && !folder.exists() )
+			{
+				folder.mkdirs();
+			}
+			OutputStream out = new FileOutputStream(file, false);
+			try
+			{
+				data.store(out, "This is automatically generated file."); //$NON-NLS-1$
+			}
+			finally
+			{
+				out.close();
+			}
+			if( log.isDebugEnabled() )
+			{
+				log.debug("code libraries index saved to file " + file //$NON-NLS-1$
+					+ ", libraries=" + data.size()); //$NON-NLS-1$
+			}
+		}
+		catch( IOException ioe )
+		{
+			log.warn("failed saving code libraries index to file " + file, ioe); //$NON-NLS-1$
+		}
+	}
+
+	/**
+	 * @param libUrl code library URL
+	 * @return time stamp and size of the archive given library is read from or
+	 *         <code>null</code> if library is not an archive
+	 */
+	private static String getLibraryStamp(final URL libUrl)
+	{
+		File file = IoUtil.url2file(libUrl);
+		if( (file == null) && "jar".equalsIgnoreCase(libUrl.getProtocol()) ) { //$NON-NLS-1$
+			String urlStr = libUrl.toExternalForm();
+			int p = urlStr.indexOf("!/"); //$NON-NLS-1$
+			if( p != -1 )
+			{
+				try
+				{
+					file = IoUtil.url2file(new URL(urlStr.substring(4, p)));
+				}
+				catch( MalformedURLException mue )
+				{
+					// ignore
+				}
+			}
+		}
+		if( (file == null) || !file.isFile() )
+		{
+			return null;
+		}
+		return file.lastModified() + ":" + file.length(); //$NON-NLS-1$
+	}
+
+	/**
+	 * @param libUrl library URL
+	 * @return sorted paths of all folders in given library, including root
+	 *         folder as empty string, or <code>null</code> if library content
+	 *         can't be indexed (library is a folder or can't be read)
+	 */
+	String[] getLibraryFolders(final URL libUrl)
+	{
+		String key = libUrl.toExternalForm();
+		synchronized( libraryPackages )
+		{
+			if( libraryFolders.containsKey(key) )
+			{
+				return libraryFolders.get(key);
+			}
+		}
+		Set<String> folders = scanLibrary(libUrl, true);
+		String[] result = null;
+		if( folders != null )
+		{
+			result = folders.toArray(new String[folders.size()]);
+			Arrays.sort(result);
+		}
+		synchronized( libraryPackages )
+		{
+			libraryFolders.put(key, result);
+		}
+		return result;
+	}
+
+	/**
+	 * @param libUrls library URLs
+	 * @param name resource path
+	 * @return <code>true</code> if all given libraries are indexed and none of
+	 *         them contains folder of given resource
+	 */
+	boolean isResourceAbsent(final URL[] libUrls, final String name)
+	{
+		if( (name.length() == 0) || (name.charAt(0) == '/') || (name.charAt(name.length() - 1) == '/') )
+		{
+			// leave such names to the class loader
+			return false;
+		}
+		int p = name.lastIndexOf('/');
+		String folder = (p == -1) ? "" : name.substring(0, p); //$NON-NLS-1$
+		for( URL libUrl : libUrls )
+		{
+			String[] folders = getLibraryFolders(libUrl);
+			if( (folders == null) || (Arrays.binarySearch(folders, folder) >= 0) )
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static Set<String> scanLibrary(final URL libUrl, final boolean resources)
+	{
+		Set<String> result = null;
+		try
+		{
+			File file = IoUtil.url2file(libUrl);
+			if( file != null )
+			{
+				if( file.isDirectory() )
+				{
+					if( resources )
+					{
+						// folder content is not immutable, don't index it
+						return null;
+					}
+					result = new HashSet<String>();
+					scanFolder(result, file, null);
+				}
+				else if( file.isFile() )
+				{
+					result = new HashSet<String>();
+					scanArchive(result, file, "", resources); //$NON-NLS-1$
+				}
+			}
+			else if( "jar".equalsIgnoreCase(libUrl.getProtocol()) ) { //$NON-NLS-1$
+				String urlStr = libUrl.toExternalForm();
+				int p = urlStr.indexOf("!/"); //$NON-NLS-1$
+				if( p == -1 )
+				{
+					throw new MalformedURLException(urlStr);
+				}
+				file = IoUtil.url2file(new URL(urlStr.substring(4, p)));
+				if( file != null )
+				{
+					result = new HashSet<String>();
+					scanArchive(result, file, urlStr.substring(p + 2), resources);
+				}
+			}
+		}
+		catch( IOException ioe )
+		{
+			log.warn("can't scan library " + libUrl, ioe); //$NON-NLS-1$
+			result = null;
+		}
+		if( log.isDebugEnabled() )
+		{
+			log.debug("library " + libUrl //$NON-NLS-1$
+				+ " scanned, " + (resources ? "folders=" : "packages=") //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+				+ ((result == null) ? "N/A" : Integer.toString(result.size()))); //$NON-NLS-1$
+		}
+		return result;
+	}
+
+	private static void scanFolder(final Set<String> result, final File folder, final String path)
+	{
+		File[] files = folder.listFiles();
+		if( files == null )
+		{
+			return;
+		}
+		for( File file : files )
+		{
+			if( file.isDirectory() )
+			{
+				scanFolder(result, file, (path == null) ? file.getName() : path + '.' + file.getName());
+			}
+			else if( (path != null) && file.getName().endsWith(".class") ) { //$NON-NLS-1$
+				result.add(path);
+			}
+		}
+	}
+
+	/**
+	 * Adds folder of given entry and all it's parent folders to the set.
+	 */
+	private static void addFolders(final Set<String> result, final String entryName)
+	{
+		String path = entryName.endsWith("/") //$NON-NLS-1$
+			? entryName.substring(0, entryName.length() - 1) : entryName;
+		int p = path.lastIndexOf('/');
+		String folder = (p == -1) ? "" : path.substring(0, p); //$NON-NLS-1$
+		while( result.add(folder) && (folder.length() > 0) )
+		{
+			p = folder.lastIndexOf('/');
+			folder = (p == -1) ? "" : folder.substring(0, p); //$NON-NLS-1$
+		}
+	}
+
+	private static void scanArchive(final Set<String> result, final File file, final String prefix,
+		final boolean resources) throws IOException
+	{
+		ZipFile zipFile = new ZipFile(file);
+		try
+		{
+			for( Enumeration<? extends ZipEntry> en = zipFile.entries(); en.hasMoreElements(); )
+			{
+				String name = en.nextElement().getName();
+				if( !name.startsWith(prefix) || (name.length() == prefix.length()) )
+				{
+					continue;
+				}
+				if( resources )
+				{
+					addFolders(result, name.substring(prefix.length()));
+					continue;
+				}
+				if( !name.endsWith(".class") ) { //$NON-NLS-1$
+					continue;
+				}
+				int p = name.lastIndexOf('/');
+				if( p <= prefix.length() )
+				{
+					continue;
+				}
+				result.add(name.substring(prefix.length(), p).replace('/', '.'));
+			}
+		}
+		finally
+		{
+			zipFile.close();
+		}
+	}
+}
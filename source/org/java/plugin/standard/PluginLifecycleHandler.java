@@ -105,6 +105,21 @@ public abstract class PluginLifecycleHandler
 	 */
 	protected abstract void afterPluginStop(final Plugin plugin) throws PluginLifecycleException;
 
+	/**
+	 * Waits until classes, that this handler loads in background for started
+	 * plug-ins, are loaded. This implementation doesn't preload classes and
+	 * returns immediately.
+	 * 
+	 * @param timeout maximum time to wait in milliseconds
+	 * @return <code>true</code> if all classes have been preloaded,
+	 *         <code>false</code> if timeout elapsed
+	 * @throws InterruptedException if current thread has been interrupted
+	 */
+	protected boolean awaitClassPreloading(final long timeout) throws InterruptedException
+	{
+		return true;
+	}
+
 	/**
 	 * Should dispose all resources allocated by this handler instance. No
 	 * methods will be called for this class instance after executing this
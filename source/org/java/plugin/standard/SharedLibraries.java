@@ -0,0 +1,323 @@
+/*****************************************************************************
+ * Java Plug-in Framework (JPF) Copyright (C) 2004-2007 Dmitry Olshansky This
+ * library is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version. This library is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser
+ * General Public License for more details. You should have received a copy of
+ * the GNU Lesser General Public License along with this library; if not, write
+ * to the Free Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA
+ * 02111-1307 USA
+ *****************************************************************************/
+package org.java.plugin.standard;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.java.plugin.PluginManager;
+import org.java.plugin.registry.Library;
+import org.java.plugin.registry.PluginDescriptor;
+import org.java.plugin.util.IoUtil;
+
+/**
+ * Registry of JAR libraries that are bundled, with identical content, by more
+ * than one plug-in. Each such library is served by one shared class loader, so
+ * it's classes are defined once for all plug-ins that contain it. Shared
+ * loaders keep track of plug-in class loaders using them and are closed when
+ * the last one is disposed. Library content is hashed outside of the registry
+ * lock.
+ * <p>
+ * Classes of a shared library can see only the parent class loader and the
+ * library itself, so only self-contained libraries should be bundled more
+ * than once when this feature is used.
+ *
+ * @version $Id$
+ */
+final class SharedLibraries
+{
+	static Log log = LogFactory.getLog(SharedLibraries.class);
+
+	private final Map<String, SharedLibraryLoader> loaders = new HashMap<String, SharedLibraryLoader>();
+	private final ConcurrentMap<String, String> digests = new ConcurrentHashMap<String, String>();
+	private final Map<Long, List<File>> librariesBySize = new HashMap<Long, List<File>>();
+	private final Set<String> indexedPlugins = new HashSet<String>();
+
+	/**
+	 * @param manager plug-in manager
+	 * @param user plug-in class loader that contains given library
+	 * @param file JAR library file of given plug-in
+	 * @param url library URL
+	 * @return shared class loader for given library or <code>null</code> if
+	 *         library is not bundled by any other plug-in
+	 */
+	SharedLibraryLoader acquire(final PluginManager manager, final StandardPluginClassLoader user,
+		final File file, final URL url)
+	{
+		String key = getDigest(file);
+		if( key == null )
+		{
+			return null;
+		}
+		List<File> candidates;
+		synchronized( this )
+		{
+			SharedLibraryLoader result = loaders.get(key);
+			if( result != null )
+			{
+				return addUser(result, user);
+			}
+			candidates = getCandidates(manager, user.getPluginDescriptor(), file);
+		}
+		if( !isDuplicated(candidates, file, key) )
+		{
+			return null;
+		}
+		synchronized( this )
+		{
+			SharedLibraryLoader result = loaders.get(key);
+			if( result == null )
+			{
+				result = new SharedLibraryLoader(url, user.getParent());
+				loaders.put(key, result);
+				if( log.isDebugEnabled() )
+				{
+					log.debug("shared class loader created for library " + url); //$NON-NLS-1$
+				}
+			}
+			return addUser(result, user);
+		}
+	}
+
+	private static SharedLibraryLoader addUser(final SharedLibraryLoader loader,
+		final StandardPluginClassLoader user)
+	{
+		if( loader.getParent() != user.getParent() )
+		{
+			return null;
+		}
+		loader.users.add(user);
+		return loader;
+	}
+
+	/**
+	 * @param loader shared class loader, that is no longer used by a plug-in
+	 * @param user plug-in class loader that acquired given shared loader
+	 */
+	synchronized void release(final SharedLibraryLoader loader, final StandardPluginClassLoader user)
+	{
+		loader.users.remove(user);
+		if( !loader.users.isEmpty() )
+		{
+			return;
+		}
+		for( Map.Entry<String, SharedLibraryLoader> entry : loaders.entrySet() )
+		{
+			if( entry.getValue() == loader )
+			{
+				loaders.remove(entry.getKey());
+				break;
+			}
+		}
+		try
+		{
+			loader.close();
+		}
+		catch( IOException ioe )
+		{
+			log.warn("failed closing shared class loader " + loader, ioe); //$NON-NLS-1$
+		}
+	}
+
+	synchronized void clear()
+	{
+		loaders.clear();
+		digests.clear();
+		librariesBySize.clear();
+		indexedPlugins.clear();
+	}
+
+	/**
+	 * @return libraries of the same size as given file
+	 */
+	private List<File> getCandidates(final PluginManager manager, final PluginDescriptor descr,
+		final File file)
+	{
+		if( !indexedPlugins.contains(descr.getUniqueId()) )
+		{
+			indexLibraries(manager);
+		}
+		List<File> result = librariesBySize.get(Long.valueOf(file.length()));
+		return (result == null) ? Collections.<File> emptyList() : new ArrayList<File>(result);
+	}
+
+	private boolean isDuplicated(final List<File> candidates, final File file, final String key)
+	{
+		for( File candidate : candidates )
+		{
+			if( !candidate.equals(file) && key.equals(getDigest(candidate)) )
+			{
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private void indexLibraries(final PluginManager manager)
+	{
+		for( PluginDescriptor descr : manager.getRegistry().getPluginDescriptors() )
+		{
+			if( !indexedPlugins.add(descr.getUniqueId()) )
+			{
+				continue;
+			}
+			for( Library lib : descr.getLibraries() )
+			{
+				if( !lib.isCodeLibrary() )
+				{
+					continue;
+				}
+				File file = IoUtil.url2file(manager.getPathResolver().resolvePath(lib, lib.getPath()));
+				if( (file == null) || !file.isFile() )
+				{
+					continue;
+				}
+				Long size = Long.valueOf(file.length());
+				List<File> files = librariesBySize.get(size);
+				if( files == null )
+				{
+					files = new LinkedList<File>();
+					librariesBySize.put(size, files);
+				}
+				files.add(file);
+			}
+		}
+	}
+
+	/**
+	 * @return SHA-256 digest of given file content or <code>null</code> if
+	 *         file can't be read
+	 */
+	private String getDigest(final File file)
+	{
+		String stamp = file.lastModified() + ":" + file.length() + '|'; //$NON-NLS-1$
+		String path = file.getAbsolutePath();
+		String cached = digests.get(path);
+		if( (cached != null) && cached.startsWith(stamp) )
+		{
+			return cached.substring(stamp.length());
+		}
+		try
+		{
+			MessageDigest digest = MessageDigest.getInstance("SHA-256"); //$NON-NLS-1$
+			byte[] buf = new byte[8192];
+			InputStream in = new FileInputStream(file);
+			try
+			{
+				int len;
+				while( (len = in.read(buf)) != -1 )
+				{
+					digest.update(buf, 0, len);
+				}
+			}
+			finally
+			{
+				in.close();
+			}
+			StringBuilder result = new StringBuilder();
+			for( byte b : digest.digest() )
+			{
+				result.append(Character.forDigit((b >> 4) & 0xF, 16));
+				result.append(Character.forDigit(b & 0xF, 16));
+			}
+			digests.put(path, stamp + result);
+			return result.toString();
+		}
+		catch( IOException ioe )
+		{
+			log.warn("can't compute digest of library " + file, ioe); //$NON-NLS-1$
+			return null;
+		}
+		catch( NoSuchAlgorithmException nsae )
+		{
+			log.warn("can't compute digest of library " + file, nsae); //$NON-NLS-1$
+			return null;
+		}
+	}
+
+	/**
+	 * Class loader for one JAR library shared by several plug-ins.
+	 */
+	static final class SharedLibraryLoader extends URLClassLoader
+	{
+		static
+		{
+			registerAsParallelCapable();
+		}
+
+		/**
+		 * Plug-in class loaders using this loader, one entry per
+		 * acquisition.
+		 */
+		final List<StandardPluginClassLoader> users = new CopyOnWriteArrayList<StandardPluginClassLoader>();
+
+		SharedLibraryLoader(final URL url, final ClassLoader parent)
+		{
+			super(new URL[]{url}, parent);
+		}
+
+		/**
+		 * @param name class name
+		 * @return class defined by this loader or <code>null</code> if
+		 *         library doesn't contain such class
+		 */
+		Class<?> findSharedClass(final String name)
+		{
+			synchronized( getClassLoadingLock(name) )
+			{
+				Class<?> result = findLoadedClass(name);
+				if( result != null )
+				{
+					return result;
+				}
+				try
+				{
+					return findClass(name);
+				}
+				catch( ClassNotFoundException cnfe )
+				{
+					return null;
+				}
+			}
+		}
+
+		/**
+		 * @see java.lang.Object#toString()
+		 */
+		@Override
+		public String toString()
+		{
+			return "{SharedLibraryLoader: " + getURLs()[0] + "}"; //$NON-NLS-1$ //$NON-NLS-2$
+		}
+	}
+}
@@ -13,12 +13,9 @@
  *****************************************************************************/
 package org.java.plugin.standard;
 
-import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLClassLoader;
@@ -26,18 +23,33 @@ import java.security.AccessController;
 import java.security.CodeSource;
 import java.security.PrivilegedAction;
 import java.security.ProtectionDomain;
+import java.security.cert.Certificate;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.NoSuchElementException;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.jar.Manifest;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -48,10 +60,20 @@ import org.java.plugin.registry.Library;
 import org.java.plugin.registry.PluginDescriptor;
 import org.java.plugin.registry.PluginPrerequisite;
 import org.java.plugin.registry.PluginRegistry;
+import org.java.plugin.standard.FlightRecorderEvents.ClassLoadingEvent;
+import org.java.plugin.standard.MappedJarPool.MappedJar;
+import org.java.plugin.standard.MappedJarPool.MappedJarHandler;
+import org.java.plugin.standard.SharedLibraries.SharedLibraryLoader;
 import org.java.plugin.util.IoUtil;
 
 /**
  * Standard implementation of plug-in class loader.
+ * <p>
+ * This class loader is registered as parallel capable, local class look-up is
+ * synchronized on a per class name lock (see
+ * {@link ClassLoader#getClassLoadingLock(String)}) rather than on the loader
+ * instance, so independent classes of the same plug-in may be loaded
+ * concurrently.
  * 
  * @version $Id: StandardPluginClassLoader.java,v 1.8 2007/04/07 12:39:50 ddimon
  *          Exp $
@@ -60,6 +82,11 @@ public class StandardPluginClassLoader extends PluginClassLoader
 {
 	static Log log = LogFactory.getLog(StandardPluginClassLoader.class);
 
+	static
+	{
+		registerAsParallelCapable();
+	}
+
 	private static File libCacheFolder;
 	private static boolean libCacheFolderInitialized = false;
 
@@ -174,15 +201,79 @@ public class StandardPluginClassLoader extends PluginClassLoader
 	}
 
 	private Set<PluginDescriptor> accessibleImports;
+	private final Object delegationLock = new Object();
+	private volatile ImportDelegate[] delegationPlan;
+	private volatile Map<String, ImportDelegate> importDelegates;
+	private final AtomicInteger delegationHits = new AtomicInteger();
+	private volatile boolean disposed;
+	private final int loaderIndex = allocateLoaderIndex();
 	private PluginResourceLoader resourceLoader;
-	private Map<String, ResourceFilter> resourceFilters;
+	private volatile ResourceFilter[] resourceFilters;
 	private Map<String, File> libraryCache;
 	private boolean probeParentLoaderLast;
 	private boolean localClassLoadingOptimization = true;
 	private boolean foreignClassLoadingOptimization = true;
 	private final Set<String> localPackages = new HashSet<String>();
-	private DynamicClassLoader dynamicClassLoader;
-	private static final Map<String, LinkedList<PluginDescriptor>> packageCache = new HashMap<String, LinkedList<PluginDescriptor>>();
+	private final DynamicClassLoaderChain dynamicClassLoaders = new DynamicClassLoaderChain();
+	private PluginLibraryIndex libraryIndex;
+	private int negativeLookupCacheSize;
+	private volatile NegativeLookupCache negativeLookupCache;
+	private ClassLoadingProfile classLoadingProfile;
+	private NativeLibraryCache nativeLibraryCache;
+	private SharedLibraries sharedLibraryRegistry;
+	private volatile SharedLibrary[] sharedLibraries;
+	private MappedJarPool mappedJarPool;
+	private ClassLoadingMetrics metrics;
+	private ClassLoaderLeakDetector leakDetector;
+	private CdsClassList cdsClassList;
+	private volatile MappedLibrary[] mappedLibraries;
+	private PluginLibraryIndex resourceIndex;
+	private URL[] codeLibraryUrls;
+	private URL[] resourceLibraryUrls;
+	private volatile Map<String, PluginDescriptor[]> packageRoutes;
+	private final Object routesLock = new Object();
+	/**
+	 * Maximum number of candidate plug-ins remembered for one package.
+	 */
+	private static final int MAX_PACKAGE_CANDIDATES = 4;
+	private static final int LOCAL_RESOURCE_STEPS = 2;
+	/**
+	 * Global package to plug-ins routing table. Values are immutable arrays,
+	 * most recently used plug-in first, that are replaced atomically so readers
+	 * never lock or copy.
+	 */
+	private static final ConcurrentMap<String, PluginDescriptor[]> packageCache = new ConcurrentHashMap<String, PluginDescriptor[]>();
+	/**
+	 * Dense indexes of existing plug-in class loaders, used to track loaders
+	 * visited during class look-up without allocating.
+	 */
+	private static final BitSet loaderIndexes = new BitSet();
+	private static final ThreadLocal<VisitedLoaders> visitedLoaders = new ThreadLocal<VisitedLoaders>()
+	{
+		@Override
+		protected VisitedLoaders initialValue()
+		{
+			return new VisitedLoaders();
+		}
+	};
+
+	private static int allocateLoaderIndex()
+	{
+		synchronized( loaderIndexes )
+		{
+			int result = loaderIndexes.nextClearBit(0);
+			loaderIndexes.set(result);
+			return result;
+		}
+	}
+
+	private static void releaseLoaderIndex(final int index)
+	{
+		synchronized( loaderIndexes )
+		{
+			loaderIndexes.clear(index);
+		}
+	}
 
 	// private static AtomicInteger failedFinds = new AtomicInteger();
 
@@ -207,9 +298,24 @@ public class StandardPluginClassLoader extends PluginClassLoader
 
 	protected void collectImports()
 	{
-		// collect imported plug-ins (exclude duplicates)
-		accessibleImports = new HashSet<PluginDescriptor>();
-		collectPlugins(accessibleImports, getPluginDescriptor(), true);
+		// collect imported plug-ins (exclude duplicates), direct imports go
+		// first in order of declaration
+		Set<PluginDescriptor> imports = new LinkedHashSet<PluginDescriptor>();
+		PluginRegistry registry = getPluginDescriptor().getRegistry();
+		for( PluginPrerequisite pre : getPluginDescriptor().getPrerequisites() )
+		{
+			if( pre.matches() )
+			{
+				imports.add(registry.getPluginDescriptor(pre.getPluginId()));
+			}
+		}
+		int directCount = imports.size();
+		for( PluginDescriptor descr : imports.toArray(new PluginDescriptor[directCount]) )
+		{
+			collectPlugins(imports, descr, false);
+		}
+		accessibleImports = imports;
+		collectDelegationPlan(directCount);
 	}
 
 	private void collectPlugins(Set<PluginDescriptor> importSet, PluginDescriptor descriptor, boolean includePrivate)
@@ -233,21 +339,186 @@ public class StandardPluginClassLoader extends PluginClassLoader
 		}
 	}
 
-	protected void collectFilters()
+	/**
+	 * Builds ordered array of imported plug-ins this class loader delegates
+	 * to. Hit statistics collected for the same plug-ins before are kept.
+	 * 
+	 * @param directCount number of direct imports at the beginning of
+	 *            accessible imports set
+	 */
+	private void collectDelegationPlan(final int directCount)
 	{
-		if( resourceFilters == null )
+		synchronized( delegationLock )
 		{
-			resourceFilters = new HashMap<String, ResourceFilter>();
+			Map<String, ImportDelegate> oldDelegates = importDelegates;
+			Map<String, ImportDelegate> delegates = new HashMap<String, ImportDelegate>();
+			ImportDelegate[] plan = new ImportDelegate[accessibleImports.size()];
+			int i = 0;
+			for( PluginDescriptor descr : accessibleImports )
+			{
+				ImportDelegate old = (oldDelegates != null) ? oldDelegates.get(descr.getId()) : null;
+				plan[i] = new ImportDelegate(descr, i < directCount, i, (old != null) ? old.hits
+					: new AtomicInteger());
+				delegates.put(descr.getId(), plan[i]);
+				i++;
+			}
+			importDelegates = delegates;
+			delegationPlan = rankDelegates(plan);
 		}
-		else
+	}
+
+	/**
+	 * Sorts delegation plan so that direct imports go before transitive ones
+	 * and, within each group, plug-ins that served more look-ups go first.
+	 * Plug-ins with equal hit count keep their declaration order.
+	 */
+	private static ImportDelegate[] rankDelegates(final ImportDelegate[] plan)
+	{
+		ImportDelegate[] result = new ImportDelegate[plan.length];
+		int[] hits = new int[plan.length];
+		for( int i = 0; i < plan.length; i++ )
+		{
+			ImportDelegate delegate = plan[i];
+			int delegateHits = delegate.hits.get();
+			int j = i;
+			while( (j > 0) && isRankedBefore(delegate, delegateHits, result[j - 1], hits[j - 1]) )
+			{
+				result[j] = result[j - 1];
+				hits[j] = hits[j - 1];
+				j--;
+			}
+			result[j] = delegate;
+			hits[j] = delegateHits;
+		}
+		return result;
+	}
+
+	private static boolean isRankedBefore(final ImportDelegate delegate, final int delegateHits,
+		final ImportDelegate other, final int otherHits)
+	{
+		if( delegate.direct != other.direct )
+		{
+			return delegate.direct;
+		}
+		if( delegateHits != otherHits )
+		{
+			return delegateHits > otherHits;
+		}
+		return delegate.order < other.order;
+	}
+
+	/**
+	 * Counts successful look-up in imported plug-in. Delegation plan is
+	 * re-ranked each time total hits count reaches next power of two, so the
+	 * order settles down quickly and stays stable afterwards.
+	 */
+	private void registerDelegationHit(final ImportDelegate delegate)
+	{
+		delegate.hits.incrementAndGet();
+		int total = delegationHits.incrementAndGet();
+		if( (total < 64) || ((total & (total - 1)) != 0) )
+		{
+			return;
+		}
+		synchronized( delegationLock )
+		{
+			ImportDelegate[] plan = delegationPlan;
+			if( plan != null )
+			{
+				delegationPlan = rankDelegates(plan);
+			}
+		}
+	}
+
+	/**
+	 * Discards package to plug-in routing table, it is built again on next
+	 * look-up of a class from imported plug-ins.
+	 */
+	protected void invalidateRoutes()
+	{
+		synchronized( routesLock )
+		{
+			packageRoutes = null;
+		}
+	}
+
+	/**
+	 * Builds package to plug-in routing table for all accessible imports using
+	 * code libraries index.
+	 */
+	private Map<String, PluginDescriptor[]> buildRoutes()
+	{
+		synchronized( routesLock )
+		{
+			Map<String, PluginDescriptor[]> routes = packageRoutes;
+			Set<PluginDescriptor> imports = accessibleImports;
+			if( (routes != null) || (libraryIndex == null) || (imports == null) )
+			{
+				return routes;
+			}
+			routes = collectRoutes(imports);
+			packageRoutes = routes;
+			return routes;
+		}
+	}
+
+	private Map<String, PluginDescriptor[]> collectRoutes(final Set<PluginDescriptor> imports)
+	{
+		Map<String, PluginDescriptor[]> routes = new HashMap<String, PluginDescriptor[]>();
+		for( PluginDescriptor descr : imports )
+		{
+			for( String pkgName : libraryIndex.getPackages(getPluginManager(), descr) )
+			{
+				PluginDescriptor[] owners = routes.get(pkgName);
+				if( owners == null )
+				{
+					routes.put(pkgName, new PluginDescriptor[]{descr});
+					continue;
+				}
+				PluginDescriptor[] newOwners = new PluginDescriptor[owners.length + 1];
+				System.arraycopy(owners, 0, newOwners, 0, owners.length);
+				newOwners[owners.length] = descr;
+				routes.put(pkgName, newOwners);
+			}
+		}
+		if( log.isDebugEnabled() )
 		{
-			resourceFilters.clear();
+			log.debug("package routes collected for plug-in " //$NON-NLS-1$
+				+ getPluginDescriptor() + ", packages=" + routes.size()); //$NON-NLS-1$
 		}
+		return routes;
+	}
+
+	protected void collectFilters()
+	{
+		List<ResourceFilter> filters = new ArrayList<ResourceFilter>();
 		for( Library lib : getPluginDescriptor().getLibraries() )
 		{
-			resourceFilters.put(getPluginManager().getPathResolver().resolvePath(lib, lib.getPath()).toExternalForm(),
-				new ResourceFilter(lib));
+			filters.add(new ResourceFilter(lib, getPluginManager().getPathResolver().resolvePath(lib, lib.getPath())));
+		}
+		resourceFilters = filters.toArray(new ResourceFilter[filters.size()]);
+	}
+
+	/**
+	 * @param url class code source or resource URL
+	 * @param libPathLength length of library part of given URL path
+	 * @return filter of library given URL belongs to or <code>null</code>
+	 */
+	private ResourceFilter getResourceFilter(final URL url, final int libPathLength)
+	{
+		ResourceFilter[] filters = resourceFilters;
+		if( filters == null )
+		{
+			return null;
+		}
+		for( ResourceFilter filter : filters )
+		{
+			if( filter.isLibraryUrl(url, libPathLength) )
+			{
+				return filter;
+			}
 		}
+		return null;
 	}
 
 	/**
@@ -275,9 +546,26 @@ public class StandardPluginClassLoader extends PluginClassLoader
 			log.debug(buf.toString());
 		}
 		collectImports();
+		if( libraryIndex != null )
+		{
+			libraryIndex.invalidate(getPluginManager(), getPluginDescriptor());
+			invalidateRoutes();
+		}
 		// repopulate resource URLs
 		resourceLoader = PluginResourceLoader.get(getPluginManager(), getPluginDescriptor());
 		collectFilters();
+		if( resourceIndex != null )
+		{
+			collectResourceLibraries();
+		}
+		if( sharedLibraryRegistry != null )
+		{
+			collectSharedLibraries();
+		}
+		if( mappedJarPool != null )
+		{
+			collectMappedLibraries();
+		}
 		Set<Entry<String, File>> entrySet = libraryCache.entrySet();
 		for( Iterator<Entry<String, File>> it = entrySet.iterator(); it.hasNext(); )
 		{
@@ -290,6 +578,8 @@ public class StandardPluginClassLoader extends PluginClassLoader
 		{
 			localPackages.clear();
 		}
+		collectNegativeLookupCache();
+		dynamicClassLoaders.invalidateMisses();
 	}
 
 	/**
@@ -298,18 +588,49 @@ public class StandardPluginClassLoader extends PluginClassLoader
 	@Override
 	protected void dispose()
 	{
-		for( File file : libraryCache.values() )
+		if( nativeLibraryCache == null )
 		{
-			file.delete();
+			for( File file : libraryCache.values() )
+			{
+				file.delete();
+			}
 		}
 		libraryCache.clear();
-		resourceFilters.clear();
+		if( sharedLibraryRegistry != null )
+		{
+			releaseSharedLibraries(sharedLibraries);
+			sharedLibraries = null;
+		}
+		if( mappedJarPool != null )
+		{
+			releaseMappedLibraries(mappedLibraries);
+			mappedLibraries = null;
+		}
+		resourceFilters = null;
+		if( !disposed )
+		{
+			disposed = true;
+			purgePackageCache(getPluginDescriptor());
+			releaseLoaderIndex(loaderIndex);
+			if( leakDetector != null )
+			{
+				leakDetector.track(this);
+			}
+		}
 		accessibleImports = null;
+		delegationPlan = null;
+		importDelegates = null;
+		packageRoutes = null;
 		resourceLoader = null;
 		synchronized( localPackages )
 		{
 			localPackages.clear();
 		}
+		if( negativeLookupCache != null )
+		{
+			negativeLookupCache.clear();
+		}
+		dynamicClassLoaders.invalidate();
 	}
 
 	protected void setProbeParentLoaderLast(final boolean value)
@@ -332,139 +653,636 @@ public class StandardPluginClassLoader extends PluginClassLoader
 		foreignClassLoadingOptimization = value;
 	}
 
+	protected void setNegativeLookupCacheSize(final int value)
+	{
+		negativeLookupCacheSize = value;
+		collectNegativeLookupCache();
+	}
+
 	/**
-	 * @see java.lang.ClassLoader#loadClass(java.lang.String, boolean)
+	 * Misses are not cached for plug-ins with folder code libraries, as
+	 * classes may be added to a folder at run time.
 	 */
-	@SuppressWarnings("nls")
-	@Override
-	protected Class<?> loadClass(final String name, final boolean resolve) throws ClassNotFoundException
+	private void collectNegativeLookupCache()
 	{
-		Class<?> result;
-		boolean tryLocal = true;
-		boolean illegalClassName = (name.endsWith("BeanInfo") && !name.endsWith(".BeanInfo"))
-			|| name.indexOf('.') == -1;
-		if( illegalClassName )
-		{
-			if( log.isDebugEnabled() )
-			{
-				log.debug("Illegal class name:" + name);
-			}
-			try
-			{
-				if( name.startsWith("java") && !name.equals("java.lang.ObjectBeanInfo") )
-				{
-					return getParent().loadClass(name);
-				}
-			}
-			catch( ClassNotFoundException cnfe )
-			{
-				// fall through
-			}
-			throw new ClassNotFoundException("Illegal class name not supported for " + name); //$NON-NLS-1$
-		}
-		if( isLocalClass(name) )
+		if( negativeLookupCacheSize <= 0 )
 		{
-			if( log.isDebugEnabled() )
-			{
-				log.debug("loadClass: trying local class guess, name=" //$NON-NLS-1$
-					+ name + ", this=" + this); //$NON-NLS-1$
-			}
-			result = loadLocalClass(name, resolve, this);
-			if( result != null )
-			{
-				if( log.isDebugEnabled() )
-				{
-					log.debug("loadClass: local class guess succeeds, name=" //$NON-NLS-1$
-						+ name + ", this=" + this); //$NON-NLS-1$
-				}
-				checkClassVisibility(result, this);
-				return result;
-			}
-			tryLocal = false;
+			negativeLookupCache = null;
+			return;
 		}
-		if( dynamicClassLoader != null )
+		for( URL url : getURLs() )
 		{
-			result = dynamicClassLoader.findClass(name);
-			if( result != null )
+			if( url.getFile().endsWith("/") ) //$NON-NLS-1$
 			{
-				return result;
+				negativeLookupCache = null;
+				return;
 			}
 		}
-		try
+		if( negativeLookupCache == null )
 		{
-			if( probeParentLoaderLast )
-			{
-				try
-				{
-					result = loadPluginClass(name, resolve, tryLocal, this, null);
-				}
-				catch( ClassNotFoundException cnfe )
-				{
-					result = getParent().loadClass(name);
-				}
-				if( result == null )
-				{
-					result = getParent().loadClass(name);
-				}
-			}
-			else
-			{
-				try
-				{
-					result = getParent().loadClass(name);
-				}
-				catch( ClassNotFoundException cnfe )
-				{
-					result = loadPluginClass(name, resolve, tryLocal, this, null);
-				}
-			}
-			if( result != null )
-			{
-				return result;
-			}
+			negativeLookupCache = new NegativeLookupCache(negativeLookupCacheSize);
 		}
-		catch( ClassNotFoundException cnfe )
+		else
 		{
-			// fallthrough for better error message
+			negativeLookupCache.clear();
 		}
-		throw new ClassNotFoundException(name + " from " + getPluginDescriptor().getId()); //$NON-NLS-1$
 	}
 
-	@SuppressWarnings("nls")
-	public Class<?> loadLocalClass(final String name, final boolean resolve, final StandardPluginClassLoader requestor)
-		throws ClassNotFoundException
+	/**
+	 * @param profile profile to record classes defined by this class loader
+	 *            to, may be <code>null</code>
+	 */
+	void setClassLoadingProfile(final ClassLoadingProfile profile)
 	{
-		boolean debugEnabled = log.isDebugEnabled();
+		classLoadingProfile = profile;
+	}
 
-		Class<?> result = null;
-		if( dynamicClassLoader != null )
+	/**
+	 * @param value <code>true</code> to collect class loading statistics of
+	 *            this class loader
+	 */
+	void setClassLoadingMetrics(final boolean value)
+	{
+		metrics = value ? new ClassLoadingMetrics(getPluginDescriptor().getId()) : null;
+	}
+
+	/**
+	 * @return class loading statistics of this class loader or
+	 *         <code>null</code> if they are not collected
+	 */
+	ClassLoadingMetrics getClassLoadingMetrics()
+	{
+		return metrics;
+	}
+
+	/**
+	 * @param classList list to record classes defined by this class loader
+	 *            to, may be <code>null</code>
+	 */
+	void setCdsClassList(final CdsClassList classList)
+	{
+		cdsClassList = classList;
+	}
+
+	/**
+	 * @param detector detector to track this class loader with after it is
+	 *            disposed, may be <code>null</code>
+	 */
+	void setLeakDetector(final ClassLoaderLeakDetector detector)
+	{
+		leakDetector = detector;
+	}
+
+	/**
+	 * @return <code>true</code> if import delegates of this class loader
+	 *         still reference given class loader
+	 */
+	boolean isDelegatingTo(final StandardPluginClassLoader other)
+	{
+		ImportDelegate[] plan = delegationPlan;
+		if( plan == null )
 		{
-			result = dynamicClassLoader.findClass(name);
-			if( result != null )
-			{
-				registerPacakge(result);
-				return result;
-			}
+			return false;
 		}
-		synchronized( this )
+		for( ImportDelegate delegate : plan )
 		{
-			result = findLoadedClass(name);
-			if( result != null )
+			if( delegate.loader == other )
 			{
-				if( debugEnabled )
-				{
-					log.debug("loadLocalClass: found loaded class, class=" + result + ", this=" + this + ", requestor="
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return names of packages that package statistics attribute to given
+	 *         plug-in
+	 */
+	static List<String> getCachedPackages(final PluginDescriptor descr)
+	{
+		List<String> result = new ArrayList<String>();
+		for( Map.Entry<String, PluginDescriptor[]> entry : packageCache.entrySet() )
+		{
+			for( PluginDescriptor candidate : entry.getValue() )
+			{
+				if( candidate == descr )
+				{
+					result.add(entry.getKey());
+					break;
+				}
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * @param cache persistent cache to copy native libraries to, if
+	 *            <code>null</code> libraries are copied to temporary folder
+	 *            that is deleted on exit
+	 */
+	void setNativeLibraryCache(final NativeLibraryCache cache)
+	{
+		nativeLibraryCache = cache;
+	}
+
+	/**
+	 * @param registry registry of JAR libraries, bundled by several plug-ins,
+	 *            that are served by shared class loaders
+	 */
+	void setSharedLibraries(final SharedLibraries registry)
+	{
+		sharedLibraryRegistry = registry;
+		collectSharedLibraries();
+	}
+
+	/**
+	 * Acquires shared class loaders for JAR libraries of this plug-in that are
+	 * bundled by other plug-ins too and releases previously acquired ones.
+	 */
+	protected void collectSharedLibraries()
+	{
+		SharedLibrary[] oldLibraries = sharedLibraries;
+		List<SharedLibrary> libraries = new LinkedList<SharedLibrary>();
+		for( Library lib : getPluginDescriptor().getLibraries() )
+		{
+			if( !lib.isCodeLibrary() )
+			{
+				continue;
+			}
+			URL url = getPluginManager().getPathResolver().resolvePath(lib, lib.getPath());
+			File file = IoUtil.url2file(url);
+			if( (file == null) || !file.isFile() )
+			{
+				continue;
+			}
+			SharedLibraryLoader loader = sharedLibraryRegistry.acquire(getPluginManager(), this, file, url);
+			if( loader != null )
+			{
+				libraries.add(new SharedLibrary(loader, getResourceFilter(url, url.getFile().length())));
+			}
+		}
+		sharedLibraries = libraries.isEmpty() ? null : libraries.toArray(new SharedLibrary[libraries.size()]);
+		releaseSharedLibraries(oldLibraries);
+	}
+
+	private void releaseSharedLibraries(final SharedLibrary[] libraries)
+	{
+		if( libraries == null )
+		{
+			return;
+		}
+		for( SharedLibrary library : libraries )
+		{
+			sharedLibraryRegistry.release(library.loader, this);
+		}
+	}
+
+	/**
+	 * @param pool pool of memory-mapped JAR files to read code libraries of
+	 *            this plug-in from
+	 */
+	void setMappedJarPool(final MappedJarPool pool)
+	{
+		mappedJarPool = pool;
+		collectMappedLibraries();
+	}
+
+	/**
+	 * Maps code libraries of this plug-in. Mapped libraries are used only if
+	 * all code libraries are unsigned JAR files that could be mapped, otherwise
+	 * classes and resources are read by {@link URLClassLoader} as usual.
+	 */
+	protected void collectMappedLibraries()
+	{
+		MappedLibrary[] oldLibraries = mappedLibraries;
+		List<MappedLibrary> libraries = new LinkedList<MappedLibrary>();
+		boolean mapped = true;
+		for( Library lib : getPluginDescriptor().getLibraries() )
+		{
+			if( !lib.isCodeLibrary() )
+			{
+				continue;
+			}
+			URL url = getPluginManager().getPathResolver().resolvePath(lib, lib.getPath());
+			File file = IoUtil.url2file(url);
+			MappedJar jar = ((file != null) && file.isFile()) ? mappedJarPool.acquire(file) : null;
+			if( jar == null )
+			{
+				mapped = false;
+				break;
+			}
+			libraries.add(new MappedLibrary(url, jar));
+			if( jar.isSigned() )
+			{
+				mapped = false;
+				break;
+			}
+		}
+		mapped &= !libraries.isEmpty();
+		if( !mapped )
+		{
+			releaseMappedLibraries(libraries.toArray(new MappedLibrary[libraries.size()]));
+			mappedLibraries = null;
+		}
+		else
+		{
+			mappedLibraries = libraries.toArray(new MappedLibrary[libraries.size()]);
+		}
+		releaseMappedLibraries(oldLibraries);
+		if( log.isDebugEnabled() )
+		{
+			log.debug("code libraries of plug-in " + getPluginDescriptor() //$NON-NLS-1$
+				+ (mapped ? " are memory-mapped" : " can't be memory-mapped")); //$NON-NLS-1$ //$NON-NLS-2$
+		}
+	}
+
+	private void releaseMappedLibraries(final MappedLibrary[] libraries)
+	{
+		if( libraries == null )
+		{
+			return;
+		}
+		for( MappedLibrary library : libraries )
+		{
+			mappedJarPool.release(library.jar);
+		}
+	}
+
+	/**
+	 * Reads class from memory-mapped code libraries if they are available.
+	 * 
+	 * @see java.net.URLClassLoader#findClass(java.lang.String)
+	 */
+	@Override
+	protected Class<?> findClass(final String name) throws ClassNotFoundException
+	{
+		MappedLibrary[] libraries = mappedLibraries;
+		if( libraries == null )
+		{
+			return super.findClass(name);
+		}
+		String path = name.replace('.', '/').concat(".class"); //$NON-NLS-1$
+		for( MappedLibrary library : libraries )
+		{
+			if( !library.jar.contains(path) )
+			{
+				continue;
+			}
+			byte[] bytes;
+			try
+			{
+				bytes = library.jar.getBytes(path);
+			}
+			catch( IOException ioe )
+			{
+				throw new ClassNotFoundException(name, ioe);
+			}
+			defineMappedPackage(name, library);
+			return defineClass(name, bytes, 0, bytes.length, library.codeSource);
+		}
+		throw new ClassNotFoundException(name);
+	}
+
+	private void defineMappedPackage(final String className, final MappedLibrary library)
+	{
+		String pkgName = getPackageName(className);
+		if( (pkgName == null) || (getDefinedPackage(pkgName) != null) )
+		{
+			return;
+		}
+		Manifest manifest = library.jar.getManifest();
+		try
+		{
+			if( manifest != null )
+			{
+				definePackage(pkgName, manifest, library.url);
+			}
+			else
+			{
+				definePackage(pkgName, null, null, null, null, null, null, null);
+			}
+		}
+		catch( IllegalArgumentException iae )
+		{
+			// package has been defined concurrently
+		}
+	}
+
+	private URL findCodeResource(final String name)
+	{
+		MappedLibrary[] libraries = mappedLibraries;
+		if( libraries == null )
+		{
+			return super.findResource(name);
+		}
+		for( MappedLibrary library : libraries )
+		{
+			if( library.jar.contains(name) )
+			{
+				return library.getResource(name);
+			}
+		}
+		return null;
+	}
+
+	private Enumeration<URL> findCodeResources(final String name) throws IOException
+	{
+		MappedLibrary[] libraries = mappedLibraries;
+		if( libraries == null )
+		{
+			return super.findResources(name);
+		}
+		List<URL> result = new LinkedList<URL>();
+		for( MappedLibrary library : libraries )
+		{
+			if( library.jar.contains(name) )
+			{
+				URL url = library.getResource(name);
+				if( url != null )
+				{
+					result.add(url);
+				}
+			}
+		}
+		return Collections.enumeration(result);
+	}
+
+	private Class<?> findSharedClass(final String name)
+	{
+		SharedLibrary[] libraries = sharedLibraries;
+		if( libraries == null )
+		{
+			return null;
+		}
+		for( SharedLibrary library : libraries )
+		{
+			Class<?> result = library.loader.findSharedClass(name);
+			if( result != null )
+			{
+				return result;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @return number of local class look-ups that were answered by negative
+	 *         look-up cache without probing plug-in code libraries
+	 */
+	public long getNegativeLookupHits()
+	{
+		NegativeLookupCache cache = negativeLookupCache;
+		return (cache == null) ? 0 : cache.getHits();
+	}
+
+	/**
+	 * @return number of local class look-ups that were not found in negative
+	 *         look-up cache and probed plug-in code libraries
+	 */
+	public long getNegativeLookupMisses()
+	{
+		NegativeLookupCache cache = negativeLookupCache;
+		return (cache == null) ? 0 : cache.getMisses();
+	}
+
+	void setLibraryIndex(final PluginLibraryIndex index)
+	{
+		libraryIndex = index;
+		invalidateRoutes();
+	}
+
+	void setResourceIndex(final PluginLibraryIndex index)
+	{
+		resourceIndex = index;
+		if( index != null )
+		{
+			collectResourceLibraries();
+		}
+	}
+
+	private void collectResourceLibraries()
+	{
+		codeLibraryUrls = getURLs();
+		resourceLibraryUrls = (resourceLoader == null) ? new URL[0] : resourceLoader.getURLs();
+	}
+
+	/**
+	 * @see java.lang.ClassLoader#loadClass(java.lang.String, boolean)
+	 */
+	@Override
+	protected Class<?> loadClass(final String name, final boolean resolve) throws ClassNotFoundException
+	{
+		ClassLoadingEvent event = FlightRecorderEvents.INSTANCE.startClassLoading();
+		if( event == null )
+		{
+			return loadRequestedClass(name, resolve, null);
+		}
+		Class<?> result = null;
+		try
+		{
+			result = loadRequestedClass(name, resolve, event);
+			return result;
+		}
+		finally
+		{
+			event.finish(getPluginDescriptor().getId(), name, result);
+		}
+	}
+
+	/**
+	 * @param event flight recorder event to collect look-up steps to, may be
+	 *            <code>null</code>
+	 */
+	@SuppressWarnings("nls")
+	private Class<?> loadRequestedClass(final String name, final boolean resolve,
+		final ClassLoadingEvent event) throws ClassNotFoundException
+	{
+		Class<?> result;
+		boolean tryLocal = true;
+		boolean illegalClassName = (name.endsWith("BeanInfo") && !name.endsWith(".BeanInfo"))
+			|| name.indexOf('.') == -1;
+		if( illegalClassName )
+		{
+			if( log.isDebugEnabled() )
+			{
+				log.debug("Illegal class name:" + name);
+			}
+			try
+			{
+				if( name.startsWith("java") && !name.equals("java.lang.ObjectBeanInfo") )
+				{
+					if( event != null )
+					{
+						event.step("parent"); //$NON-NLS-1$
+					}
+					return getParent().loadClass(name);
+				}
+			}
+			catch( ClassNotFoundException cnfe )
+			{
+				// fall through
+			}
+			throw new ClassNotFoundException("Illegal class name not supported for " + name); //$NON-NLS-1$
+		}
+		if( isLocalClass(name) )
+		{
+			if( log.isDebugEnabled() )
+			{
+				log.debug("loadClass: trying local class guess, name=" //$NON-NLS-1$
+					+ name + ", this=" + this); //$NON-NLS-1$
+			}
+			if( event != null )
+			{
+				event.step("local"); //$NON-NLS-1$
+			}
+			result = loadLocalClass(name, resolve, this);
+			if( result != null )
+			{
+				if( log.isDebugEnabled() )
+				{
+					log.debug("loadClass: local class guess succeeds, name=" //$NON-NLS-1$
+						+ name + ", this=" + this); //$NON-NLS-1$
+				}
+				checkClassVisibility(result, this);
+				return result;
+			}
+			tryLocal = false;
+		}
+		if( !dynamicClassLoaders.isEmpty() )
+		{
+			if( event != null )
+			{
+				event.step("dynamic"); //$NON-NLS-1$
+			}
+			result = dynamicClassLoaders.findClass(name);
+			if( result != null )
+			{
+				return result;
+			}
+		}
+		try
+		{
+			if( probeParentLoaderLast )
+			{
+				if( event != null )
+				{
+					event.step("plug-ins"); //$NON-NLS-1$
+				}
+				try
+				{
+					result = loadPluginClass(name, resolve, tryLocal, this);
+				}
+				catch( ClassNotFoundException cnfe )
+				{
+					result = null;
+				}
+				if( result == null )
+				{
+					if( event != null )
+					{
+						event.step("parent"); //$NON-NLS-1$
+					}
+					result = getParent().loadClass(name);
+				}
+			}
+			else
+			{
+				if( event != null )
+				{
+					event.step("parent"); //$NON-NLS-1$
+				}
+				try
+				{
+					result = getParent().loadClass(name);
+				}
+				catch( ClassNotFoundException cnfe )
+				{
+					if( event != null )
+					{
+						event.step("plug-ins"); //$NON-NLS-1$
+					}
+					result = loadPluginClass(name, resolve, tryLocal, this);
+				}
+			}
+			if( result != null )
+			{
+				return result;
+			}
+		}
+		catch( ClassNotFoundException cnfe )
+		{
+			// fallthrough for better error message
+		}
+		throw new ClassNotFoundException(name + " from " + getPluginDescriptor().getId()); //$NON-NLS-1$
+	}
+
+	@SuppressWarnings("nls")
+	public Class<?> loadLocalClass(final String name, final boolean resolve, final StandardPluginClassLoader requestor)
+		throws ClassNotFoundException
+	{
+		boolean debugEnabled = log.isDebugEnabled();
+
+		Class<?> result = null;
+		if( !dynamicClassLoaders.isEmpty() )
+		{
+			result = dynamicClassLoaders.findClass(name);
+			if( result != null )
+			{
+				registerPacakge(result);
+				return result;
+			}
+		}
+		NegativeLookupCache missCache = negativeLookupCache;
+		synchronized( getClassLoadingLock(name) )
+		{
+			result = findLoadedClass(name);
+			if( result != null )
+			{
+				if( debugEnabled )
+				{
+					log.debug("loadLocalClass: found loaded class, class=" + result + ", this=" + this + ", requestor="
 						+ requestor);
 				}
+				if( classLoadingProfile != null )
+				{
+					// class may have been defined by profile replay
+					classLoadingProfile.record(getPluginDescriptor().getId(), name);
+				}
 				return result; // found already loaded class in this plug-in
 			}
+			if( (missCache != null) && missCache.contains(name) )
+			{
+				if( debugEnabled )
+				{
+					log.debug("loadLocalClass: class is known to be absent, name=" + name + ", this=" + this
+						+ ", requestor=" + requestor);
+				}
+				return null;
+			}
+			long start = (metrics != null) ? System.nanoTime() : 0;
 			try
 			{
-				result = findClass(name);
+				result = findSharedClass(name);
+				if( result == null )
+				{
+					result = findClass(name);
+				}
 				registerPacakge(result);
+				if( classLoadingProfile != null )
+				{
+					classLoadingProfile.record(getPluginDescriptor().getId(), name);
+				}
+				if( cdsClassList != null )
+				{
+					cdsClassList.record(result);
+				}
 			}
 			catch( ClassNotFoundException cnfe )
 			{
+				if( missCache != null )
+				{
+					missCache.add(name);
+				}
 				// int failures = failedFinds.incrementAndGet();
 				// log.info("Failure on " + name + " in " +
 				// getPluginDescriptor().getId() + " from "
@@ -475,72 +1293,172 @@ public class StandardPluginClassLoader extends PluginClassLoader
 				// }
 				if( debugEnabled )
 				{
-					log.debug("loadLocalClass: class loading failed," + " name=" + name + ", this=" + this
-						+ ", requestor=" + requestor);
+					log.debug("loadLocalClass: class loading failed," + " name=" + name + ", this=" + this
+						+ ", requestor=" + requestor);
+				}
+			}
+			if( metrics != null )
+			{
+				metrics.findClassDone(System.nanoTime() - start);
+			}
+		}
+		if( result != null )
+		{
+			if( metrics != null )
+			{
+				metrics.localHits.increment();
+			}
+			if( debugEnabled )
+			{
+				log.debug("loadLocalClass: found class, class=" + result + ", this=" + this + ", requestor="
+					+ requestor);
+			}
+			if( resolve )
+			{
+				resolveClass(result);
+			}
+			registerLocalPackage(result);
+			return result; // found class in this plug-in
+		}
+		return null;
+	}
+
+	private void registerPacakge(Class<?> cls)
+	{
+		PluginDescriptor descriptor = getPluginDescriptor();
+		String pkgName = getPackageName(cls.getName());
+		if( (pkgName == null) || disposed )
+		{
+			return;
+		}
+		while( true )
+		{
+			PluginDescriptor[] candidates = packageCache.get(pkgName);
+			if( candidates == null )
+			{
+				if( packageCache.putIfAbsent(pkgName, new PluginDescriptor[]{descriptor}) == null )
+				{
+					break;
+				}
+				continue;
+			}
+			if( candidates[0] == descriptor )
+			{
+				// already the most recent candidate, nothing to change
+				return;
+			}
+			PluginDescriptor[] updated = moveToFront(candidates, descriptor);
+			if( packageCache.replace(pkgName, candidates, updated) )
+			{
+				if( (updated.length == MAX_PACKAGE_CANDIDATES) && log.isDebugEnabled() )
+				{
+					log.debug("Same package " + pkgName + " is found in " + Arrays.asList(updated)); //$NON-NLS-1$ //$NON-NLS-2$
+				}
+				break;
+			}
+		}
+		if( log.isDebugEnabled() )
+		{
+			log.debug("registered plug-in package: name=" + pkgName //$NON-NLS-1$
+				+ ", plugin=" + descriptor); //$NON-NLS-1$
+		}
+
+	}
+
+	/**
+	 * Removes given plug-in from all package candidate lists, so that
+	 * descriptors of unregistered plug-ins are not retained.
+	 */
+	private static void purgePackageCache(final PluginDescriptor descriptor)
+	{
+		for( Map.Entry<String, PluginDescriptor[]> entry : packageCache.entrySet() )
+		{
+			PluginDescriptor[] candidates = entry.getValue();
+			while( candidates != null )
+			{
+				int idx = -1;
+				for( int i = 0; i < candidates.length; i++ )
+				{
+					if( candidates[i] == descriptor )
+					{
+						idx = i;
+						break;
+					}
+				}
+				if( idx == -1 )
+				{
+					break;
+				}
+				boolean done;
+				if( candidates.length == 1 )
+				{
+					done = packageCache.remove(entry.getKey(), candidates);
 				}
+				else
+				{
+					PluginDescriptor[] updated = new PluginDescriptor[candidates.length - 1];
+					System.arraycopy(candidates, 0, updated, 0, idx);
+					System.arraycopy(candidates, idx + 1, updated, idx, updated.length - idx);
+					done = packageCache.replace(entry.getKey(), candidates, updated);
+				}
+				if( done )
+				{
+					break;
+				}
+				candidates = packageCache.get(entry.getKey());
 			}
 		}
-		if( result != null )
+	}
+
+	private static PluginDescriptor[] moveToFront(final PluginDescriptor[] candidates,
+		final PluginDescriptor descriptor)
+	{
+		int size = candidates.length;
+		for( PluginDescriptor candidate : candidates )
 		{
-			if( debugEnabled )
-			{
-				log.debug("loadLocalClass: found class, class=" + result + ", this=" + this + ", requestor="
-					+ requestor);
-			}
-			if( resolve )
+			if( candidate == descriptor )
 			{
-				resolveClass(result);
+				size--;
+				break;
 			}
-			registerLocalPackage(result);
-			return result; // found class in this plug-in
 		}
-		return null;
-	}
-
-	private void registerPacakge(Class<?> cls)
-	{
-		PluginDescriptor descriptor = getPluginDescriptor();
-		String pkgName = getPackageName(cls.getName());
-		synchronized( packageCache )
+		PluginDescriptor[] result = new PluginDescriptor[Math.min(size + 1, MAX_PACKAGE_CANDIDATES)];
+		result[0] = descriptor;
+		int i = 1;
+		for( PluginDescriptor candidate : candidates )
 		{
-			LinkedList<PluginDescriptor> linkedList = packageCache.get(pkgName);
-			if( linkedList == null )
+			if( i == result.length )
 			{
-				linkedList = new LinkedList<PluginDescriptor>();
-				packageCache.put(pkgName, linkedList);
+				break;
 			}
-			linkedList.remove(descriptor);
-			linkedList.addFirst(descriptor);
-			if( linkedList.size() > 3 )
+			if( candidate != descriptor )
 			{
-				if( log.isDebugEnabled() )
-				{
-					log.debug("Same package " + pkgName + " is found in " + linkedList); //$NON-NLS-1$ //$NON-NLS-2$
-				}
+				result[i++] = candidate;
 			}
 		}
-		if( log.isDebugEnabled() )
-		{
-			log.debug("registered plug-in package: name=" + pkgName //$NON-NLS-1$
-				+ ", plugin=" + descriptor); //$NON-NLS-1$
-		}
-
+		return result;
 	}
 
-	@SuppressWarnings("nls")
 	private Class<?> loadPluginClass(final String name, final boolean resolve, final boolean tryLocal,
-		final StandardPluginClassLoader requestor, final Set<String> seenPlugins) throws ClassNotFoundException
+		final StandardPluginClassLoader requestor) throws ClassNotFoundException
 	{
-		Set<String> seen = seenPlugins;
-		if( (seen != null) && seen.contains(getPluginDescriptor().getId()) )
+		VisitedLoaders visited = visitedLoaders.get();
+		visited.begin();
+		try
 		{
-			return null;
+			visited.visit(loaderIndex);
+			return loadPluginClass(name, resolve, tryLocal, requestor, visited);
 		}
-		if( seen == null )
+		finally
 		{
-			seen = new HashSet<String>();
+			visited.end();
 		}
-		seen.add(getPluginDescriptor().getId());
+	}
+
+	@SuppressWarnings("nls")
+	private Class<?> loadPluginClass(final String name, final boolean resolve, final boolean tryLocal,
+		final StandardPluginClassLoader requestor, final VisitedLoaders visited) throws ClassNotFoundException
+	{
 		if( (this != requestor) && !getPluginManager().isPluginActivated(getPluginDescriptor())
 			&& !getPluginManager().isPluginActivating(getPluginDescriptor()) )
 		{
@@ -550,31 +1468,46 @@ public class StandardPluginClassLoader extends PluginClassLoader
 		}
 		Class<?> result = null;
 		boolean debugEnabled = log.isDebugEnabled();
-		List<PluginDescriptor> guesses = guessPlugin(name);
+		ClassLoadingMetrics m = metrics;
+		PluginDescriptor[] owners = getPackageOwners(name);
+		if( owners != null )
+		{
+			result = loadGuessedClass(owners, name, resolve, requestor, visited);
+			if( m != null )
+			{
+				(result != null ? m.packageRouteHits : m.packageRouteMisses).increment();
+			}
+			if( result != null )
+			{
+				if( debugEnabled )
+				{
+					log.debug("loadPluginClass: package route succeeded, name=" + name + ", this=" + this
+						+ ", requestor=" + requestor);
+				}
+				return result;
+			}
+		}
+		PluginDescriptor[] guesses = guessPlugin(name);
 		if( guesses != null )
 		{
 			if( debugEnabled )
 			{
 				log.debug("loadPluginClass: trying plug-in guess, name=" + name + ", this=" + this + ", requestor="
-					+ requestor + " guesses=" + guesses);
+					+ requestor + " guesses=" + Arrays.asList(guesses));
+			}
+			result = loadGuessedClass(guesses, name, resolve, requestor, visited);
+			if( m != null )
+			{
+				(result != null ? m.guessHits : m.guessMisses).increment();
 			}
-			for( PluginDescriptor descr : guesses )
+			if( result != null )
 			{
-				if( accessibleImports.contains(descr) && !seen.contains(descr.getId()) )
+				if( debugEnabled )
 				{
-					seen.add(descr.getId());
-					result = ((StandardPluginClassLoader) getPluginManager().getPluginClassLoader(descr))
-						.loadLocalClass(name, resolve, requestor);
-					if( result != null )
-					{
-						if( debugEnabled )
-						{
-							log.debug("loadPluginClass: plug-in guess succeeded, plugin=" + descr.getId() + " name="
-								+ name + ", this=" + this + ", requestor=" + requestor);
-						}
-						return result;
-					}
+					log.debug("loadPluginClass: plug-in guess succeeded, name=" + name + ", this=" + this
+						+ ", requestor=" + requestor);
 				}
+				return result;
 			}
 		}
 		if( tryLocal )
@@ -593,29 +1526,45 @@ public class StandardPluginClassLoader extends PluginClassLoader
 				+ name + ", this=" //$NON-NLS-1$
 				+ this + ", requestor=" + requestor); //$NON-NLS-1$
 		}
-		guesses = guessParentPackagePlugin(name);
-		for( PluginDescriptor descr : guesses )
+		String pkgName = getPackageName(name);
+		while( pkgName != null )
 		{
-			if( accessibleImports.contains(descr) && !seen.contains(descr.getId()) )
+			pkgName = getPackageName(pkgName);
+			if( pkgName == null )
 			{
-				seen.add(descr.getId());
-				result = ((StandardPluginClassLoader) getPluginManager().getPluginClassLoader(descr)).loadLocalClass(
-					name, resolve, requestor);
+				break;
+			}
+			guesses = packageCache.get(pkgName);
+			if( guesses != null )
+			{
+				result = loadGuessedClass(guesses, name, resolve, requestor, visited);
+				if( m != null )
+				{
+					(result != null ? m.guessHits : m.guessMisses).increment();
+				}
 				if( result != null )
 				{
 					return result;
 				}
 			}
 		}
-		for( PluginDescriptor descr : accessibleImports )
+		if( m != null )
+		{
+			m.importScans.increment();
+		}
+		for( ImportDelegate delegate : delegationPlan )
 		{
-			if( !seen.contains(descr.getId()) )
+			StandardPluginClassLoader loader = delegate.getLoader(getPluginManager());
+			if( visited.visit(loader.loaderIndex) )
 			{
-				seen.add(descr.getId());
-				result = ((StandardPluginClassLoader) getPluginManager().getPluginClassLoader(descr)).loadLocalClass(
-					name, resolve, requestor);
+				result = loader.loadLocalClass(name, resolve, requestor);
 				if( result != null )
 				{
+					registerDelegationHit(delegate);
+					if( m != null )
+					{
+						m.importScanHits.increment();
+					}
 					break;
 				}
 			}
@@ -623,6 +1572,31 @@ public class StandardPluginClassLoader extends PluginClassLoader
 		return result;
 	}
 
+	private Class<?> loadGuessedClass(final PluginDescriptor[] guesses, final String name, final boolean resolve,
+		final StandardPluginClassLoader requestor, final VisitedLoaders visited) throws ClassNotFoundException
+	{
+		Map<String, ImportDelegate> delegates = importDelegates;
+		for( PluginDescriptor descr : guesses )
+		{
+			ImportDelegate delegate = delegates.get(descr.getId());
+			if( (delegate == null) || !delegate.descriptor.equals(descr) )
+			{
+				continue;
+			}
+			StandardPluginClassLoader loader = delegate.getLoader(getPluginManager());
+			if( visited.visit(loader.loaderIndex) )
+			{
+				Class<?> result = loader.loadLocalClass(name, resolve, requestor);
+				if( result != null )
+				{
+					registerDelegationHit(delegate);
+					return result;
+				}
+			}
+		}
+		return null;
+	}
+
 	private boolean isLocalClass(final String className)
 	{
 		if( !localClassLoadingOptimization )
@@ -658,7 +1632,30 @@ public class StandardPluginClassLoader extends PluginClassLoader
 		}
 	}
 
-	private List<PluginDescriptor> guessPlugin(final String className)
+	private PluginDescriptor[] getPackageOwners(final String className)
+	{
+		if( libraryIndex == null )
+		{
+			return null;
+		}
+		Map<String, PluginDescriptor[]> routes = packageRoutes;
+		if( routes == null )
+		{
+			routes = buildRoutes();
+			if( routes == null )
+			{
+				return null;
+			}
+		}
+		String pkgName = getPackageName(className);
+		if( pkgName == null )
+		{
+			return null;
+		}
+		return routes.get(pkgName);
+	}
+
+	private PluginDescriptor[] guessPlugin(final String className)
 	{
 		if( !foreignClassLoadingOptimization )
 		{
@@ -669,48 +1666,213 @@ public class StandardPluginClassLoader extends PluginClassLoader
 		{
 			return null;
 		}
-		synchronized( packageCache )
+		return packageCache.get(pkgName);
+	}
+
+	private String getPackageName(final String className)
+	{
+		int p = className.lastIndexOf('.');
+		if( p == -1 )
+		{
+			return null;
+		}
+		return className.substring(0, p);
+	}
+
+	/**
+	 * Loads, but not initializes, given classes using given executor. Classes
+	 * are grouped by library they are expected to be found in and every group
+	 * is loaded by one task, so each library is read sequentially while
+	 * different libraries are read in parallel.
+	 *
+	 * @param classNames names of classes to be loaded
+	 * @param executor executor to run loading tasks with, tasks rejected by
+	 *        executor are run in current thread
+	 * @param parallelism maximum number of loading tasks
+	 * @return task that provides map from name of class that failed to load to
+	 *         the cause of failure
+	 */
+	Future<Map<String, Throwable>> preloadClasses(final Collection<String> classNames,
+		final Executor executor, final int parallelism)
+	{
+		final Map<String, Throwable> failures = new ConcurrentHashMap<String, Throwable>();
+		final FutureTask<Map<String, Throwable>> result = new FutureTask<Map<String, Throwable>>(
+			new Callable<Map<String, Throwable>>()
+			{
+				public Map<String, Throwable> call()
+				{
+					return failures;
+				}
+			});
+		List<List<String>> batches = groupByLibrary(classNames, parallelism);
+		if( batches.isEmpty() )
+		{
+			result.run();
+			return result;
+		}
+		final AtomicInteger pending = new AtomicInteger(batches.size());
+		for( final List<String> batch : batches )
 		{
-			LinkedList<PluginDescriptor> list = packageCache.get(pkgName);
-			if( list == null )
+			Runnable task = new Runnable()
 			{
-				return null;
+				public void run()
+				{
+					try
+					{
+						preloadBatch(batch, failures);
+					}
+					finally
+					{
+						if( pending.decrementAndGet() == 0 )
+						{
+							result.run();
+						}
+					}
+				}
+			};
+			try
+			{
+				executor.execute(task);
+			}
+			catch( RejectedExecutionException ree )
+			{
+				task.run();
+			}
+		}
+		return result;
+	}
+
+	private void preloadBatch(final List<String> batch, final Map<String, Throwable> failures)
+	{
+		for( String className : batch )
+		{
+			if( disposed )
+			{
+				failures.put(className, new ClassNotFoundException(className
+					+ " - class loader " + this + " has been disposed")); //$NON-NLS-1$ //$NON-NLS-2$
+				continue;
+			}
+			try
+			{
+				Class.forName(className, false, this);
+			}
+			catch( ClassNotFoundException cnfe )
+			{
+				failures.put(className, cnfe);
+			}
+			catch( LinkageError le )
+			{
+				failures.put(className, le);
+			}
+			catch( RuntimeException re )
+			{
+				failures.put(className, re);
+			}
+		}
+	}
+
+	/**
+	 * Splits given class names into at most given number of batches, keeping
+	 * classes of the same library in one batch. Biggest groups are assigned
+	 * first, each to the least loaded batch.
+	 */
+	private List<List<String>> groupByLibrary(final Collection<String> classNames, final int parallelism)
+	{
+		Map<String, List<String>> groups = new HashMap<String, List<String>>();
+		for( String className : new LinkedHashSet<String>(classNames) )
+		{
+			String key = getLibraryKey(className);
+			List<String> group = groups.get(key);
+			if( group == null )
+			{
+				group = new ArrayList<String>();
+				groups.put(key, group);
+			}
+			group.add(className);
+		}
+		List<List<String>> sortedGroups = new ArrayList<List<String>>(groups.values());
+		Collections.sort(sortedGroups, new Comparator<List<String>>()
+		{
+			public int compare(final List<String> o1, final List<String> o2)
+			{
+				return o2.size() - o1.size();
+			}
+		});
+		List<List<String>> result = new ArrayList<List<String>>();
+		for( List<String> group : sortedGroups )
+		{
+			if( result.size() < Math.max(parallelism, 1) )
+			{
+				result.add(new ArrayList<String>(group));
+				continue;
+			}
+			List<String> batch = result.get(0);
+			for( List<String> candidate : result )
+			{
+				if( candidate.size() < batch.size() )
+				{
+					batch = candidate;
+				}
 			}
-			return new ArrayList<PluginDescriptor>(list);
+			batch.addAll(group);
 		}
+		return result;
 	}
 
-	private List<PluginDescriptor> guessParentPackagePlugin(final String className)
+	/**
+	 * @return URL of code library given class is expected in or package name
+	 *         if library is not known
+	 */
+	private String getLibraryKey(final String className)
 	{
 		String pkgName = getPackageName(className);
-		List<PluginDescriptor> parentDescriptors = new ArrayList<PluginDescriptor>();
-		synchronized( packageCache )
+		if( pkgName == null )
+		{
+			return ""; //$NON-NLS-1$
+		}
+		PluginLibraryIndex index = libraryIndex;
+		if( index == null )
+		{
+			return pkgName;
+		}
+		URL lib = findPackageLibrary(index, pkgName);
+		if( lib == null )
 		{
-			while( pkgName != null )
+			PluginDescriptor[] owners = getPackageOwners(className);
+			if( (owners != null) && (owners.length == 1) )
 			{
-				pkgName = getPackageName(pkgName);
-				if( pkgName == null )
+				try
 				{
-					return parentDescriptors;
+					PluginClassLoader ownerLoader = getPluginManager().getPluginClassLoader(owners[0]);
+					if( ownerLoader instanceof StandardPluginClassLoader )
+					{
+						lib = ((StandardPluginClassLoader) ownerLoader).findPackageLibrary(index, pkgName);
+					}
 				}
-				LinkedList<PluginDescriptor> list = packageCache.get(pkgName);
-				if( list != null )
+				catch( IllegalArgumentException iae )
 				{
-					parentDescriptors.addAll(list);
+					// owner plug-in is disabled
 				}
 			}
 		}
-		return parentDescriptors;
+		return (lib != null) ? lib.toExternalForm() : pkgName;
 	}
 
-	private String getPackageName(final String className)
+	private URL findPackageLibrary(final PluginLibraryIndex index, final String pkgName)
 	{
-		int p = className.lastIndexOf('.');
-		if( p == -1 )
+		URL[] urls = codeLibraryUrls;
+		if( urls == null )
 		{
 			return null;
 		}
-		return className.substring(0, p);
+		for( URL url : urls )
+		{
+			if( index.getLibraryPackages(url).contains(pkgName) )
+			{
+				return url;
+			}
+		}
+		return null;
 	}
 
 	protected void checkClassVisibility(final Class<?> cls, final StandardPluginClassLoader requestor)
@@ -726,19 +1888,35 @@ public class StandardPluginClassLoader extends PluginClassLoader
 			return; // cls is a system class
 		}
 		ClassLoader loader = cls.getClassLoader();
-		if( !(loader instanceof StandardPluginClassLoader) )
+		ResourceFilter filter;
+		if( loader instanceof SharedLibraryLoader )
+		{
+			filter = getSharedLibraryFilter(loader);
+			if( filter == null )
+			{
+				// shared library of other plug-ins
+				checkSharedClassVisibility(cls, (SharedLibraryLoader) loader, requestor);
+				return;
+			}
+		}
+		else if( !(loader instanceof StandardPluginClassLoader) )
 		{
 			return;
 		}
-		if( loader != this )
+		else if( loader != this )
 		{
 			((StandardPluginClassLoader) loader).checkClassVisibility(cls, requestor);
+			return;
 		}
 		else
 		{
-			ResourceFilter filter = resourceFilters.get(lib.toExternalForm());
+			filter = getResourceFilter(lib, lib.getFile().length());
 			if( filter == null )
 			{
+				if( metrics != null )
+				{
+					metrics.visibilityRejections.increment();
+				}
 				log.warn("class not visible, no class filter found, lib=" + lib //$NON-NLS-1$
 					+ ", class=" + cls + ", this=" + this //$NON-NLS-1$ //$NON-NLS-2$
 					+ ", requestor=" + requestor); //$NON-NLS-1$
@@ -746,16 +1924,75 @@ public class StandardPluginClassLoader extends PluginClassLoader
 					+ cls.getName() + " is not visible for plug-in " //$NON-NLS-1$
 					+ requestor.getPluginDescriptor().getId() + ", no filter found for library " + lib); //$NON-NLS-1$
 			}
-			if( !filter.isClassVisible(cls.getName()) )
+		}
+		if( !filter.isClassVisible(cls.getName()) )
+		{
+			if( metrics != null )
 			{
-				log.warn("class not visible, lib=" + lib //$NON-NLS-1$
-					+ ", class=" + cls + ", this=" + this //$NON-NLS-1$ //$NON-NLS-2$
-					+ ", requestor=" + requestor); //$NON-NLS-1$
-				throw new ClassNotFoundException("class " //$NON-NLS-1$
-					+ cls.getName() + " is not visible for plug-in " //$NON-NLS-1$
-					+ requestor.getPluginDescriptor().getId());
+				metrics.visibilityRejections.increment();
+			}
+			log.warn("class not visible, lib=" + lib //$NON-NLS-1$
+				+ ", class=" + cls + ", this=" + this //$NON-NLS-1$ //$NON-NLS-2$
+				+ ", requestor=" + requestor); //$NON-NLS-1$
+			throw new ClassNotFoundException("class " //$NON-NLS-1$
+				+ cls.getName() + " is not visible for plug-in " //$NON-NLS-1$
+				+ requestor.getPluginDescriptor().getId());
+		}
+	}
+
+	/**
+	 * Checks visibility of class from shared library, that is not used by
+	 * this plug-in, against plug-ins that use that library. Class is visible
+	 * if requestor uses the library itself or imports a plug-in that uses it
+	 * and exports the class.
+	 */
+	private void checkSharedClassVisibility(final Class<?> cls, final SharedLibraryLoader loader,
+		final StandardPluginClassLoader requestor) throws ClassNotFoundException
+	{
+		Set<PluginDescriptor> imports = requestor.accessibleImports;
+		for( StandardPluginClassLoader user : loader.users )
+		{
+			if( user == requestor )
+			{
+				return;
+			}
+			if( (imports == null) || !imports.contains(user.getPluginDescriptor()) )
+			{
+				continue;
+			}
+			ResourceFilter filter = user.getSharedLibraryFilter(loader);
+			if( (filter != null) && filter.isClassVisible(cls.getName()) )
+			{
+				return;
+			}
+		}
+		if( metrics != null )
+		{
+			metrics.visibilityRejections.increment();
+		}
+		log.warn("class not visible, shared loader=" + loader //$NON-NLS-1$
+			+ ", class=" + cls + ", this=" + this //$NON-NLS-1$ //$NON-NLS-2$
+			+ ", requestor=" + requestor); //$NON-NLS-1$
+		throw new ClassNotFoundException("class " //$NON-NLS-1$
+			+ cls.getName() + " is not visible for plug-in " //$NON-NLS-1$
+			+ requestor.getPluginDescriptor().getId());
+	}
+
+	private ResourceFilter getSharedLibraryFilter(final ClassLoader loader)
+	{
+		SharedLibrary[] libraries = sharedLibraries;
+		if( libraries == null )
+		{
+			return null;
+		}
+		for( SharedLibrary library : libraries )
+		{
+			if( library.loader == loader )
+			{
+				return library.filter;
 			}
 		}
+		return null;
 	}
 
 	/**
@@ -845,6 +2082,18 @@ public class StandardPluginClassLoader extends PluginClassLoader
 		}
 		try
 		{
+			if( nativeLibraryCache != null )
+			{
+				result = nativeLibraryCache.getLibrary(libUrl, libname);
+				if( log.isDebugEnabled() )
+				{
+					log.debug("library " + libname //$NON-NLS-1$
+						+ " from URL " + libUrl //$NON-NLS-1$
+						+ " found in cache as local file " + result); //$NON-NLS-1$
+				}
+				libraryCache.put(libraryCacheKey, result);
+				return result;
+			}
 			File cacheFolder = getLibCacheFolder();
 			if( cacheFolder == null )
 			{
@@ -860,15 +2109,7 @@ public class StandardPluginClassLoader extends PluginClassLoader
 			InputStream in = IoUtil.getResourceInputStream(libUrl);
 			try
 			{
-				OutputStream out = new BufferedOutputStream(new FileOutputStream(result));
-				try
-				{
-					IoUtil.copyStream(in, out, 512);
-				}
-				finally
-				{
-					out.close();
-				}
+				NativeLibraryCache.copy(in, result);
 			}
 			finally
 			{
@@ -901,19 +2142,25 @@ public class StandardPluginClassLoader extends PluginClassLoader
 	}
 
 	/**
+	 * Returned enumeration is lazy, libraries of this plug-in and it's imports
+	 * are searched as elements are requested.
+	 * 
 	 * @see java.lang.ClassLoader#findResources(java.lang.String)
 	 */
 	@Override
 	public Enumeration<URL> findResources(final String name) throws IOException
 	{
-		final List<URL> result = new LinkedList<URL>();
-		findResources(result, name, this);
-		return Collections.enumeration(result);
+		return new ResourceEnumeration(name, this);
 	}
 
 	private URL findLocalResource(final String name, final StandardPluginClassLoader requestor)
 	{
-		URL result = super.findResource(name);
+		PluginLibraryIndex index = resourceIndex;
+		URL result = null;
+		if( (index == null) || !index.isResourceAbsent(codeLibraryUrls, name) )
+		{
+			result = findCodeResource(name);
+		}
 		if( result != null )
 		{ // found resource in this plug-in class path
 			if( log.isDebugEnabled() )
@@ -928,7 +2175,7 @@ public class StandardPluginClassLoader extends PluginClassLoader
 			}
 			return null;
 		}
-		if( resourceLoader != null )
+		if( (resourceLoader != null) && ((index == null) || !index.isResourceAbsent(resourceLibraryUrls, name)) )
 		{
 			result = resourceLoader.findResource(name);
 			if( result != null )
@@ -963,12 +2210,12 @@ public class StandardPluginClassLoader extends PluginClassLoader
 		{
 			return result;
 		}
-		for( PluginDescriptor element : accessibleImports )
+		for( ImportDelegate delegate : delegationPlan )
 		{
-			result = ((StandardPluginClassLoader) getPluginManager().getPluginClassLoader(element)).findLocalResource(
-				name, requestor);
+			result = delegate.getLoader(getPluginManager()).findLocalResource(name, requestor);
 			if( result != null )
 			{
+				registerDelegationHit(delegate);
 				break; // found resource in publicly imported plug-in
 			}
 		}
@@ -978,20 +2225,16 @@ public class StandardPluginClassLoader extends PluginClassLoader
 	private void findLocalResources(final List<URL> result, final String name, final StandardPluginClassLoader requestor)
 		throws IOException
 	{
-		URL url;
-		for( Enumeration<URL> enm = super.findResources(name); enm.hasMoreElements(); )
+		for( int step = 0; step < LOCAL_RESOURCE_STEPS; step++ )
 		{
-			url = enm.nextElement();
-			if( isResourceVisible(name, url, requestor) )
+			Enumeration<URL> enm = findLocalResources(name, step);
+			if( enm == null )
 			{
-				result.add(url);
+				continue;
 			}
-		}
-		if( resourceLoader != null )
-		{
-			for( Enumeration<URL> enm = resourceLoader.findResources(name); enm.hasMoreElements(); )
+			while( enm.hasMoreElements() )
 			{
-				url = enm.nextElement();
+				URL url = enm.nextElement();
 				if( isResourceVisible(name, url, requestor) )
 				{
 					result.add(url);
@@ -1000,14 +2243,38 @@ public class StandardPluginClassLoader extends PluginClassLoader
 		}
 	}
 
+	/**
+	 * @param step <code>0</code> to search code libraries,
+	 *            <code>1</code> to search resource libraries
+	 * @return not filtered resources found in given libraries of this plug-in
+	 *         or <code>null</code> if libraries index knows there are none
+	 */
+	private Enumeration<URL> findLocalResources(final String name, final int step) throws IOException
+	{
+		PluginLibraryIndex index = resourceIndex;
+		if( step == 0 )
+		{
+			if( (index == null) || !index.isResourceAbsent(codeLibraryUrls, name) )
+			{
+				return findCodeResources(name);
+			}
+			return null;
+		}
+		PluginResourceLoader loader = resourceLoader;
+		if( (loader != null) && ((index == null) || !index.isResourceAbsent(resourceLibraryUrls, name)) )
+		{
+			return loader.findResources(name);
+		}
+		return null;
+	}
+
 	protected void findResources(final List<URL> result, final String name, final StandardPluginClassLoader requestor)
 		throws IOException
 	{
 		findLocalResources(result, name, requestor);
-		for( PluginDescriptor element : accessibleImports )
+		for( ImportDelegate delegate : delegationPlan )
 		{
-			((StandardPluginClassLoader) getPluginManager().getPluginClassLoader(element)).findLocalResources(result,
-				name, requestor);
+			delegate.getLoader(getPluginManager()).findLocalResources(result, name, requestor);
 		}
 	}
 
@@ -1017,22 +2284,10 @@ public class StandardPluginClassLoader extends PluginClassLoader
 		{
 			return true;
 		}
-		URL lib;
-		try
-		{
-			String file = url.getFile();
-			lib = new URL(url.getProtocol(), url.getHost(), file.substring(0, file.length() - name.length()));
-		}
-		catch( MalformedURLException mue )
-		{
-			log.error("can't get resource library URL", mue); //$NON-NLS-1$
-			return false;
-		}
-		ResourceFilter filter = resourceFilters.get(lib.toExternalForm());
+		ResourceFilter filter = getResourceFilter(url, url.getFile().length() - name.length());
 		if( filter == null )
 		{
-			log.warn("no resource filter found for library " //$NON-NLS-1$
-				+ lib + ", name=" + name //$NON-NLS-1$
+			log.warn("no resource filter found for library, name=" + name //$NON-NLS-1$
 				+ ", URL=" + url + ", this=" + this //$NON-NLS-1$ //$NON-NLS-2$
 				+ ", requestor=" + requestor); //$NON-NLS-1$
 			return false;
@@ -1047,20 +2302,270 @@ public class StandardPluginClassLoader extends PluginClassLoader
 		return true;
 	}
 
+	/**
+	 * Resources of this plug-in and it's imports, looked up one library set
+	 * at a time as elements are requested.
+	 */
+	private final class ResourceEnumeration implements Enumeration<URL>
+	{
+		private final String name;
+		private final StandardPluginClassLoader requestor;
+		private final ImportDelegate[] plan = delegationPlan;
+		private StandardPluginClassLoader loader = StandardPluginClassLoader.this;
+		private int loaderPos = -1;
+		private int step = 0;
+		private Enumeration<URL> current;
+		private URL next;
+
+		ResourceEnumeration(final String aName, final StandardPluginClassLoader aRequestor)
+		{
+			name = aName;
+			requestor = aRequestor;
+		}
+
+		public boolean hasMoreElements()
+		{
+			while( next == null )
+			{
+				if( (current != null) && current.hasMoreElements() )
+				{
+					URL url = current.nextElement();
+					if( loader.isResourceVisible(name, url, requestor) )
+					{
+						next = url;
+					}
+					continue;
+				}
+				if( !advance() )
+				{
+					return false;
+				}
+			}
+			return true;
+		}
+
+		public URL nextElement()
+		{
+			if( !hasMoreElements() )
+			{
+				throw new NoSuchElementException();
+			}
+			URL result = next;
+			next = null;
+			return result;
+		}
+
+		/**
+		 * @return <code>false</code> if there are no more libraries to search
+		 */
+		private boolean advance()
+		{
+			current = null;
+			while( current == null )
+			{
+				if( step == LOCAL_RESOURCE_STEPS )
+				{
+					if( (plan == null) || (++loaderPos >= plan.length) )
+					{
+						return false;
+					}
+					loader = plan[loaderPos].getLoader(getPluginManager());
+					step = 0;
+				}
+				try
+				{
+					current = loader.findLocalResources(name, step);
+				}
+				catch( IOException ioe )
+				{
+					log.warn("failed looking up resources, name=" + name //$NON-NLS-1$
+						+ ", this=" + loader, ioe); //$NON-NLS-1$
+				}
+				step++;
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * Class loaders visited by class look-ups of one thread. Look-ups may nest
+	 * (defining a class loads it's super-classes), so every nesting level has
+	 * it's own array of epoch stamps, indexed by class loader index. Starting a
+	 * look-up just increments the epoch of it's level.
+	 */
+	private static final class VisitedLoaders
+	{
+		private int[][] stamps = new int[4][];
+		private int[] epochs = new int[4];
+		private int depth = -1;
+
+		void begin()
+		{
+			depth++;
+			if( depth == stamps.length )
+			{
+				stamps = Arrays.copyOf(stamps, depth * 2);
+				epochs = Arrays.copyOf(epochs, depth * 2);
+			}
+			if( stamps[depth] == null )
+			{
+				stamps[depth] = new int[64];
+			}
+			if( ++epochs[depth] == 0 )
+			{
+				Arrays.fill(stamps[depth], 0);
+				epochs[depth] = 1;
+			}
+		}
+
+		void end()
+		{
+			depth--;
+		}
+
+		/**
+		 * @param index class loader index
+		 * @return <code>true</code> if class loader wasn't visited yet by
+		 *         current look-up
+		 */
+		boolean visit(final int index)
+		{
+			int[] levelStamps = stamps[depth];
+			if( index >= levelStamps.length )
+			{
+				levelStamps = Arrays.copyOf(levelStamps, Math.max(index + 1, levelStamps.length * 2));
+				stamps[depth] = levelStamps;
+			}
+			if( levelStamps[index] == epochs[depth] )
+			{
+				return false;
+			}
+			levelStamps[index] = epochs[depth];
+			return true;
+		}
+	}
+
+	/**
+	 * Code library of this plug-in that is read from memory-mapped JAR file.
+	 */
+	private static final class MappedLibrary
+	{
+		final URL url;
+		final MappedJar jar;
+		final CodeSource codeSource;
+		private final MappedJarHandler handler;
+
+		MappedLibrary(final URL anUrl, final MappedJar aJar)
+		{
+			url = anUrl;
+			jar = aJar;
+			codeSource = new CodeSource(anUrl, (Certificate[]) null);
+			handler = new MappedJarHandler(aJar);
+		}
+
+		URL getResource(final String name)
+		{
+			try
+			{
+				return new URL(url, name, handler);
+			}
+			catch( MalformedURLException mue )
+			{
+				log.warn("can't create URL for resource " + name //$NON-NLS-1$
+					+ " in library " + url, mue); //$NON-NLS-1$
+				return null;
+			}
+		}
+	}
+
+	/**
+	 * JAR library of this plug-in that is served by shared class loader.
+	 */
+	private static final class SharedLibrary
+	{
+		final SharedLibraryLoader loader;
+		final ResourceFilter filter;
+
+		SharedLibrary(final SharedLibraryLoader aLoader, final ResourceFilter aFilter)
+		{
+			loader = aLoader;
+			filter = aFilter;
+		}
+	}
+
+	/**
+	 * Imported plug-in entry of class loader delegation plan. Keeps reference
+	 * to imported plug-in class loader until that loader is disposed.
+	 */
+	private static final class ImportDelegate
+	{
+		final PluginDescriptor descriptor;
+		final boolean direct;
+		final int order;
+		final AtomicInteger hits;
+		private volatile StandardPluginClassLoader loader;
+
+		ImportDelegate(final PluginDescriptor aDescriptor, final boolean isDirect, final int anOrder,
+			final AtomicInteger aHits)
+		{
+			descriptor = aDescriptor;
+			direct = isDirect;
+			order = anOrder;
+			hits = aHits;
+		}
+
+		StandardPluginClassLoader getLoader(final PluginManager manager)
+		{
+			StandardPluginClassLoader result = loader;
+			if( (result == null) || result.disposed )
+			{
+				result = (StandardPluginClassLoader) manager.getPluginClassLoader(descriptor);
+				loader = result;
+			}
+			return result;
+		}
+	}
+
+	/**
+	 * Visibility filter for one plug-in library. Export prefixes are compiled
+	 * into a character trie so that class and resource checks walk given name
+	 * once and don't allocate. Library identity (protocol, host and path of
+	 * library URL) is precomputed to match class code sources and resource
+	 * URLs without building new URL objects.
+	 */
 	protected static final class ResourceFilter
 	{
 		private boolean isPublic;
 
-		private final Set<String> entries;
+		private final TrieNode entries = new TrieNode();
+
+		private final String libProtocol;
+		private final String libHost;
+		private final String libFile;
 
 		protected ResourceFilter(final Library lib)
 		{
-			entries = new HashSet<String>();
+			this(lib, null);
+		}
+
+		protected ResourceFilter(final Library lib, final URL libUrl)
+		{
+			if( libUrl != null )
+			{
+				libProtocol = libUrl.getProtocol();
+				libHost = libUrl.getHost();
+				libFile = libUrl.getFile();
+			}
+			else
+			{
+				libProtocol = null;
+				libHost = null;
+				libFile = null;
+			}
 			for( String exportPrefix : lib.getExports() )
 			{
 				if( "*".equals(exportPrefix) ) { //$NON-NLS-1$
 					isPublic = true;
-					entries.clear();
 					break;
 				}
 				if( !lib.isCodeLibrary() )
@@ -1070,30 +2575,47 @@ public class StandardPluginClassLoader extends PluginClassLoader
 						exportPrefix = exportPrefix.substring(1);
 					}
 				}
-				entries.add(exportPrefix);
+				if( exportPrefix.endsWith(".*") ) { //$NON-NLS-1$
+					entries.add(exportPrefix, exportPrefix.length() - 1).packageWildcard = true;
+				}
+				else
+				{
+					entries.add(exportPrefix, exportPrefix.length()).exact = true;
+				}
 			}
 		}
 
-		protected boolean isClassVisible(final String className)
+		/**
+		 * @param url class code source or resource URL
+		 * @param pathLength length of library part of given URL path
+		 * @return <code>true</code> if given URL belongs to the library of
+		 *         this filter
+		 */
+		protected boolean isLibraryUrl(final URL url, final int pathLength)
 		{
-			if( isPublic )
+			if( libFile == null )
 			{
-				return true;
+				return false;
 			}
-			if( entries.isEmpty() )
+			String file = url.getFile();
+			if( (libFile.length() != pathLength) || !file.startsWith(libFile) )
 			{
 				return false;
 			}
-			if( entries.contains(className) )
+			if( !libProtocol.equals(url.getProtocol()) )
 			{
-				return true;
+				return false;
 			}
-			int p = className.lastIndexOf('.');
-			if( p == -1 )
+			return (libHost == null) ? (url.getHost() == null) : libHost.equals(url.getHost());
+		}
+
+		protected boolean isClassVisible(final String className)
+		{
+			if( isPublic )
 			{
-				return false;
+				return true;
 			}
-			return entries.contains(className.substring(0, p) + ".*"); //$NON-NLS-1$
+			return isVisible(className, 0, className.length(), false);
 		}
 
 		protected boolean isResourceVisible(final String resPath)
@@ -1103,19 +2625,111 @@ public class StandardPluginClassLoader extends PluginClassLoader
 			{
 				return true;
 			}
+			// translate "path spec" -> "full class name" on the fly
+			int start = 0;
+			int end = resPath.length();
+			if( (end > 0) && isSeparator(resPath.charAt(0)) )
+			{
+				start++;
+			}
+			if( (end > start) && isSeparator(resPath.charAt(end - 1)) )
+			{
+				end--;
+			}
+			return isVisible(resPath, start, end, true);
+		}
+
+		private boolean isVisible(final String name, final int start, final int end, final boolean isPath)
+		{
 			if( entries.isEmpty() )
 			{
 				return false;
 			}
-			// translate "path spec" -> "full class name"
-			String str = resPath.replace('\\', '.').replace('/', '.');
-			if( str.startsWith(".") ) { //$NON-NLS-1$
-				str = str.substring(1);
+			int lastDot = -1;
+			for( int i = end - 1; i >= start; i-- )
+			{
+				if( isPath ? isSeparator(name.charAt(i)) : (name.charAt(i) == '.') )
+				{
+					lastDot = i;
+					break;
+				}
+			}
+			TrieNode node = entries;
+			for( int i = start; i < end; i++ )
+			{
+				char c = name.charAt(i);
+				if( isPath && isSeparator(c) )
+				{
+					c = '.';
+				}
+				node = node.get(c);
+				if( node == null )
+				{
+					return false;
+				}
+				if( (i == lastDot) && node.packageWildcard )
+				{
+					return true;
+				}
+			}
+			return node.exact;
+		}
+
+		private static boolean isSeparator(final char c)
+		{
+			return (c == '.') || (c == '/') || (c == '\\');
+		}
+	}
+
+	private static final class TrieNode
+	{
+		private static final char[] NO_KEYS = new char[0];
+		private static final TrieNode[] NO_CHILDREN = new TrieNode[0];
+
+		boolean exact;
+		boolean packageWildcard;
+		private char[] keys = NO_KEYS;
+		private TrieNode[] children = NO_CHILDREN;
+
+		boolean isEmpty()
+		{
+			return (keys.length == 0) && !exact && !packageWildcard;
+		}
+
+		TrieNode get(final char c)
+		{
+			for( int i = 0; i < keys.length; i++ )
+			{
+				if( keys[i] == c )
+				{
+					return children[i];
+				}
 			}
-			if( str.endsWith(".") ) { //$NON-NLS-1$
-				str = str.substring(0, str.length() - 1);
+			return null;
+		}
+
+		TrieNode add(final String key, final int length)
+		{
+			TrieNode node = this;
+			for( int i = 0; i < length; i++ )
+			{
+				char c = key.charAt(i);
+				TrieNode child = node.get(c);
+				if( child == null )
+				{
+					child = new TrieNode();
+					char[] newKeys = new char[node.keys.length + 1];
+					System.arraycopy(node.keys, 0, newKeys, 0, node.keys.length);
+					newKeys[node.keys.length] = c;
+					TrieNode[] newChildren = new TrieNode[node.children.length + 1];
+					System.arraycopy(node.children, 0, newChildren, 0, node.children.length);
+					newChildren[node.children.length] = child;
+					node.keys = newKeys;
+					node.children = newChildren;
+				}
+				node = child;
 			}
-			return isClassVisible(str);
+			return node;
 		}
 	}
 
@@ -1189,13 +2803,78 @@ public class StandardPluginClassLoader extends PluginClassLoader
 		}
 	}
 
+	/**
+	 * @return first dynamic class provider of this class loader or
+	 *         <code>null</code>
+	 * @see #getDynamicClassLoaders()
+	 */
 	public DynamicClassLoader getDynamicClassLoader()
 	{
-		return dynamicClassLoader;
+		List<DynamicClassLoader> providers = dynamicClassLoaders.getProviders();
+		return providers.isEmpty() ? null : providers.get(0);
 	}
 
+	/**
+	 * Replaces all dynamic class providers of this class loader with given
+	 * one.
+	 * 
+	 * @param dynamicClassLoader dynamic class provider, may be
+	 *            <code>null</code>
+	 */
 	public void setDynamicClassLoader(DynamicClassLoader dynamicClassLoader)
 	{
-		this.dynamicClassLoader = dynamicClassLoader;
+		dynamicClassLoaders.set(dynamicClassLoader);
+	}
+
+	/**
+	 * Appends given provider to the chain of dynamic class providers. Providers
+	 * are asked for classes, in order they were added, before normal class
+	 * look-up. Provided classes and names no provider knows are cached until
+	 * invalidated.
+	 * 
+	 * @param dynamicClassLoader dynamic class provider to add
+	 * @see #invalidateDynamicClass(String)
+	 */
+	public void addDynamicClassLoader(final DynamicClassLoader dynamicClassLoader)
+	{
+		dynamicClassLoaders.add(dynamicClassLoader);
+	}
+
+	/**
+	 * @param dynamicClassLoader dynamic class provider to remove
+	 * @return <code>true</code> if given provider was in the chain
+	 */
+	public boolean removeDynamicClassLoader(final DynamicClassLoader dynamicClassLoader)
+	{
+		return dynamicClassLoaders.remove(dynamicClassLoader);
+	}
+
+	/**
+	 * @return unmodifiable list of dynamic class providers in order they are
+	 *         asked for classes
+	 */
+	public List<DynamicClassLoader> getDynamicClassLoaders()
+	{
+		return Collections.unmodifiableList(dynamicClassLoaders.getProviders());
+	}
+
+	/**
+	 * Forgets cached result of dynamic class providers for given class name,
+	 * so providers are asked again on next look-up. Should be called when a
+	 * provider starts or stops providing given class.
+	 * 
+	 * @param name class name
+	 */
+	public void invalidateDynamicClass(final String name)
+	{
+		dynamicClassLoaders.invalidate(name);
+	}
+
+	/**
+	 * Forgets all cached results of dynamic class providers.
+	 */
+	public void invalidateDynamicClasses()
+	{
+		dynamicClassLoaders.invalidate();
 	}
 }
@@ -13,8 +13,16 @@
  *****************************************************************************/
 package org.java.plugin.standard;
 
+import java.io.File;
 import java.security.AccessController;
 import java.security.PrivilegedAction;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -44,7 +52,9 @@ import org.java.plugin.util.ExtendedProperties;
  * multy-threaded environment. If <code>true</code> then class loading will be
  * synchronized with initial plug-in classloader instance. Otherwise
  * <code>this</code> instance will be used as synchronizing monitor. Default
- * value is <code>false</code>.</dd>
+ * value is <code>false</code>. This parameter is ignored by
+ * {@link StandardPluginClassLoader} which is parallel capable and synchronizes
+ * on a per class name lock.</dd>
  * <dt>localClassLoadingOptimization</dt>
  * <dd>If <code>true</code> then plug-in classloader will collect local packages
  * statistics to predict class location. This allow to optimize class look-up
@@ -55,6 +65,100 @@ import org.java.plugin.util.ExtendedProperties;
  * "foreign" classes - those which belong to depending plug-ins. This allow to
  * optimize class look-up procedure when enumerating depending plug-ins. Default
  * value is <code>true</code>.</dd>
+ * <dt>libraryPackageIndex</dt>
+ * <dd>If <code>true</code> then plug-in code libraries will be scanned for
+ * Java packages they contain and plug-in classloader will route class look-up
+ * directly to the imported plug-in that owns requested package, even for the
+ * first class loaded from that package. Imported libraries are scanned on
+ * first class look-up through each plug-in classloader. Default value is
+ * <code>false</code>.</dd>
+ * <dt>libraryResourceIndex</dt>
+ * <dd>If <code>true</code> then folders of plug-in JAR libraries will be
+ * indexed, on first resource look-up in each library, and plug-in classloader
+ * will skip libraries that don't contain the folder of requested resource when
+ * looking for resources in plug-in and it's imports. Folder libraries are
+ * always searched. Default value is <code>false</code>.
+ * </dd>
+ * <dt>negativeLookupCacheSize</dt>
+ * <dd>Maximum number of class names, per plug-in, that plug-in classloader
+ * remembers as not found in plug-in code libraries. Such classes are not
+ * looked up again until plug-ins set is changed. Least recently used names are
+ * dropped first. Misses are not remembered for plug-ins with folder code
+ * libraries. Value <code>0</code> disables this cache. Default value is
+ * <code>0</code>.</dd>
+ * <dt>libraryIndexFile</dt>
+ * <dd>Path to the file where code libraries index (see
+ * <code>libraryPackageIndex</code> parameter) is saved when this handler is
+ * disposed and loaded from when it is configured, so that unchanged JAR
+ * libraries are not scanned again after restart. By default the index is not
+ * saved.</dd>
+ * <dt>classLoadingProfileFile</dt>
+ * <dd>Path to the file where ordered lists of classes, loaded by each plug-in
+ * during the first <code>classLoadingProfileRecordTime</code> seconds after
+ * this handler is configured, are saved when this handler is disposed. If the
+ * file exists when handler is configured, recorded classes are preloaded in
+ * background as soon as their plug-in is about to start, see
+ * {@link StandardPluginManager#awaitClassPreloading(long)}. By default class
+ * loading profile is not recorded.</dd>
+ * <dt>classLoadingProfileRecordTime</dt>
+ * <dd>Number of seconds during which classes are recorded to class loading
+ * profile. Value <code>0</code> disables recording. Default value is
+ * <code>60</code>.</dd>
+ * <dt>classLoadingProfileReplay</dt>
+ * <dd>If <code>true</code> then classes from existing class loading profile are
+ * preloaded. At most <code>256</code> plug-ins may wait for preloading, classes
+ * of plug-ins started beyond that are not preloaded. Default value is
+ * <code>false</code>.</dd>
+ * <dt>classLoadingProfileThreads</dt>
+ * <dd>Maximum number of threads that preload classes from class loading
+ * profile. Default value is number of available processors.</dd>
+ * <dt>nativeLibraryCacheFolder</dt>
+ * <dd>Path to the folder where native libraries, that can't be loaded directly
+ * from plug-in location, are copied to. Libraries in this folder are named
+ * after their content and are shared between restarts and between processes
+ * using the same folder. By default such libraries are copied to a temporary
+ * folder that is deleted on exit.</dd>
+ * <dt>nativeLibraryCacheMaxAge</dt>
+ * <dd>Number of days after which native library, that wasn't used, is removed
+ * from the cache folder. Default value is <code>30</code>.</dd>
+ * <dt>nativeLibraryCacheMaxSize</dt>
+ * <dd>Maximum size of native libraries cache folder in megabytes, least
+ * recently used libraries are removed when it is exceeded. Default value is
+ * <code>512</code>.</dd>
+ * <dt>sharedLibraries</dt>
+ * <dd>If <code>true</code> then JAR libraries that are bundled, with identical
+ * content, by several plug-ins are loaded by one shared class loader, so their
+ * classes are defined only once. Classes of such libraries can't see classes
+ * of plug-ins that bundle them. Default value is <code>false</code>.</dd>
+ * <dt>memoryMappedLibraries</dt>
+ * <dd>If <code>true</code> then JAR code libraries are memory-mapped once and
+ * classes and resources are read directly from the mapping, without keeping
+ * JAR files open. Plug-ins with folder, signed or multi-release code
+ * libraries are not affected. JAR files must not be overwritten while plug-ins are in use.
+ * Default value is <code>false</code>.</dd>
+ * <dt>classLoadingMetrics</dt>
+ * <dd>If <code>true</code> then plug-in classloader will count local hits,
+ * package route and guess hits and misses, full imports scans, visibility
+ * rejections and time spent reading classes from code libraries. Counters are
+ * exposed, per plug-in, as {@link ClassLoadingMetricsMBean} in platform MBean
+ * server. Default value is <code>false</code>.</dd>
+ * <dt>leakDetectionGcCount</dt>
+ * <dd>If greater than <code>0</code> then disposed plug-in class loaders are
+ * tracked and those that are still reachable after given number of major
+ * garbage collections are reported, with retention roots known to the
+ * framework, to the log and through {@link ClassLoaderLeakDetectorMBean}.
+ * Young generation collections are not counted as they don't unload classes.
+ * Default value is <code>0</code>.</dd>
+ * <dt>cdsClassListFile</dt>
+ * <dd>Path to the file where classes, defined by plug-in classloaders from JAR
+ * libraries, are saved in class list format of JVM class data sharing when
+ * this handler is disposed. Such list, recorded during a training run, is used
+ * by <code>jpf-cds</code> Ant task to create class data sharing archive, that
+ * is then used with <code>-XX:SharedArchiveFile</code> JVM option. Plug-in JAR
+ * libraries must stay at the same location for archived classes to be used.
+ * Recorded classes are kept in memory until the list is saved, so this
+ * parameter should be set for training runs only. By default class list is
+ * not recorded.</dd>
  * </dl>
  *
  * 
@@ -63,11 +167,34 @@ import org.java.plugin.util.ExtendedProperties;
  */
 public class StandardPluginLifecycleHandler extends PluginLifecycleHandler
 {
+	/**
+	 * Maximum number of plug-ins waiting for their classes to be preloaded.
+	 */
+	private static final int PRELOAD_QUEUE_SIZE = 256;
+
 	private final Log log = LogFactory.getLog(getClass());
 	private boolean probeParentLoaderLast;
 	private boolean stickySynchronizing;
 	private boolean localClassLoadingOptimization;
 	private boolean foreignClassLoadingOptimization;
+	private boolean libraryPackageIndex;
+	private boolean libraryResourceIndex;
+	private int negativeLookupCacheSize;
+	private File libraryIndexFile;
+	private final PluginLibraryIndex libraryIndex = new PluginLibraryIndex();
+	private File classLoadingProfileFile;
+	private ClassLoadingProfile recordedProfile;
+	private ClassLoadingProfile replayProfile;
+	private ThreadPoolExecutor preloadExecutor;
+	private final Object preloadMonitor = new Object();
+	private int pendingPreloads;
+	private NativeLibraryCache nativeLibraryCache;
+	private SharedLibraries sharedLibraries;
+	private MappedJarPool mappedJarPool;
+	private boolean classLoadingMetrics;
+	private ClassLoaderLeakDetector leakDetector;
+	private File cdsClassListFile;
+	private CdsClassList cdsClassList;
 
 	/**
 	 * Creates standard implementation of plug-in class loader.
@@ -92,6 +219,28 @@ public class StandardPluginLifecycleHandler extends PluginLifecycleHandler
 		result.setStickySynchronizing(stickySynchronizing);
 		result.setLocalClassLoadingOptimization(localClassLoadingOptimization);
 		result.setForeignClassLoadingOptimization(foreignClassLoadingOptimization);
+		result.setNegativeLookupCacheSize(negativeLookupCacheSize);
+		if( libraryPackageIndex )
+		{
+			result.setLibraryIndex(libraryIndex);
+		}
+		if( libraryResourceIndex )
+		{
+			result.setResourceIndex(libraryIndex);
+		}
+		result.setClassLoadingProfile(recordedProfile);
+		result.setNativeLibraryCache(nativeLibraryCache);
+		if( sharedLibraries != null )
+		{
+			result.setSharedLibraries(sharedLibraries);
+		}
+		if( mappedJarPool != null )
+		{
+			result.setMappedJarPool(mappedJarPool);
+		}
+		result.setClassLoadingMetrics(classLoadingMetrics);
+		result.setLeakDetector(leakDetector);
+		result.setCdsClassList(cdsClassList);
 		return result;
 	}
 
@@ -135,14 +284,118 @@ public class StandardPluginLifecycleHandler extends PluginLifecycleHandler
 	}
 
 	/**
-	 * This method does nothing in this implementation.
+	 * Schedules preloading of plug-in classes recorded in class loading
+	 * profile, if any.
 	 * 
 	 * @see org.java.plugin.standard.PluginLifecycleHandler#beforePluginStart(org.java.plugin.Plugin)
 	 */
 	@Override
 	protected void beforePluginStart(final Plugin plugin)
 	{
-		// no-op
+		if( (replayProfile == null) || (preloadExecutor == null) )
+		{
+			return;
+		}
+		final PluginDescriptor descr = plugin.getDescriptor();
+		final List<String> classes = replayProfile.getClasses(descr.getId());
+		if( classes.isEmpty() )
+		{
+			return;
+		}
+		final ClassLoader loader = getPluginManager().getPluginClassLoader(descr);
+		synchronized( preloadMonitor )
+		{
+			pendingPreloads++;
+		}
+		try
+		{
+			preloadExecutor.execute(new Runnable()
+			{
+				public void run()
+				{
+					try
+					{
+						preloadClasses(descr, loader, classes);
+					}
+					finally
+					{
+						preloadDone();
+					}
+				}
+			});
+		}
+		catch( RejectedExecutionException ree )
+		{
+			log.debug("class preloading queue is full, skipping plug-in " + descr); //$NON-NLS-1$
+			preloadDone();
+		}
+	}
+
+	void preloadClasses(final PluginDescriptor descr, final ClassLoader loader, final List<String> classes)
+	{
+		int failed = 0;
+		ClassLoadingProfile.setReplayThread(true);
+		try
+		{
+			for( String className : classes )
+			{
+				try
+				{
+					Class.forName(className, false, loader);
+				}
+				catch( ClassNotFoundException cnfe )
+				{
+					failed++;
+				}
+				catch( LinkageError le )
+				{
+					failed++;
+				}
+			}
+		}
+		finally
+		{
+			ClassLoadingProfile.setReplayThread(false);
+		}
+		if( log.isDebugEnabled() )
+		{
+			log.debug("classes preloaded for plug-in " + descr //$NON-NLS-1$
+				+ ", classes=" + classes.size() + ", failed=" + failed); //$NON-NLS-1$ //$NON-NLS-2$
+		}
+	}
+
+	void preloadDone()
+	{
+		synchronized( preloadMonitor )
+		{
+			pendingPreloads--;
+			preloadMonitor.notifyAll();
+		}
+	}
+
+	/**
+	 * Waits until classes, scheduled for preloading from class loading
+	 * profile, are loaded.
+	 * 
+	 * @see org.java.plugin.standard.PluginLifecycleHandler#awaitClassPreloading(long)
+	 */
+	@Override
+	protected boolean awaitClassPreloading(final long timeout) throws InterruptedException
+	{
+		long deadline = System.currentTimeMillis() + timeout;
+		synchronized( preloadMonitor )
+		{
+			while( pendingPreloads > 0 )
+			{
+				long delay = deadline - System.currentTimeMillis();
+				if( delay <= 0 )
+				{
+					return false;
+				}
+				preloadMonitor.wait(delay);
+			}
+		}
+		return true;
 	}
 
 	/**
@@ -157,14 +410,94 @@ public class StandardPluginLifecycleHandler extends PluginLifecycleHandler
 	}
 
 	/**
-	 * This method does nothing in this implementation.
+	 * Saves code libraries index to the file, configured with
+	 * <code>libraryIndexFile</code> parameter. This method does nothing if
+	 * such file is not configured.
+	 */
+	public void saveLibraryIndex()
+	{
+		if( libraryIndexFile != null )
+		{
+			libraryIndex.save(libraryIndexFile);
+		}
+	}
+
+	/**
+	 * Saves class loading profile to the file, configured with
+	 * <code>classLoadingProfileFile</code> parameter. This method does nothing
+	 * if such file is not configured or no classes were recorded.
+	 */
+	public void saveClassLoadingProfile()
+	{
+		if( (recordedProfile != null) && !recordedProfile.isEmpty() )
+		{
+			recordedProfile.save(classLoadingProfileFile);
+		}
+	}
+
+	/**
+	 * Saves classes, defined by plug-in class loaders from JAR libraries, to
+	 * the file configured with <code>cdsClassListFile</code> parameter. This
+	 * method does nothing if such file is not configured.
+	 */
+	public void saveCdsClassList()
+	{
+		if( cdsClassList != null )
+		{
+			cdsClassList.save(cdsClassListFile);
+		}
+	}
+
+	/**
+	 * Saves and releases code libraries index, class loading profile and class
+	 * data sharing class list.
 	 * 
 	 * @see org.java.plugin.standard.PluginLifecycleHandler#dispose()
 	 */
 	@Override
 	protected void dispose()
 	{
-		// no-op
+		if( preloadExecutor != null )
+		{
+			preloadExecutor.shutdownNow();
+			preloadExecutor = null;
+		}
+		saveLibraryIndex();
+		libraryIndex.clear();
+		saveClassLoadingProfile();
+		recordedProfile = null;
+		replayProfile = null;
+		saveCdsClassList();
+		if( cdsClassList != null )
+		{
+			cdsClassList.clear();
+		}
+		if( sharedLibraries != null )
+		{
+			sharedLibraries.clear();
+		}
+		if( mappedJarPool != null )
+		{
+			mappedJarPool.clear();
+		}
+		if( leakDetector != null )
+		{
+			leakDetector.check();
+			leakDetector.stop();
+		}
+	}
+
+	/**
+	 * @see org.java.plugin.standard.PluginLifecycleHandler#init(org.java.plugin.PluginManager)
+	 */
+	@Override
+	protected void init(final PluginManager aManager)
+	{
+		super.init(aManager);
+		if( leakDetector != null )
+		{
+			leakDetector.start(aManager);
+		}
 	}
 
 	/**
@@ -191,5 +524,178 @@ public class StandardPluginLifecycleHandler extends PluginLifecycleHandler
 				"true")); //$NON-NLS-1$
 		log.debug("foreignClassLoadingOptimization parameter value is " //$NON-NLS-1$
 			+ foreignClassLoadingOptimization);
+		libraryPackageIndex = "true".equalsIgnoreCase( //$NON-NLS-1$
+			config.getProperty("libraryPackageIndex", "false")); //$NON-NLS-1$ //$NON-NLS-2$
+		log.debug("libraryPackageIndex parameter value is " //$NON-NLS-1$
+			+ libraryPackageIndex);
+		libraryResourceIndex = "true".equalsIgnoreCase( //$NON-NLS-1$
+			config.getProperty("libraryResourceIndex", "false")); //$NON-NLS-1$ //$NON-NLS-2$
+		log.debug("libraryResourceIndex parameter value is " //$NON-NLS-1$
+			+ libraryResourceIndex);
+		try
+		{
+			negativeLookupCacheSize = Integer.parseInt(config.getProperty("negativeLookupCacheSize", //$NON-NLS-1$
+				"0")); //$NON-NLS-1$
+		}
+		catch( NumberFormatException nfe )
+		{
+			log.warn("invalid negativeLookupCacheSize parameter value, using default", nfe); //$NON-NLS-1$
+			negativeLookupCacheSize = 0;
+		}
+		log.debug("negativeLookupCacheSize parameter value is " //$NON-NLS-1$
+			+ negativeLookupCacheSize);
+		String indexFile = config.getProperty("libraryIndexFile"); //$NON-NLS-1$
+		if( (indexFile != null) && (indexFile.length() > 0) )
+		{
+			libraryIndexFile = new File(indexFile);
+			libraryIndex.load(libraryIndexFile);
+		}
+		log.debug("libraryIndexFile parameter value is " //$NON-NLS-1$
+			+ libraryIndexFile);
+		String profileFile = config.getProperty("classLoadingProfileFile"); //$NON-NLS-1$
+		if( (profileFile != null) && (profileFile.length() > 0) )
+		{
+			classLoadingProfileFile = new File(profileFile);
+			configureClassLoadingProfile(config);
+		}
+		log.debug("classLoadingProfileFile parameter value is " //$NON-NLS-1$
+			+ classLoadingProfileFile);
+		String classListFile = config.getProperty("cdsClassListFile"); //$NON-NLS-1$
+		if( (classListFile != null) && (classListFile.length() > 0) )
+		{
+			cdsClassListFile = new File(classListFile);
+			cdsClassList = new CdsClassList();
+		}
+		log.debug("cdsClassListFile parameter value is " //$NON-NLS-1$
+			+ cdsClassListFile);
+		String cacheFolder = config.getProperty("nativeLibraryCacheFolder"); //$NON-NLS-1$
+		if( (cacheFolder != null) && (cacheFolder.length() > 0) )
+		{
+			configureNativeLibraryCache(new File(cacheFolder), config);
+		}
+		log.debug("nativeLibraryCacheFolder parameter value is " //$NON-NLS-1$
+			+ cacheFolder);
+		boolean shareLibraries = "true".equalsIgnoreCase( //$NON-NLS-1$
+			config.getProperty("sharedLibraries", "false")); //$NON-NLS-1$ //$NON-NLS-2$
+		log.debug("sharedLibraries parameter value is " //$NON-NLS-1$
+			+ shareLibraries);
+		sharedLibraries = shareLibraries ? new SharedLibraries() : null;
+		boolean mapLibraries = "true".equalsIgnoreCase( //$NON-NLS-1$
+			config.getProperty("memoryMappedLibraries", "false")); //$NON-NLS-1$ //$NON-NLS-2$
+		log.debug("memoryMappedLibraries parameter value is " //$NON-NLS-1$
+			+ mapLibraries);
+		mappedJarPool = mapLibraries ? new MappedJarPool() : null;
+		classLoadingMetrics = "true".equalsIgnoreCase( //$NON-NLS-1$
+			config.getProperty("classLoadingMetrics", "false")); //$NON-NLS-1$ //$NON-NLS-2$
+		log.debug("classLoadingMetrics parameter value is " //$NON-NLS-1$
+			+ classLoadingMetrics);
+		int leakDetectionGcCount;
+		try
+		{
+			leakDetectionGcCount = Integer.parseInt(config.getProperty("leakDetectionGcCount", //$NON-NLS-1$
+				"0")); //$NON-NLS-1$
+		}
+		catch( NumberFormatException nfe )
+		{
+			log.warn("invalid leakDetectionGcCount parameter value, using default", nfe); //$NON-NLS-1$
+			leakDetectionGcCount = 0;
+		}
+		log.debug("leakDetectionGcCount parameter value is " //$NON-NLS-1$
+			+ leakDetectionGcCount);
+		leakDetector = (leakDetectionGcCount > 0) ? new ClassLoaderLeakDetector(leakDetectionGcCount) : null;
+	}
+
+	private void configureNativeLibraryCache(final File folder, final ExtendedProperties config)
+	{
+		int maxAge;
+		int maxSize;
+		try
+		{
+			maxAge = Integer.parseInt(config.getProperty("nativeLibraryCacheMaxAge", //$NON-NLS-1$
+				"30")); //$NON-NLS-1$
+		}
+		catch( NumberFormatException nfe )
+		{
+			log.warn("invalid nativeLibraryCacheMaxAge parameter value, using default", nfe); //$NON-NLS-1$
+			maxAge = 30;
+		}
+		log.debug("nativeLibraryCacheMaxAge parameter value is " //$NON-NLS-1$
+			+ maxAge);
+		try
+		{
+			maxSize = Integer.parseInt(config.getProperty("nativeLibraryCacheMaxSize", //$NON-NLS-1$
+				"512")); //$NON-NLS-1$
+		}
+		catch( NumberFormatException nfe )
+		{
+			log.warn("invalid nativeLibraryCacheMaxSize parameter value, using default", nfe); //$NON-NLS-1$
+			maxSize = 512;
+		}
+		log.debug("nativeLibraryCacheMaxSize parameter value is " //$NON-NLS-1$
+			+ maxSize);
+		nativeLibraryCache = new NativeLibraryCache(folder, maxAge * 24L * 60L * 60L * 1000L,
+			maxSize * 1024L * 1024L);
+		nativeLibraryCache.evict();
+	}
+
+	private void configureClassLoadingProfile(final ExtendedProperties config)
+	{
+		int recordTime;
+		int threads;
+		try
+		{
+			recordTime = Integer.parseInt(config.getProperty("classLoadingProfileRecordTime", //$NON-NLS-1$
+				"60")); //$NON-NLS-1$
+		}
+		catch( NumberFormatException nfe )
+		{
+			log.warn("invalid classLoadingProfileRecordTime parameter value, using default", nfe); //$NON-NLS-1$
+			recordTime = 60;
+		}
+		log.debug("classLoadingProfileRecordTime parameter value is " //$NON-NLS-1$
+			+ recordTime);
+		try
+		{
+			threads = Integer.parseInt(config.getProperty("classLoadingProfileThreads", //$NON-NLS-1$
+				Integer.toString(Runtime.getRuntime().availableProcessors())));
+		}
+		catch( NumberFormatException nfe )
+		{
+			log.warn("invalid classLoadingProfileThreads parameter value, using default", nfe); //$NON-NLS-1$
+			threads = Runtime.getRuntime().availableProcessors();
+		}
+		log.debug("classLoadingProfileThreads parameter value is " //$NON-NLS-1$
+			+ threads);
+		boolean replay = "true".equalsIgnoreCase( //$NON-NLS-1$
+			config.getProperty("classLoadingProfileReplay", "false")); //$NON-NLS-1$ //$NON-NLS-2$
+		log.debug("classLoadingProfileReplay parameter value is " //$NON-NLS-1$
+			+ replay);
+		if( recordTime > 0 )
+		{
+			recordedProfile = new ClassLoadingProfile(recordTime * 1000L);
+		}
+		if( replay && (threads > 0) )
+		{
+			ClassLoadingProfile profile = new ClassLoadingProfile(0);
+			profile.load(classLoadingProfileFile);
+			if( !profile.isEmpty() )
+			{
+				replayProfile = profile;
+				preloadExecutor = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+					new ArrayBlockingQueue<Runnable>(PRELOAD_QUEUE_SIZE), new ThreadFactory()
+					{
+						private final AtomicInteger count = new AtomicInteger();
+
+						public Thread newThread(final Runnable r)
+						{
+							Thread result = new Thread(r, "jpf-class-preloader-" //$NON-NLS-1$
+								+ count.incrementAndGet());
+							result.setDaemon(true);
+							return result;
+						}
+					});
+				preloadExecutor.allowCoreThreadTimeOut(true);
+			}
+		}
 	}
 }
@@ -13,8 +13,10 @@
  *****************************************************************************/
 package org.java.plugin.standard;
 
+import java.lang.management.ManagementFactory;
 import java.net.URL;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -22,6 +24,21 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -38,6 +55,7 @@ import org.java.plugin.registry.PluginPrerequisite;
 import org.java.plugin.registry.PluginRegistry;
 import org.java.plugin.registry.PluginRegistry.RegistryChangeData;
 import org.java.plugin.registry.PluginRegistry.RegistryChangeListener;
+import org.java.plugin.standard.FlightRecorderEvents.ActivationEvent;
 
 /**
  * Standard implementation of plug-in manager.
@@ -47,6 +65,8 @@ import org.java.plugin.registry.PluginRegistry.RegistryChangeListener;
  */
 public final class StandardPluginManager extends PluginManager
 {
+	private static final int PRELOAD_THREADS = Runtime.getRuntime().availableProcessors();
+
 	Log log = LogFactory.getLog(getClass());
 	private final PathResolver pathResolver;
 	private final PluginRegistry registry;
@@ -55,12 +75,14 @@ public final class StandardPluginManager extends PluginManager
 	private final Set<String> activatingPlugins = new HashSet<String>();
 	private final Set<String> badPlugins = new HashSet<String>();
 	private final List<String> activationLog = new LinkedList<String>();
-	private final Map<String, PluginClassLoader> classLoaders = new HashMap<String, PluginClassLoader>();
+	private final Map<String, PluginClassLoader> classLoaders = new ConcurrentHashMap<String, PluginClassLoader>();
 	private final Set<String> disabledPlugins = new HashSet<String>();
 	private final List<EventListener> listeners = Collections
 		.synchronizedList(new LinkedList<EventListener>());
 	private RegistryChangeListener registryChangeListener;
 	private Map<String, URL> notRegisteredPluginLocations = new HashMap<String, URL>();
+	private final Object preloadLock = new Object();
+	private ThreadPoolExecutor preloadExecutor;
 
 	/**
 	 * Creates instance of plug-in manager for given registry, path resolver and
@@ -106,6 +128,111 @@ public final class StandardPluginManager extends PluginManager
 		return pathResolver;
 	}
 
+	/**
+	 * Waits until life cycle handler preloads classes of activated plug-ins.
+	 * Applications may call this method after activating plug-ins and before
+	 * accepting requests, so that first requests don't wait for class loading.
+	 * 
+	 * @param timeout maximum time to wait in milliseconds
+	 * @return <code>true</code> if all classes have been preloaded,
+	 *         <code>false</code> if timeout elapsed
+	 * @throws InterruptedException if current thread has been interrupted
+	 * @see StandardPluginLifecycleHandler
+	 */
+	public boolean awaitClassPreloading(final long timeout) throws InterruptedException
+	{
+		return lifecycleHandler.awaitClassPreloading(timeout);
+	}
+
+	/**
+	 * Loads given classes in parallel, using up to one thread per available
+	 * processor. Classes of the same code library are loaded by one thread.
+	 * This method waits for all classes to be loaded, even if current thread
+	 * has been interrupted (interruption status is preserved).
+	 * 
+	 * @see org.java.plugin.PluginManager#preloadClasses(java.lang.String,
+	 *      java.util.Collection)
+	 */
+	@Override
+	public Map<String, Throwable> preloadClasses(final String pluginId,
+		final Collection<String> classNames)
+	{
+		Future<Map<String, Throwable>> future = preloadClassesAsync(pluginId, classNames);
+		boolean interrupted = false;
+		try
+		{
+			while( true )
+			{
+				try
+				{
+					return future.get();
+				}
+				catch( InterruptedException ie )
+				{
+					interrupted = true;
+				}
+				catch( ExecutionException ee )
+				{
+					// should never happen as loading tasks don't throw
+					throw new IllegalStateException(ee.getCause());
+				}
+			}
+		}
+		finally
+		{
+			if( interrupted )
+			{
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Loads given classes in background threads, using up to one thread per
+	 * available processor. Classes of the same code library are loaded by one
+	 * thread.
+	 * 
+	 * @see org.java.plugin.PluginManager#preloadClassesAsync(java.lang.String,
+	 *      java.util.Collection)
+	 */
+	@Override
+	public Future<Map<String, Throwable>> preloadClassesAsync(final String pluginId,
+		final Collection<String> classNames)
+	{
+		PluginClassLoader cl = getPreloadClassLoader(pluginId);
+		if( !(cl instanceof StandardPluginClassLoader) )
+		{
+			return super.preloadClassesAsync(pluginId, classNames);
+		}
+		return ((StandardPluginClassLoader) cl).preloadClasses(classNames, getPreloadExecutor(),
+			PRELOAD_THREADS);
+	}
+
+	private Executor getPreloadExecutor()
+	{
+		synchronized( preloadLock )
+		{
+			if( preloadExecutor == null )
+			{
+				preloadExecutor = new ThreadPoolExecutor(PRELOAD_THREADS, PRELOAD_THREADS, 30,
+					TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory()
+					{
+						private final AtomicInteger count = new AtomicInteger();
+
+						public Thread newThread(final Runnable r)
+						{
+							Thread result = new Thread(r, "jpf-bulk-preloader-" //$NON-NLS-1$
+								+ count.incrementAndGet());
+							result.setDaemon(true);
+							return result;
+						}
+					});
+				preloadExecutor.allowCoreThreadTimeOut(true);
+			}
+			return preloadExecutor;
+		}
+	}
+
 	/**
 	 * Method to handle plug-in registry change events.
 	 * 
@@ -370,10 +497,70 @@ public final class StandardPluginManager extends PluginManager
 			}
 			result = lifecycleHandler.createPluginClassLoader(descr);
 			classLoaders.put(descr.getId(), result);
+			registerClassLoadingMetrics(descr.getId(), result);
 		}
 		return result;
 	}
 
+	private void registerClassLoadingMetrics(final String id, final PluginClassLoader cl)
+	{
+		if( !(cl instanceof StandardPluginClassLoader) )
+		{
+			return;
+		}
+		ClassLoadingMetrics metrics = ((StandardPluginClassLoader) cl).getClassLoadingMetrics();
+		if( metrics == null )
+		{
+			return;
+		}
+		try
+		{
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = getClassLoadingMetricsName(id);
+			if( server.isRegistered(name) )
+			{
+				server.unregisterMBean(name);
+			}
+			server.registerMBean(new StandardMBean(metrics, ClassLoadingMetricsMBean.class), name);
+		}
+		catch( JMException jme )
+		{
+			log.warn("failed registering class loading metrics of plug-in " + id, jme); //$NON-NLS-1$
+		}
+		catch( SecurityException se )
+		{
+			log.warn("failed registering class loading metrics of plug-in " + id, se); //$NON-NLS-1$
+		}
+	}
+
+	private void unregisterClassLoadingMetrics(final String id)
+	{
+		try
+		{
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = getClassLoadingMetricsName(id);
+			if( server.isRegistered(name) )
+			{
+				server.unregisterMBean(name);
+			}
+		}
+		catch( JMException jme )
+		{
+			log.warn("failed unregistering class loading metrics of plug-in " + id, jme); //$NON-NLS-1$
+		}
+		catch( SecurityException se )
+		{
+			log.warn("failed unregistering class loading metrics of plug-in " + id, se); //$NON-NLS-1$
+		}
+	}
+
+	private ObjectName getClassLoadingMetricsName(final String id) throws MalformedObjectNameException
+	{
+		return new ObjectName("org.java.plugin:type=PluginClassLoader,manager=" //$NON-NLS-1$
+			+ Integer.toHexString(System.identityHashCode(this)) + ",plugin=" //$NON-NLS-1$
+			+ ObjectName.quote(id));
+	}
+
 	/**
 	 * Shuts down the framework. <br>
 	 * Calling this method will deactivate all active plug-ins in order, reverse
@@ -403,6 +590,18 @@ public final class StandardPluginManager extends PluginManager
 			deactivatePlugin(descr);
 		}
 		dump();
+		for( String id : classLoaders.keySet() )
+		{
+			unregisterClassLoadingMetrics(id);
+		}
+		synchronized( preloadLock )
+		{
+			if( preloadExecutor != null )
+			{
+				preloadExecutor.shutdown();
+				preloadExecutor = null;
+			}
+		}
 		classLoaders.clear();
 		disabledPlugins.clear();
 		listeners.clear();
@@ -429,11 +628,18 @@ public final class StandardPluginManager extends PluginManager
 				"pluginActivating", descr.getId()); //$NON-NLS-1$
 		}
 		activatingPlugins.add(descr.getId());
+		ActivationEvent event = FlightRecorderEvents.INSTANCE.startActivation();
+		boolean succeeded = false;
 		try
 		{
 			try
 			{
+				long time = System.nanoTime();
 				checkPrerequisites(descr);
+				if( event != null )
+				{
+					event.prerequisitesActivated(System.nanoTime() - time);
+				}
 				String pluginClassName = descr.getPluginClassName();
 				if( (pluginClassName == null) || (pluginClassName.trim().length() == 0) )
 				{
@@ -445,18 +651,25 @@ public final class StandardPluginManager extends PluginManager
 				}
 				initPlugin(result, descr);
 				lifecycleHandler.beforePluginStart(result);
+				time = System.nanoTime();
 				startPlugin(result);
+				if( event != null )
+				{
+					event.pluginStarted(System.nanoTime() - time);
+				}
 			}
 			catch( PluginLifecycleException ple )
 			{
 				badPlugins.add(descr.getId());
 				classLoaders.remove(descr.getId());
+				unregisterClassLoadingMetrics(descr.getId());
 				throw ple;
 			}
 			catch( Exception e )
 			{
 				badPlugins.add(descr.getId());
 				classLoaders.remove(descr.getId());
+				unregisterClassLoadingMetrics(descr.getId());
 				throw new PluginLifecycleException(StandardObjectFactory.PACKAGE_NAME,
 					"pluginStartFailed", descr.getUniqueId(), e); //$NON-NLS-1$
 			}
@@ -467,12 +680,17 @@ public final class StandardPluginManager extends PluginManager
 				+ " of " //$NON-NLS-1$
 				+ registry.getPluginDescriptors().size() + ")"); //$NON-NLS-1$
 			activatingPlugins.remove(descr.getId());
+			succeeded = true;
 			fireEvent(result, true);
 			return result;
 		}
 		finally
 		{
 			activatingPlugins.remove(descr.getId());
+			if( event != null )
+			{
+				event.finish(descr.getId(), succeeded);
+			}
 		}
 	}
 
@@ -616,6 +834,7 @@ public final class StandardPluginManager extends PluginManager
 		PluginClassLoader clsLoader = classLoaders.remove(descr.getId());
 		if( clsLoader != null )
 		{
+			unregisterClassLoadingMetrics(descr.getId());
 			disposeClassLoader(clsLoader);
 		}
 		badPlugins.remove(descr.getId());
@@ -796,6 +1015,25 @@ public final class StandardPluginManager extends PluginManager
 		}
 	}
 
+	/**
+	 * @return copy of registered manager event listeners list
+	 */
+	List<EventListener> getEventListeners()
+	{
+		synchronized( listeners )
+		{
+			return new ArrayList<EventListener>(listeners);
+		}
+	}
+
+	/**
+	 * @return copy of plug-in class loaders created by this manager
+	 */
+	List<PluginClassLoader> getClassLoaders()
+	{
+		return new ArrayList<PluginClassLoader>(classLoaders.values());
+	}
+
 	private void fireEvent(final Object data, final boolean on)
 	{
 		if( listeners.isEmpty() )